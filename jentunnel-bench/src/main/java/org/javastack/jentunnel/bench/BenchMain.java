@@ -0,0 +1,34 @@
+package org.javastack.jentunnel.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run benchmarks with JSON results (default jentunnel-bench.json), usual JMH options are accepted:
+ *
+ * <pre>
+ * mvn -Pbench package
+ * java -jar jentunnel-bench/target/benchmarks.jar [-p type=LOCAL] [-rff result.json] [regexp]
+ * </pre>
+ */
+public class BenchMain {
+	private static final String DEFAULT_RESULT = "jentunnel-bench.json";
+
+	public static void main(final String[] args) throws Exception {
+		final CommandLineOptions cmd = new CommandLineOptions(args);
+		final ChainedOptionsBuilder opts = new OptionsBuilder().parent(cmd);
+		if (cmd.getIncludes().isEmpty()) {
+			opts.include(ForwardBenchmark.class.getSimpleName());
+		}
+		if (!cmd.getResultFormat().hasValue()) {
+			opts.resultFormat(ResultFormatType.JSON);
+		}
+		if (!cmd.getResult().hasValue()) {
+			opts.result(DEFAULT_RESULT);
+		}
+		new Runner(opts.build()).run();
+	}
+}
@@ -0,0 +1,92 @@
+package org.javastack.jentunnel.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.javastack.jentunnel.ConfigData;
+import org.javastack.jentunnel.ConfigUtils;
+import org.javastack.jentunnel.Connection;
+import org.javastack.jentunnel.Forward;
+import org.javastack.jentunnel.Identity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup config load: YAML parsing versus binary snapshot of same content
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConfigBenchmark {
+	/**
+	 * Config directory with YAML file and snapshot
+	 */
+	@State(Scope.Benchmark)
+	public static class ConfigFiles {
+		@Param({
+				"100", "1000", "5000"
+		})
+		public int forwards;
+
+		private File configDir;
+		ConfigUtils config;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			configDir = Files.createTempDirectory("jentunnel-bench").toFile();
+			config = new ConfigUtils(configDir.getAbsolutePath());
+			final Identity identity = new Identity(null, "bench", "user", "password", "");
+			final Connection connection = new Connection(null, "bench", "127.0.0.1", 22, identity.id, true, true);
+			final List<String> connections = Collections.singletonList(connection.id);
+			final List<Forward> list = new ArrayList<Forward>(forwards);
+			for (int i = 0; i < forwards; i++) {
+				list.add(new Forward.Local(null, "forward-" + i, connections, //
+						"127.0.0.1", 10000 + i, "host-" + i, 22));
+			}
+			config.save(new ConfigData(Collections.singletonList(identity), //
+					Collections.singletonList(connection), list));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			final File[] files = configDir.listFiles();
+			if (files != null) {
+				for (final File f : files) {
+					f.delete();
+				}
+			}
+			configDir.delete();
+		}
+	}
+
+	@Benchmark
+	public ConfigData yaml(final ConfigFiles f) throws IOException {
+		return f.config.loadYAML();
+	}
+
+	/**
+	 * Includes validation against YAML file (mtime, size and checksum)
+	 */
+	@Benchmark
+	public ConfigData snapshot(final ConfigFiles f) throws IOException {
+		return f.config.load();
+	}
+}
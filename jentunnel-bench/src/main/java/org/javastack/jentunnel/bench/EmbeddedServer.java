@@ -0,0 +1,151 @@
+package org.javastack.jentunnel.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.sshd.common.forward.DefaultForwarderFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+/**
+ * Loopback SSH server (Apache SSHD, any password) plus plain TCP echo, discard and source targets
+ */
+class EmbeddedServer implements AutoCloseable {
+	static final String USERNAME = "bench";
+	static final String PASSWORD = "bench";
+
+	private final SshServer sshd;
+	private final Target echo;
+	private final Target discard;
+	private final Target source;
+
+	EmbeddedServer() throws IOException {
+		this.echo = new Target("echo", Mode.ECHO);
+		this.discard = new Target("discard", Mode.DISCARD);
+		this.source = new Target("source", Mode.SOURCE);
+		this.sshd = SshServer.setUpDefaultServer();
+		sshd.setHost("127.0.0.1");
+		sshd.setPort(0);
+		sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider()); // In memory
+		sshd.setPasswordAuthenticator((username, password, session) -> {
+			return USERNAME.equals(username) && PASSWORD.equals(password);
+		});
+		sshd.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+		sshd.setForwarderFactory(new DefaultForwarderFactory());
+		sshd.start();
+	}
+
+	int getSshPort() {
+		return sshd.getPort();
+	}
+
+	int getEchoPort() {
+		return echo.getPort();
+	}
+
+	int getDiscardPort() {
+		return discard.getPort();
+	}
+
+	int getSourcePort() {
+		return source.getPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			sshd.stop(true);
+		} finally {
+			echo.close();
+			discard.close();
+			source.close();
+		}
+	}
+
+	/**
+	 * @return a currently unused loopback port
+	 * @throws IOException if unable to bind
+	 */
+	static int freePort() throws IOException {
+		try (final ServerSocket ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			return ss.getLocalPort();
+		}
+	}
+
+	private enum Mode {
+		ECHO,
+		DISCARD,
+		/**
+		 * Write until peer closes (download)
+		 */
+		SOURCE;
+	}
+
+	/**
+	 * Blocking TCP server, one thread per connection
+	 */
+	private static class Target implements Runnable, AutoCloseable {
+		private final ServerSocket listen;
+		private final Mode mode;
+
+		Target(final String name, final Mode mode) throws IOException {
+			this.listen = new ServerSocket(0, 256, InetAddress.getLoopbackAddress());
+			this.mode = mode;
+			final Thread t = new Thread(this);
+			t.setDaemon(true);
+			t.setName("bench-" + name);
+			t.start();
+		}
+
+		int getPort() {
+			return listen.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			while (!listen.isClosed()) {
+				try {
+					final Socket s = listen.accept();
+					final Thread t = new Thread(() -> handle(s));
+					t.setDaemon(true);
+					t.start();
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		}
+
+		private void handle(final Socket s) {
+			try (final Socket sock = s) {
+				sock.setTcpNoDelay(true);
+				final InputStream in = sock.getInputStream();
+				final OutputStream out = sock.getOutputStream();
+				final byte[] buf = new byte[64 * 1024];
+				if (mode == Mode.SOURCE) {
+					while (true) {
+						out.write(buf);
+					}
+				}
+				int len;
+				while ((len = in.read(buf)) >= 0) {
+					if (mode == Mode.ECHO) {
+						out.write(buf, 0, len);
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				// Peer closed
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			listen.close();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.javastack.jentunnel.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forwarding throughput (MB/s), round-trip latency and channel open churn (connections/s) for
+ * each forward type, see {@link TunnelState}
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+public class ForwardBenchmark {
+	static final int BULK_CHUNK = 64 * 1024;
+	static final int MESSAGE_SIZE = 64;
+	static final double MEGABYTE = 1024 * 1024;
+
+	/**
+	 * Persistent connections through the tunnel, one per benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Streams {
+		final byte[] chunk = new byte[BULK_CHUNK];
+		final byte[] message = new byte[MESSAGE_SIZE];
+		final byte[] reply = new byte[MESSAGE_SIZE];
+		Socket echo;
+		Socket discard;
+		OutputStream echoOut;
+		DataInputStream echoIn;
+		OutputStream discardOut;
+
+		@Setup(Level.Trial)
+		public void open(final TunnelState tunnel) throws IOException {
+			echo = tunnel.openEcho();
+			echoOut = echo.getOutputStream();
+			echoIn = new DataInputStream(echo.getInputStream());
+			discard = tunnel.openDiscard();
+			discardOut = discard.getOutputStream();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			echo.close();
+			discard.close();
+		}
+	}
+
+	/**
+	 * Reported as MB/s next to ops/s (OPERATIONS counters are divided by iteration time, EVENTS are not)
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Transfer {
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+	}
+
+	/**
+	 * Bulk upload to discard target, throughput is bounded by SSH window/backpressure
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void bulk(final Streams s, final Transfer t) throws IOException {
+		s.discardOut.write(s.chunk);
+		t.megabytes += (BULK_CHUNK / MEGABYTE);
+	}
+
+	/**
+	 * Small message echo (request/response)
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte roundTrip(final Streams s) throws IOException {
+		s.echoOut.write(s.message);
+		s.echoOut.flush();
+		s.echoIn.readFully(s.reply);
+		return s.reply[0];
+	}
+
+	/**
+	 * New connection (and SSH channel) per operation
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int churn(final TunnelState tunnel) throws IOException {
+		try (final Socket s = tunnel.openEcho()) {
+			final OutputStream out = s.getOutputStream();
+			out.write(1);
+			out.flush();
+			return s.getInputStream().read();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.javastack.jentunnel.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback TCP proxy adding a fixed delay to every chunk (half of round trip each way), a delay line
+ * without bandwidth limit: like a long fat link, throughput is bounded by data in flight / RTT
+ */
+class LatencyProxy implements Runnable, AutoCloseable {
+	private static final int BUFFER = 64 * 1024;
+	private static final byte[] EOF = new byte[0];
+
+	private final ServerSocket listen;
+	private final int targetPort;
+	private final long delayNanos;
+
+	/**
+	 * @param targetPort loopback port to proxy
+	 * @param rttMillis added round trip
+	 * @throws IOException if unable to bind
+	 */
+	LatencyProxy(final int targetPort, final long rttMillis) throws IOException {
+		this.listen = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+		this.targetPort = targetPort;
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis) / 2;
+		final Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.setName("bench-latency");
+		t.start();
+	}
+
+	int getPort() {
+		return listen.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (!listen.isClosed()) {
+			try {
+				final Socket client = listen.accept();
+				final Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				pipe(client, server);
+				pipe(server, client);
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	/**
+	 * One direction: reader stamps chunks, writer releases them when due
+	 */
+	private void pipe(final Socket from, final Socket to) {
+		final BlockingQueue<Chunk> line = new LinkedBlockingQueue<Chunk>();
+		final Thread reader = new Thread(() -> {
+			try {
+				final InputStream in = from.getInputStream();
+				final byte[] buf = new byte[BUFFER];
+				int len;
+				while ((len = in.read(buf)) >= 0) {
+					line.add(new Chunk(System.nanoTime() + delayNanos, Arrays.copyOf(buf, len)));
+				}
+			} catch (IOException e) {
+				// Peer closed
+			}
+			line.add(new Chunk(System.nanoTime() + delayNanos, EOF));
+		});
+		final Thread writer = new Thread(() -> {
+			try {
+				final OutputStream out = to.getOutputStream();
+				while (true) {
+					final Chunk c = line.take();
+					final long wait = c.due - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					if (c.data == EOF) {
+						to.shutdownOutput();
+						break;
+					}
+					out.write(c.data);
+				}
+			} catch (IOException | InterruptedException e) {
+				closeQuietly(from);
+				closeQuietly(to);
+			}
+		});
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	private static void closeQuietly(final Socket s) {
+		try {
+			s.close();
+		} catch (IOException ign) {
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		listen.close();
+	}
+
+	private static final class Chunk {
+		final long due;
+		final byte[] data;
+
+		Chunk(final long due, final byte[] data) {
+			this.due = due;
+			this.data = data;
+		}
+	}
+}
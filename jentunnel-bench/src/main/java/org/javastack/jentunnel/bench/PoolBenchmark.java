@@ -0,0 +1,157 @@
+package org.javastack.jentunnel.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.javastack.jentunnel.Connection;
+import org.javastack.jentunnel.ConnectionStatus;
+import org.javastack.jentunnel.Forward;
+import org.javastack.jentunnel.Identity;
+import org.javastack.jentunnel.SSHClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aggregate download throughput (MB/s) of parallel channels on one session or striped over a session
+ * pool. Striping helps when one session is the bottleneck (cipher of a session runs on one core, one TCP
+ * stream), compare on target hardware and link with {@code -t} and {@code -p rttMillis=}.
+ */
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+public class PoolBenchmark {
+	private static final long CONNECT_TIMEOUT = 15000;
+
+	@State(Scope.Benchmark)
+	public static class Pool {
+		@Param({
+				"1", "4"
+		})
+		public int poolSize;
+
+		@Param({
+				"0"
+		})
+		public int rttMillis;
+
+		private EmbeddedServer server;
+		private LatencyProxy proxy;
+		private File configDir;
+		private SSHClient client;
+		int sourcePort;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			server = new EmbeddedServer();
+			proxy = new LatencyProxy(server.getSshPort(), rttMillis);
+			configDir = Files.createTempDirectory("jentunnel-bench").toFile();
+			client = new SSHClient(configDir.getAbsolutePath());
+			client.init();
+			final Identity identity = new Identity(null, "bench", //
+					EmbeddedServer.USERNAME, EmbeddedServer.PASSWORD, "");
+			final Connection connection = new Connection.Builder() //
+					.alias("bench").address("127.0.0.1").port(proxy.getPort()).identity(identity.id) //
+					.poolSize((poolSize > 1) ? poolSize : 0).poolBalance(Connection.PoolBalance.CHANNELS) //
+					.build();
+			final List<String> connections = Collections.singletonList(connection.id);
+			client.setIdentity(identity);
+			client.setConnection(connection);
+			sourcePort = EmbeddedServer.freePort();
+			client.setForward(new Forward.Local(null, "source", connections, //
+					"127.0.0.1", sourcePort, "127.0.0.1", server.getSourcePort()));
+			client.connect(connection.id);
+			final long end = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			while (client.getStatus(connection.id) != ConnectionStatus.CONNECTED) {
+				if (System.currentTimeMillis() > end) {
+					throw new IOException("Connection timeout: " + client.getStatus(connection.id));
+				}
+				Thread.sleep(10);
+			}
+			// Forwards are mapped after authentication, extra sessions after that
+			while (true) {
+				try (final Socket s = new Socket(InetAddress.getLoopbackAddress(), sourcePort)) {
+					break;
+				} catch (IOException e) {
+					if (System.currentTimeMillis() > end) {
+						throw e;
+					}
+					Thread.sleep(10);
+				}
+			}
+			Thread.sleep(1000);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			try {
+				client.stop();
+				proxy.close();
+				server.close();
+			} finally {
+				final File[] files = configDir.listFiles();
+				if (files != null) {
+					for (final File f : files) {
+						f.delete();
+					}
+				}
+				configDir.delete();
+			}
+		}
+	}
+
+	/**
+	 * Download stream per benchmark thread, a new channel per iteration
+	 */
+	@State(Scope.Thread)
+	public static class Download {
+		final byte[] buf = new byte[ForwardBenchmark.BULK_CHUNK];
+		Socket socket;
+		InputStream in;
+
+		@Setup(Level.Iteration)
+		public void open(final Pool pool) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), pool.sourcePort);
+			in = socket.getInputStream();
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Bulk download from source target, all threads together
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int download(final Download d, final ForwardBenchmark.Transfer t) throws IOException {
+		final int len = d.in.read(d.buf);
+		if (len < 0) {
+			throw new IOException("Source closed");
+		}
+		t.megabytes += (len / ForwardBenchmark.MEGABYTE);
+		return len;
+	}
+}
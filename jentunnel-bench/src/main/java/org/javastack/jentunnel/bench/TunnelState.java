@@ -0,0 +1,181 @@
+package org.javastack.jentunnel.bench;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.javastack.jentunnel.Connection;
+import org.javastack.jentunnel.ConnectionStatus;
+import org.javastack.jentunnel.Forward;
+import org.javastack.jentunnel.Identity;
+import org.javastack.jentunnel.SSHClient;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Embedded server and {@link SSHClient} with echo/discard forwards of selected type
+ */
+@State(Scope.Benchmark)
+public class TunnelState {
+	private static final long CONNECT_TIMEOUT = 15000;
+
+	@Param({
+			"LOCAL", "REMOTE", "DYNAMIC"
+	})
+	public Forward.Type type;
+
+	private EmbeddedServer server;
+	private File configDir;
+	private SSHClient client;
+	private InetSocketAddress echoEntrance;
+	private InetSocketAddress discardEntrance;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new EmbeddedServer();
+		configDir = Files.createTempDirectory("jentunnel-bench").toFile();
+		client = new SSHClient(configDir.getAbsolutePath());
+		client.init();
+		final Identity identity = new Identity(null, "bench", //
+				EmbeddedServer.USERNAME, EmbeddedServer.PASSWORD, "");
+		final Connection connection = new Connection(null, "bench", //
+				"127.0.0.1", server.getSshPort(), identity.id, false, false);
+		final List<String> connections = Collections.singletonList(connection.id);
+		client.setIdentity(identity);
+		client.setConnection(connection);
+		switch (type) {
+			case LOCAL: {
+				final int echoPort = EmbeddedServer.freePort();
+				final int discardPort = EmbeddedServer.freePort();
+				client.setForward(new Forward.Local(null, "echo", connections, //
+						"127.0.0.1", echoPort, "127.0.0.1", server.getEchoPort()));
+				client.setForward(new Forward.Local(null, "discard", connections, //
+						"127.0.0.1", discardPort, "127.0.0.1", server.getDiscardPort()));
+				echoEntrance = new InetSocketAddress(InetAddress.getLoopbackAddress(), echoPort);
+				discardEntrance = new InetSocketAddress(InetAddress.getLoopbackAddress(), discardPort);
+				break;
+			}
+			case REMOTE: {
+				// Server listens on loopback too, same host
+				final int echoPort = EmbeddedServer.freePort();
+				final int discardPort = EmbeddedServer.freePort();
+				client.setForward(new Forward.Remote(null, "echo", connections, //
+						"127.0.0.1", server.getEchoPort(), "127.0.0.1", echoPort));
+				client.setForward(new Forward.Remote(null, "discard", connections, //
+						"127.0.0.1", server.getDiscardPort(), "127.0.0.1", discardPort));
+				echoEntrance = new InetSocketAddress(InetAddress.getLoopbackAddress(), echoPort);
+				discardEntrance = new InetSocketAddress(InetAddress.getLoopbackAddress(), discardPort);
+				break;
+			}
+			case DYNAMIC: {
+				final int socksPort = EmbeddedServer.freePort();
+				client.setForward(new Forward.Dynamic(null, "socks", connections, //
+						"127.0.0.1", socksPort));
+				echoEntrance = new InetSocketAddress(InetAddress.getLoopbackAddress(), socksPort);
+				discardEntrance = echoEntrance;
+				break;
+			}
+		}
+		client.connect(connection.id);
+		awaitReady(connection.id);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		try {
+			client.stop();
+			server.close();
+		} finally {
+			final File[] files = configDir.listFiles();
+			if (files != null) {
+				for (final File f : files) {
+					f.delete();
+				}
+			}
+			configDir.delete();
+		}
+	}
+
+	/**
+	 * Wait for session and forwards (connect is asynchronous)
+	 */
+	private void awaitReady(final String id) throws Exception {
+		final long end = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (client.getStatus(id) != ConnectionStatus.CONNECTED) {
+			if (System.currentTimeMillis() > end) {
+				throw new IOException("Connection timeout: " + client.getStatus(id));
+			}
+			Thread.sleep(10);
+		}
+		while (true) {
+			try (final Socket echo = openEcho(); final Socket discard = openDiscard()) {
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > end) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	public Socket openEcho() throws IOException {
+		return open(echoEntrance, server.getEchoPort());
+	}
+
+	public Socket openDiscard() throws IOException {
+		return open(discardEntrance, server.getDiscardPort());
+	}
+
+	private Socket open(final InetSocketAddress entrance, final int targetPort) throws IOException {
+		final Socket s = new Socket();
+		try {
+			s.setTcpNoDelay(true);
+			s.connect(entrance, (int) CONNECT_TIMEOUT);
+			if (type == Forward.Type.DYNAMIC) {
+				socks5Connect(s, targetPort);
+			}
+			return s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * SOCKS5 (RFC-1928) no-auth CONNECT to 127.0.0.1:port
+	 */
+	private static void socks5Connect(final Socket s, final int port) throws IOException {
+		final OutputStream out = s.getOutputStream();
+		final DataInputStream in = new DataInputStream(s.getInputStream());
+		out.write(new byte[] {
+				5, 1, 0
+		});
+		out.flush();
+		final byte[] method = new byte[2];
+		in.readFully(method);
+		if ((method[0] != 5) || (method[1] != 0)) {
+			throw new IOException("SOCKS method rejected");
+		}
+		out.write(new byte[] {
+				5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >>> 8), (byte) port
+		});
+		out.flush();
+		final byte[] reply = new byte[10];
+		in.readFully(reply);
+		if (reply[1] != 0) {
+			throw new IOException("SOCKS connect failed: " + reply[1]);
+		}
+	}
+}
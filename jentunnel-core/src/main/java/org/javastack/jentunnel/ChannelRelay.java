@@ -0,0 +1,324 @@
+package org.javastack.jentunnel;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.client.channel.ChannelDirectTcpip;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.forward.ForwardingTunnelEndpointsProvider;
+import org.apache.sshd.common.session.ConnectionService;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relay of an accepted client to a direct-tcpip channel of a session (one thread per direction,
+ * half-close on EOF). Without target, the client is a SOCKS4/4a/5 client and the target is read from its
+ * CONNECT request (dynamic forward).
+ * <p>
+ * Received data is queued (bounded by local window, released when written to client) instead of the
+ * channel pipe, which is discarded when server closes the channel right after EOF.
+ */
+class ChannelRelay {
+	private static final Logger log = LoggerFactory.getLogger(ChannelRelay.class);
+	private static final int RELAY_BUFFER = 16 * 1024;
+	private static final long OPEN_TIMEOUT = 10000;
+	private static final int SOCKS_TIMEOUT = 10000;
+	private static final byte[] EOF = new byte[0];
+
+	private final Socket client;
+	private final ClientSession session;
+	private final SshdSocketAddress entrance;
+	private final SshdSocketAddress target;
+	private final SocketRelay.Listener listener;
+	private final AtomicInteger open = new AtomicInteger(2);
+	private final AtomicBoolean ended = new AtomicBoolean();
+	private volatile RelayChannel channel = null;
+	private int socksVersion = 0;
+
+	/**
+	 * @param client accepted socket
+	 * @param session session to open channel on
+	 * @param entrance listen address of forward (originator of channel)
+	 * @param target address to connect from server, null for SOCKS
+	 * @param listener traffic and end of relay, can be null
+	 */
+	ChannelRelay(final Socket client, final ClientSession session, final SshdSocketAddress entrance,
+			final SshdSocketAddress target, final SocketRelay.Listener listener) {
+		this.client = client;
+		this.session = session;
+		this.entrance = entrance;
+		this.target = target;
+		this.listener = listener;
+	}
+
+	/**
+	 * Open channel and relay in new threads
+	 *
+	 * @param name thread name
+	 */
+	void start(final String name) {
+		final Thread t = new Thread(() -> run());
+		t.setDaemon(true);
+		t.setName(name);
+		t.start();
+	}
+
+	private void run() {
+		final RelayChannel ch;
+		try {
+			final SshdSocketAddress remote = ((target == null) ? readSocks() : target);
+			ch = new RelayChannel(entrance, remote);
+			channel = ch;
+			// Closed by server (or session): stop reading client, data received is still written to it
+			ch.addCloseFutureListener(f -> {
+				shutdownInput();
+				ch.received.add(EOF);
+			});
+			session.getService(ConnectionService.class).registerChannel(ch);
+			ch.open().verify(OPEN_TIMEOUT);
+			if (socksVersion != 0) {
+				replySocks(true);
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn("Relay failed {}: {}", ((target == null) ? "socks" : target), String.valueOf(e));
+			if (socksVersion != 0) {
+				try {
+					replySocks(false);
+				} catch (IOException ign) {
+				}
+			}
+			end();
+			return;
+		}
+		final Thread t = new Thread(() -> {
+			try {
+				drain(ch, client.getOutputStream());
+				client.shutdownOutput();
+			} catch (IOException | InterruptedException e) {
+				open.set(1);
+			}
+			ended();
+		});
+		t.setDaemon(true);
+		t.setName(Thread.currentThread().getName() + "-in");
+		t.start();
+		try {
+			pump(client.getInputStream(), ch.getInvertedIn());
+			// Sends EOF
+			ch.getInvertedIn().close();
+		} catch (IOException e) {
+			if (!ch.isClosing()) {
+				open.set(1);
+			}
+		}
+		ended();
+	}
+
+	private void shutdownInput() {
+		try {
+			client.shutdownInput();
+		} catch (IOException ign) {
+		}
+	}
+
+	/**
+	 * Copy until EOF
+	 */
+	private void pump(final InputStream in, final OutputStream out) throws IOException {
+		final byte[] buf = new byte[RELAY_BUFFER];
+		int len;
+		while ((len = in.read(buf)) >= 0) {
+			out.write(buf, 0, len);
+			out.flush();
+			if (listener != null) {
+				listener.transferred(len);
+			}
+		}
+	}
+
+	/**
+	 * Write received data until EOF or close
+	 */
+	private void drain(final RelayChannel ch, final OutputStream out) throws IOException, InterruptedException {
+		byte[] data;
+		while ((data = ch.received.take()) != EOF) {
+			out.write(data);
+			out.flush();
+			if (listener != null) {
+				listener.transferred(data.length);
+			}
+			if (ch.isOpen()) {
+				ch.getLocalWindow().release(data.length);
+			}
+		}
+	}
+
+	/**
+	 * One direction ended, socket and channel are closed when both ended
+	 */
+	private void ended() {
+		if (open.decrementAndGet() <= 0) {
+			end();
+		}
+	}
+
+	private void end() {
+		if (!ended.compareAndSet(false, true)) {
+			return;
+		}
+		SocketRelay.closeQuietly(client);
+		final RelayChannel ch = channel;
+		if (ch != null) {
+			ch.close(false);
+		}
+		if (listener != null) {
+			listener.closed();
+		}
+	}
+
+	/**
+	 * Read CONNECT request (no authentication)
+	 *
+	 * @return requested target
+	 */
+	private SshdSocketAddress readSocks() throws IOException {
+		client.setSoTimeout(SOCKS_TIMEOUT);
+		// Unbuffered: nothing after request is consumed
+		final DataInputStream in = new DataInputStream(client.getInputStream());
+		final int version = in.readUnsignedByte();
+		final int command;
+		final String host;
+		final int port;
+		if (version == 4) {
+			socksVersion = version;
+			command = in.readUnsignedByte();
+			port = in.readUnsignedShort();
+			final byte[] ip = new byte[4];
+			in.readFully(ip);
+			readString(in); // User id
+			// SOCKS4a: 0.0.0.x and host name after user id
+			host = (((ip[0] | ip[1] | ip[2]) == 0) && (ip[3] != 0)) //
+					? readString(in) //
+					: InetAddress.getByAddress(ip).getHostAddress();
+		} else if (version == 5) {
+			final byte[] methods = new byte[in.readUnsignedByte()];
+			in.readFully(methods);
+			boolean noAuth = false;
+			for (final byte m : methods) {
+				noAuth |= (m == 0);
+			}
+			final OutputStream out = client.getOutputStream();
+			out.write(new byte[] {
+					5, (byte) (noAuth ? 0 : 0xFF)
+			});
+			out.flush();
+			if (!noAuth) {
+				throw new IOException("SOCKS5 authentication required");
+			}
+			if (in.readUnsignedByte() != 5) {
+				throw new IOException("Invalid SOCKS5 request");
+			}
+			socksVersion = version;
+			command = in.readUnsignedByte();
+			in.readUnsignedByte(); // Reserved
+			final int type = in.readUnsignedByte();
+			switch (type) {
+				case 1: { // IPv4
+					final byte[] ip = new byte[4];
+					in.readFully(ip);
+					host = InetAddress.getByAddress(ip).getHostAddress();
+					break;
+				}
+				case 3: { // Domain name
+					final byte[] name = new byte[in.readUnsignedByte()];
+					in.readFully(name);
+					host = new String(name, StandardCharsets.ISO_8859_1);
+					break;
+				}
+				case 4: { // IPv6
+					final byte[] ip = new byte[16];
+					in.readFully(ip);
+					host = InetAddress.getByAddress(ip).getHostAddress();
+					break;
+				}
+				default:
+					throw new IOException("Unsupported SOCKS5 address type: " + type);
+			}
+			port = in.readUnsignedShort();
+		} else {
+			throw new IOException("Unsupported SOCKS version: " + version);
+		}
+		if (command != 1) {
+			throw new IOException("Unsupported SOCKS command: " + command);
+		}
+		client.setSoTimeout(0);
+		return new SshdSocketAddress(host, port);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.readUnsignedByte()) != 0) {
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private void replySocks(final boolean ok) throws IOException {
+		final OutputStream out = client.getOutputStream();
+		if (socksVersion == 4) {
+			out.write(new byte[] {
+					0, (byte) (ok ? 0x5A : 0x5B), 0, 0, 0, 0, 0, 0
+			});
+		} else {
+			out.write(new byte[] {
+					5, (byte) (ok ? 0 : 1), 0, 1, 0, 0, 0, 0, 0, 0
+			});
+		}
+		out.flush();
+	}
+
+	/**
+	 * Direct-tcpip channel with data queued for relay (see {@link ChannelRelay}), tunnel entrance is the
+	 * listen address of forward (traffic metrics)
+	 */
+	private static final class RelayChannel extends ChannelDirectTcpip //
+			implements ForwardingTunnelEndpointsProvider {
+		final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+
+		RelayChannel(final SshdSocketAddress local, final SshdSocketAddress remote) {
+			super(local, remote);
+		}
+
+		@Override
+		protected void doWriteData(final byte[] data, final int off, final long len) throws IOException {
+			received.add(Arrays.copyOfRange(data, off, off + (int) len));
+		}
+
+		@Override
+		public void handleEof() throws IOException {
+			super.handleEof();
+			received.add(EOF);
+		}
+
+		@Override
+		public SshdSocketAddress getTunnelEntrance() {
+			return getLocalSocketAddress();
+		}
+
+		@Override
+		public SshdSocketAddress getTunnelExit() {
+			return getRemoteSocketAddress();
+		}
+	}
+}
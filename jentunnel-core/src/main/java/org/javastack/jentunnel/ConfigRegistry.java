@@ -0,0 +1,234 @@
+package org.javastack.jentunnel;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory configuration indexed by id and alias, with reverse indexes connection-to-forwards and
+ * identity-to-connections. Reads are lock-free, writes are serialized to keep indexes consistent.
+ * Forwards of a connection keep insertion order (immutable list replaced on write).
+ */
+class ConfigRegistry {
+	final Index<Identity> identities = new Index<Identity>();
+	final Index<Connection> connections = new Index<Connection>();
+	final Index<Forward> forwards = new Index<Forward>();
+	private final ConcurrentHashMap<String, List<Forward>> forwardsByConnection = new ConcurrentHashMap<String, List<Forward>>();
+	private final ConcurrentHashMap<String, Set<Connection>> connectionsByIdentity = new ConcurrentHashMap<String, Set<Connection>>();
+
+	synchronized void load(final ConfigData data) {
+		for (final Identity i : identities.values()) {
+			removeIdentity(i.id);
+		}
+		for (final Connection c : connections.values()) {
+			removeConnection(c.id);
+		}
+		for (final Forward f : forwards.values()) {
+			removeForward(f.id);
+		}
+		for (final Identity i : data.identities) {
+			putIdentity(i);
+		}
+		for (final Connection c : data.connections) {
+			putConnection(c);
+		}
+		for (final Forward f : data.forwards) {
+			putForward(f);
+		}
+	}
+
+	synchronized ConfigData toConfigData() {
+		return new ConfigData(identities.values(), connections.values(), forwards.values());
+	}
+
+	/**
+	 * @return replaced identity or null
+	 */
+	synchronized Identity putIdentity(final Identity identity) {
+		return identities.put(identity);
+	}
+
+	/**
+	 * @return removed identity or null
+	 */
+	synchronized Identity removeIdentity(final String id) {
+		return identities.remove(id);
+	}
+
+	/**
+	 * @return replaced connection or null
+	 */
+	synchronized Connection putConnection(final Connection connection) {
+		final Connection old = unindex(connections.put(connection));
+		if (connection.identity != null) {
+			connectionsByIdentity.computeIfAbsent(connection.identity, k -> ConcurrentHashMap.newKeySet())
+					.add(connection);
+		}
+		return old;
+	}
+
+	/**
+	 * @return removed connection or null
+	 */
+	synchronized Connection removeConnection(final String id) {
+		return unindex(connections.remove(id));
+	}
+
+	private Connection unindex(final Connection old) {
+		if ((old != null) && (old.identity != null)) {
+			removeFrom(connectionsByIdentity, old.identity, old);
+		}
+		return old;
+	}
+
+	/**
+	 * @return replaced forward or null
+	 */
+	synchronized Forward putForward(final Forward forward) {
+		final Forward old = unindex(forwards.put(forward));
+		if (forward.connections != null) {
+			for (final String c : forward.connections) {
+				forwardsByConnection.compute(c, (k, list) -> {
+					final List<Forward> copy = ((list == null) //
+							? new ArrayList<Forward>(1) //
+							: new ArrayList<Forward>(list));
+					copy.add(forward);
+					return Collections.unmodifiableList(copy);
+				});
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * @return removed forward or null
+	 */
+	synchronized Forward removeForward(final String id) {
+		return unindex(forwards.remove(id));
+	}
+
+	private Forward unindex(final Forward old) {
+		if ((old != null) && (old.connections != null)) {
+			for (final String c : old.connections) {
+				forwardsByConnection.computeIfPresent(c, (k, list) -> {
+					final List<Forward> copy = new ArrayList<Forward>(list);
+					copy.remove(old);
+					return (copy.isEmpty() ? null : Collections.unmodifiableList(copy));
+				});
+			}
+		}
+		return old;
+	}
+
+	private static <T> void removeFrom(final ConcurrentHashMap<String, Set<T>> index, final String key,
+			final T value) {
+		final Set<T> set = index.get(key);
+		if (set != null) {
+			set.remove(value);
+			if (set.isEmpty()) {
+				index.remove(key, set);
+			}
+		}
+	}
+
+	/**
+	 * @return forwards of connection in insertion order (unmodifiable, not changed by later writes)
+	 */
+	List<Forward> getForwardsByConnection(final String connectionId) {
+		final List<Forward> list = forwardsByConnection.get(connectionId);
+		return ((list == null) ? Collections.emptyList() : list);
+	}
+
+	Set<Connection> getConnectionsByIdentity(final String identityId) {
+		final Set<Connection> set = connectionsByIdentity.get(identityId);
+		return ((set == null) ? Collections.emptySet() : Collections.unmodifiableSet(set));
+	}
+
+	/**
+	 * Items by id and alias (alias may be duplicated, first one is indexed), iteration keeps insertion order
+	 */
+	static class Index<T extends AliasID> {
+		private final ConcurrentHashMap<String, T> byId = new ConcurrentHashMap<String, T>();
+		private final CopyOnWriteArrayList<T> ordered = new CopyOnWriteArrayList<T>();
+		private final ConcurrentHashMap<String, T> byAlias = new ConcurrentHashMap<String, T>();
+		private final Set<T> view = Collections.unmodifiableSet(new ValueSet());
+
+		T get(final String id) {
+			return byId.get(id);
+		}
+
+		T getByAlias(final String alias) {
+			return byAlias.get(alias);
+		}
+
+		boolean existAlias(final String alias) {
+			return byAlias.containsKey(alias);
+		}
+
+		int size() {
+			return byId.size();
+		}
+
+		/**
+		 * @return live unmodifiable view
+		 */
+		Set<T> values() {
+			return view;
+		}
+
+		/**
+		 * Called with registry lock held
+		 */
+		T put(final T item) {
+			final T old = remove(item.getID());
+			byId.put(item.getID(), item);
+			ordered.add(item);
+			if (item.getAlias() != null) {
+				byAlias.putIfAbsent(item.getAlias(), item);
+			}
+			return old;
+		}
+
+		/**
+		 * Called with registry lock held
+		 */
+		T remove(final String id) {
+			final T old = byId.remove(id);
+			if (old != null) {
+				ordered.remove(old);
+			}
+			if ((old != null) && (old.getAlias() != null) && byAlias.remove(old.getAlias(), old)) {
+				// Reindex duplicated alias (rare)
+				for (final T e : byId.values()) {
+					if (old.getAlias().equals(e.getAlias())) {
+						byAlias.putIfAbsent(e.getAlias(), e);
+						break;
+					}
+				}
+			}
+			return old;
+		}
+
+		private final class ValueSet extends AbstractSet<T> {
+			@Override
+			public Iterator<T> iterator() {
+				return ordered.iterator();
+			}
+
+			@Override
+			public int size() {
+				return ordered.size();
+			}
+
+			@Override
+			public boolean contains(final Object o) {
+				return (o instanceof AliasID) && o.equals(byId.get(((AliasID) o).getID()));
+			}
+		}
+	}
+}
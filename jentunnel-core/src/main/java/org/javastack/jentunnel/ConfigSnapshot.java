@@ -0,0 +1,319 @@
+package org.javastack.jentunnel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.javastack.packer.Packer;
+import org.javastack.packer.Packer.AutoExtendPolicy;
+import org.javastack.packer.Packer.InvalidInputDataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary copy of configuration (packer) next to YAML file: startup skips YAML parsing. Snapshot is
+ * valid only for the exact YAML it was built from (mtime, size and CRC32 of content) and protected
+ * by packer CRC, anything else is a cache miss (YAML is the source of truth).
+ */
+class ConfigSnapshot {
+	private static final Logger log = LoggerFactory.getLogger(ConfigSnapshot.class);
+	private static final String MAGIC = "jentunnel-config-snapshot:7";
+
+	/**
+	 * @param snapshot binary file
+	 * @param yaml source file
+	 * @return configuration or null if snapshot is missing, stale or corrupt
+	 */
+	static ConfigData read(final File snapshot, final File yaml) {
+		if (!snapshot.isFile() || !yaml.isFile()) {
+			return null;
+		}
+		try {
+			final byte[] raw = Files.readAllBytes(snapshot.toPath());
+			final Packer p = newPacker(raw.length);
+			p.loadBytes(raw);
+			if (!MAGIC.equals(p.getString())) {
+				log.info("Config snapshot unknown format: {}", snapshot);
+				return null;
+			}
+			final long mtime = p.getVLong();
+			final long size = p.getVLong();
+			final long crc = p.getVLong();
+			if ((mtime != yaml.lastModified()) || (size != yaml.length()) //
+					|| (crc != crc(Files.readAllBytes(yaml.toPath())))) {
+				log.info("Config snapshot stale: {}", snapshot);
+				return null;
+			}
+			return readData(p);
+		} catch (IOException | InvalidInputDataException | RuntimeException e) {
+			log.warn("Config snapshot invalid {}: {}", snapshot, String.valueOf(e));
+			return null;
+		}
+	}
+
+	/**
+	 * Write snapshot (temporary file and rename), errors are only logged
+	 *
+	 * @param snapshot binary file
+	 * @param yamlModified mtime of source file
+	 * @param yamlContent exact content of source file
+	 * @param data configuration parsed from (or dumped to) source
+	 */
+	static void write(final File snapshot, final long yamlModified, final byte[] yamlContent,
+			final ConfigData data) {
+		final long start = System.nanoTime();
+		final Path path = snapshot.toPath();
+		final Path tmp = path.resolveSibling(snapshot.getName() + ".tmp");
+		try {
+			final Packer p = newPacker(4096);
+			p.putString(MAGIC);
+			p.putVLong(yamlModified);
+			p.putVLong(yamlContent.length);
+			p.putVLong(crc(yamlContent));
+			writeData(p, data);
+			Files.write(tmp, p.outputBytes());
+			try {
+				Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			log.info("Config snapshot written: {} ({}ms)", snapshot, (System.nanoTime() - start) / 1000000L);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Unable to write config snapshot {}: {}", snapshot, String.valueOf(e));
+			snapshot.delete();
+		}
+	}
+
+	private static Packer newPacker(final int size) {
+		final Packer p = new Packer(Math.max(64, size));
+		p.setAutoExtendPolicy(AutoExtendPolicy.AUTO);
+		p.useCRC(true);
+		return p;
+	}
+
+	private static long crc(final byte[] content) {
+		final CRC32 crc = new CRC32();
+		crc.update(content, 0, content.length);
+		return crc.getValue();
+	}
+
+	private static void writeData(final Packer p, final ConfigData data) {
+		p.putVInt(data.identities.size());
+		for (final Identity i : data.identities) {
+			putNullable(p, i.id);
+			putNullable(p, i.alias);
+			putNullable(p, i.username);
+			putNullable(p, i.password);
+			putNullable(p, i.keyfile);
+		}
+		p.putVInt(data.connections.size());
+		for (final Connection c : data.connections) {
+			putNullable(p, c.id);
+			putNullable(p, c.alias);
+			putNullable(p, c.address);
+			putSigned(p, c.port);
+			putNullable(p, c.identity);
+			p.putVInt((c.isAutoStart ? 1 : 0) | (c.isAutoReconnect ? 2 : 0) | (c.heartbeatAdaptive ? 4 : 0) //
+					| (c.isOnDemand ? 8 : 0) | (c.windowAutoTune ? 16 : 0));
+			putSigned(p, c.priority);
+			putSigned(p, c.heartbeatInterval);
+			putSigned(p, c.heartbeatReplyWait);
+			putSigned(p, c.heartbeatMaxMissed);
+			putSigned(p, c.idleTimeout);
+			putSigned(p, c.onDemandIdle);
+			putNullable(p, c.jumpHost);
+			putSigned(p, c.poolSize);
+			p.putVInt((c.poolBalance == null) ? 0 : (c.poolBalance.ordinal() + 1));
+			putSigned(p, c.windowSize);
+			putSigned(p, c.maxPacketSize);
+			putSigned(p, c.rekeyBytes);
+			putSigned(p, c.rekeyTime);
+			p.putVInt((c.cryptoProfile == null) ? 0 : (c.cryptoProfile.ordinal() + 1));
+			putNullable(p, c.ciphers);
+			putNullable(p, c.macs);
+			putNullable(p, c.kexAlgorithms);
+			final List<ReconnectPolicy> policies = c.reconnectPolicies;
+			p.putVInt((policies == null) ? 0 : (policies.size() + 1));
+			if (policies != null) {
+				for (final ReconnectPolicy r : policies) {
+					p.putVInt((r.error == null) ? 0 : (r.error.ordinal() + 1));
+					p.putVInt(r.retry ? 1 : 0);
+					putSigned(p, r.minSleep);
+					putSigned(p, r.maxSleep);
+				}
+			}
+		}
+		p.putVInt(data.forwards.size());
+		for (final Forward f : data.forwards) {
+			p.putVInt(f.getType().ordinal());
+			putNullable(p, f.id);
+			putNullable(p, f.alias);
+			p.putVInt((f.connections == null) ? 0 : (f.connections.size() + 1));
+			if (f.connections != null) {
+				for (final String c : f.connections) {
+					putNullable(p, c);
+				}
+			}
+			switch (f.getType()) {
+				case LOCAL: {
+					final Forward.Local l = (Forward.Local) f;
+					putNullable(p, l.localBindHostname);
+					putSigned(p, l.localBindPort);
+					putNullable(p, l.remoteHostname);
+					putSigned(p, l.remotePort);
+					p.putVInt(f.getPortCount());
+					break;
+				}
+				case REMOTE: {
+					final Forward.Remote r = (Forward.Remote) f;
+					putNullable(p, r.localHostname);
+					putSigned(p, r.localPort);
+					putNullable(p, r.remoteBindHostname);
+					putSigned(p, r.remoteBindPort);
+					p.putVInt(f.getPortCount());
+					break;
+				}
+				case DYNAMIC: {
+					final Forward.Dynamic d = (Forward.Dynamic) f;
+					putNullable(p, d.localBindHostname);
+					putSigned(p, d.localBindPort);
+					break;
+				}
+			}
+		}
+	}
+
+	private static ConfigData readData(final Packer p) {
+		final int identityCount = p.getVInt();
+		final List<Identity> identities = new ArrayList<Identity>(identityCount);
+		for (int n = 0; n < identityCount; n++) {
+			identities.add(Identity.withEncodedPassword(getNullable(p), getNullable(p), //
+					getNullable(p), getNullable(p), getNullable(p)));
+		}
+		final int connectionCount = p.getVInt();
+		final List<Connection> connections = new ArrayList<Connection>(connectionCount);
+		final ReconnectPolicy.ErrorClass[] errors = ReconnectPolicy.ErrorClass.values();
+		final Connection.PoolBalance[] balances = Connection.PoolBalance.values();
+		final Connection.CryptoProfile[] profiles = Connection.CryptoProfile.values();
+		for (int n = 0; n < connectionCount; n++) {
+			final String id = getNullable(p);
+			final String alias = getNullable(p);
+			final String address = getNullable(p);
+			final int port = (int) getSigned(p);
+			final String identity = getNullable(p);
+			final int flags = p.getVInt();
+			final int priority = (int) getSigned(p);
+			final long heartbeatInterval = getSigned(p);
+			final long heartbeatReplyWait = getSigned(p);
+			final int heartbeatMaxMissed = (int) getSigned(p);
+			final long idleTimeout = getSigned(p);
+			final long onDemandIdle = getSigned(p);
+			final String jumpHost = getNullable(p);
+			final int poolSize = (int) getSigned(p);
+			final int poolBalance = p.getVInt();
+			final long windowSize = getSigned(p);
+			final long maxPacketSize = getSigned(p);
+			final long rekeyBytes = getSigned(p);
+			final long rekeyTime = getSigned(p);
+			final int cryptoProfile = p.getVInt();
+			final String ciphers = getNullable(p);
+			final String macs = getNullable(p);
+			final String kexAlgorithms = getNullable(p);
+			final int policyCount = p.getVInt() - 1;
+			List<ReconnectPolicy> policies = null;
+			if (policyCount >= 0) {
+				policies = new ArrayList<ReconnectPolicy>(policyCount);
+				for (int k = 0; k < policyCount; k++) {
+					final int error = p.getVInt();
+					policies.add(new ReconnectPolicy(((error == 0) ? null : errors[error - 1]), //
+							(p.getVInt() != 0), getSigned(p), getSigned(p)));
+				}
+			}
+			connections.add(new Connection.Builder() //
+					.id(id).alias(alias).address(address).port(port).identity(identity) //
+					.autoStart((flags & 1) != 0).autoReconnect((flags & 2) != 0) //
+					.priority(priority).reconnectPolicies(policies) //
+					.heartbeatInterval(heartbeatInterval).heartbeatReplyWait(heartbeatReplyWait) //
+					.heartbeatMaxMissed(heartbeatMaxMissed).idleTimeout(idleTimeout) //
+					.heartbeatAdaptive((flags & 4) != 0) //
+					.onDemand((flags & 8) != 0).onDemandIdle(onDemandIdle) //
+					.jumpHost(jumpHost) //
+					.poolSize(poolSize).poolBalance((poolBalance == 0) ? null : balances[poolBalance - 1]) //
+					.windowSize(windowSize).maxPacketSize(maxPacketSize).windowAutoTune((flags & 16) != 0) //
+					.rekeyBytes(rekeyBytes).rekeyTime(rekeyTime) //
+					.cryptoProfile((cryptoProfile == 0) ? null : profiles[cryptoProfile - 1]) //
+					.ciphers(ciphers).macs(macs).kexAlgorithms(kexAlgorithms) //
+					.build());
+		}
+		final int forwardCount = p.getVInt();
+		final List<Forward> forwards = new ArrayList<Forward>(forwardCount);
+		final Forward.Type[] types = Forward.Type.values();
+		for (int n = 0; n < forwardCount; n++) {
+			final Forward.Type type = types[p.getVInt()];
+			final String id = getNullable(p);
+			final String alias = getNullable(p);
+			final int connectionRefs = p.getVInt() - 1;
+			List<String> refs = null;
+			if (connectionRefs >= 0) {
+				refs = new ArrayList<String>(connectionRefs);
+				for (int k = 0; k < connectionRefs; k++) {
+					refs.add(getNullable(p));
+				}
+			}
+			switch (type) {
+				case LOCAL: {
+					final String localBindHostname = getNullable(p);
+					final int localBindPort = (int) getSigned(p);
+					final String remoteHostname = getNullable(p);
+					final int remotePort = (int) getSigned(p);
+					forwards.add(Forward.valueOf(type, id, alias, refs, //
+							localBindHostname, localBindPort, remoteHostname, remotePort, p.getVInt()));
+					break;
+				}
+				case REMOTE: {
+					final String localHostname = getNullable(p);
+					final int localPort = (int) getSigned(p);
+					final String remoteBindHostname = getNullable(p);
+					final int remoteBindPort = (int) getSigned(p);
+					forwards.add(Forward.valueOf(type, id, alias, refs, //
+							localHostname, localPort, remoteBindHostname, remoteBindPort, p.getVInt()));
+					break;
+				}
+				case DYNAMIC:
+					forwards.add(new Forward.Dynamic(id, alias, refs, //
+							getNullable(p), (int) getSigned(p)));
+					break;
+			}
+		}
+		return new ConfigData(identities, connections, forwards);
+	}
+
+	private static void putNullable(final Packer p, final String s) {
+		p.putVInt((s == null) ? 0 : 1);
+		if (s != null) {
+			p.putString(s);
+		}
+	}
+
+	private static String getNullable(final Packer p) {
+		return ((p.getVInt() == 0) ? null : p.getString());
+	}
+
+	/**
+	 * ZigZag, small negative values stay small
+	 */
+	private static void putSigned(final Packer p, final long v) {
+		p.putVLong((v << 1) ^ (v >> 63));
+	}
+
+	private static long getSigned(final Packer p) {
+		final long v = p.getVLong();
+		return ((v >>> 1) ^ -(v & 1));
+	}
+}
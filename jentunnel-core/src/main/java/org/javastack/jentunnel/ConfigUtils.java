@@ -1,33 +1,82 @@
 package org.javastack.jentunnel;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.DumperOptions.LineBreak;
 import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.TypeDescription;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
+import org.yaml.snakeyaml.error.YAMLException;
 import org.yaml.snakeyaml.nodes.Tag;
 import org.yaml.snakeyaml.representer.Representer;
 
 public class ConfigUtils {
+	private static final Logger log = LoggerFactory.getLogger(ConfigUtils.class);
 	private static final String DEFAULT_FILE_NAME = ConfigUtils.class.getPackage().getName() + ".config.yaml";
+	private static final String END_MARK = "# END #";
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+	private static final boolean DEFAULT_USE_SNAPSHOT = Boolean
+			.parseBoolean(System.getProperty("jentunnel.config.snapshot", "true"));
+	private static Yaml yaml = null;
 	private final String configDirectory;
+	private String lastSaved = null;
+	private long lastSavedModified = 0;
+	private long lastSavedSize = -1;
 
 	public ConfigUtils(final String configDirectory) {
 		this.configDirectory = configDirectory;
 	}
 
+	/**
+	 * @return modification time of configuration file (0 if not exist)
+	 */
+	public long lastModified() {
+		return new File(configDirectory, DEFAULT_FILE_NAME).lastModified();
+	}
+
+	/**
+	 * Load from binary snapshot if it matches YAML file, else parse YAML (and refresh snapshot)
+	 */
 	public ConfigData load() throws IOException {
-		return load(configDirectory, DEFAULT_FILE_NAME);
+		if (DEFAULT_USE_SNAPSHOT) {
+			final long start = System.nanoTime();
+			final ConfigData data = ConfigSnapshot.read(new File(configDirectory, DEFAULT_FILE_NAME + SNAPSHOT_SUFFIX),
+					new File(configDirectory, DEFAULT_FILE_NAME));
+			if (data != null) {
+				log.info("Config snapshot loaded: {}ms", (System.nanoTime() - start) / 1000000L);
+				return data.updateHightWaterMark();
+			}
+		}
+		return load(configDirectory, DEFAULT_FILE_NAME, DEFAULT_USE_SNAPSHOT);
+	}
+
+	/**
+	 * Parse YAML file (snapshot is ignored)
+	 */
+	public ConfigData loadYAML() throws IOException {
+		return load(configDirectory, DEFAULT_FILE_NAME, false);
 	}
 
 	public void save(final ConfigData cfg) throws IOException {
@@ -35,28 +84,110 @@ public class ConfigUtils {
 	}
 
 	protected ConfigData load(final String configDirectory, final String file) throws IOException {
+		return load(configDirectory, file, false);
+	}
+
+	protected ConfigData load(final String configDirectory, final String file, final boolean writeSnapshot)
+			throws IOException {
 		final File f = new File(configDirectory, file);
+		final File ff = new File(configDirectory, file + ".old");
 		if (f.exists()) {
-			return readFileYAML(f).updateHightWaterMark();
-		} else {
+			try {
+				// Snapshot is bound to the exact content parsed
+				final long modified = f.lastModified();
+				final byte[] content = Files.readAllBytes(f.toPath());
+				final ConfigData data = readYAML(content).updateHightWaterMark();
+				if (writeSnapshot) {
+					ConfigSnapshot.write(new File(configDirectory, file + SNAPSHOT_SUFFIX), modified, content, data);
+				}
+				return data;
+			} catch (YAMLException e) {
+				// Truncated by a crash while saving (older versions wrote in place), other errors are
+				// reported (hand edited)
+				if (!ff.exists() || isComplete(f)) {
+					throw new IOException("Invalid configuration " + f + ": " + e.getMessage(), e);
+				}
+				log.error("Truncated configuration {}: {}, using backup {}", f, e.getMessage(), ff);
+			}
+		} else if (!ff.exists()) {
 			return new ConfigData();
 		}
+		return readFileYAML(ff).updateHightWaterMark();
 	}
 
-	protected void save(final String configDirectory, final String file, final ConfigData data)
+	/**
+	 * Write to temporary file, fsync and atomic rename (file is always complete, old or new), previous
+	 * file is kept as ".old". Write is skipped if content is the same of last save and file is still the
+	 * one written then (mtime/size, not edited or replaced by others).
+	 */
+	protected synchronized void save(final String configDirectory, final String file, final ConfigData data)
 			throws IOException {
 		final File f = new File(configDirectory, file);
+		final String body = dumpYAML(data);
+		if (body.equals(lastSaved) && f.exists() //
+				&& (f.lastModified() == lastSavedModified) && (f.length() == lastSavedSize)) {
+			log.info("Configuration unchanged, not written: {}", f);
+			return;
+		}
+		final Path path = f.toPath();
+		final Path tmp = path.resolveSibling(file + ".tmp");
+		final byte[] content = ("# Creation date: " + getTimestamp() + " #\r\n" //
+				+ body + END_MARK + "\r\n").getBytes(Charset.defaultCharset());
+		try (final FileOutputStream os = new FileOutputStream(tmp.toFile())) {
+			os.write(content);
+			os.getFD().sync();
+		}
 		if (f.exists()) {
-			final File ff = new File(configDirectory, file + ".old");
-			if (ff.exists()) {
-				ff.delete();
+			// Copy (not link): file may be edited in place by others
+			Files.copy(path, path.resolveSibling(file + ".old"), StandardCopyOption.REPLACE_EXISTING);
+		}
+		try {
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		syncDirectory(path.toAbsolutePath().getParent());
+		lastSaved = body;
+		lastSavedModified = f.lastModified();
+		lastSavedSize = f.length();
+		if (DEFAULT_USE_SNAPSHOT) {
+			ConfigSnapshot.write(new File(configDirectory, file + SNAPSHOT_SUFFIX), f.lastModified(), content, data);
+		}
+	}
+
+	private static boolean isComplete(final File file) throws IOException {
+		final List<String> lines = Files.readAllLines(file.toPath(), Charset.defaultCharset());
+		for (int i = lines.size() - 1; i >= 0; i--) {
+			final String line = lines.get(i).trim();
+			if (!line.isEmpty()) {
+				return line.equals(END_MARK);
 			}
-			f.renameTo(ff);
 		}
-		saveFileYAML(f, data);
+		return false;
 	}
 
-	protected static Yaml getYaml() {
+	/**
+	 * Persist rename (POSIX), not supported on Windows (ignored)
+	 */
+	private static void syncDirectory(final Path dir) {
+		try (final FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	/**
+	 * @return shared instance (built once, slow), use synchronized on it
+	 */
+	protected static synchronized Yaml getYaml() {
+		if (yaml == null) {
+			yaml = newYaml();
+		}
+		return yaml;
+	}
+
+	private static Yaml newYaml() {
 		// https://yaml.org/
 		// https://bitbucket.org/asomov/snakeyaml/wiki/Documentation
 		// https://bitbucket.org/asomov/snakeyaml-engine/wiki/Documentation
@@ -70,6 +201,9 @@ public class ConfigUtils {
 				put(Forward.Dynamic.class, "!dynamic");
 				put(Forward.Local.class, "!local");
 				put(Forward.Remote.class, "!remote");
+				put(Forward.LocalRange.class, "!local-range");
+				put(Forward.RemoteRange.class, "!remote-range");
+				put(ReconnectPolicy.class, "!reconnect");
 			}
 		};
 		final DumperOptions options = new DumperOptions();
@@ -87,15 +221,10 @@ public class ConfigUtils {
 		return new Yaml(constructor, representer, options);
 	}
 
-	protected static void saveFileYAML(final File file, final ConfigData data) throws IOException {
-		try (final FileWriter out = new FileWriter(file)) {
-			final Yaml yaml = getYaml();
-			out.write("# Creation date: ");
-			out.write(getTimestamp());
-			out.write(" #\r\n");
-			yaml.dump(data, out);
-			out.write("# END #\r\n");
-			out.flush();
+	protected static String dumpYAML(final ConfigData data) {
+		final Yaml yaml = getYaml();
+		synchronized (yaml) {
+			return yaml.dump(data);
 		}
 	}
 
@@ -103,10 +232,37 @@ public class ConfigUtils {
 		return new SimpleDateFormat("YYYY-MM-dd'T'HH:mm:ss.SSS").format(new Date());
 	}
 
+	protected static ConfigData readYAML(final byte[] content) throws IOException {
+		try (final Reader in = new InputStreamReader(new ByteArrayInputStream(content))) {
+			final Yaml yaml = getYaml();
+			synchronized (yaml) {
+				return validate(yaml.load(in));
+			}
+		}
+	}
+
 	protected static ConfigData readFileYAML(final File file) throws IOException {
 		try (final FileReader in = new FileReader(file)) {
 			final Yaml yaml = getYaml();
-			return yaml.load(in);
+			synchronized (yaml) {
+				return validate(yaml.load(in));
+			}
+		}
+	}
+
+	/**
+	 * Fields set by YAML are not checked by constructors (port ranges)
+	 */
+	private static ConfigData validate(final ConfigData data) throws IOException {
+		if ((data != null) && (data.forwards != null)) {
+			for (final Forward f : data.forwards) {
+				try {
+					f.validate();
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Invalid forward " + f.alias + ": " + e.getMessage(), e);
+				}
+			}
 		}
+		return data;
 	}
 }
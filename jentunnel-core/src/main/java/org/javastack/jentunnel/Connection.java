@@ -1,9 +1,16 @@
 package org.javastack.jentunnel;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.sshd.common.util.net.SshdSocketAddress;
 
 public class Connection implements Comparable<Connection>, AliasID {
 	public static final Connection NULL = new Connection();
+	public static final long DEFAULT_HEARTBEAT_INTERVAL = 10000; // 10 seconds
+	public static final long DEFAULT_HEARTBEAT_REPLY_WAIT = 15000; // 15 seconds
+	public static final int DEFAULT_HEARTBEAT_MAX_MISSED = 3;
+	public static final long DEFAULT_ON_DEMAND_IDLE = 300000; // 5 minutes
 	public final String id;
 	public final String alias;
 	public final String address;
@@ -12,23 +19,150 @@ public class Connection implements Comparable<Connection>, AliasID {
 
 	public final boolean isAutoStart;
 	public final boolean isAutoReconnect;
+	/**
+	 * Autostart order, higher first
+	 */
+	public final int priority;
+	/**
+	 * Reconnect policies overriding {@link ReconnectPolicy#DEFAULTS}
+	 */
+	public final List<ReconnectPolicy> reconnectPolicies;
+	/**
+	 * Heartbeat (keepalive@openssh.com) settings in millis, 0 for default
+	 */
+	public final long heartbeatInterval;
+	public final long heartbeatReplyWait;
+	public final int heartbeatMaxMissed;
+	/**
+	 * Close session after this millis without traffic, 0 for default
+	 */
+	public final long idleTimeout;
+	/**
+	 * Skip heartbeats (and stretch interval) while session receives traffic, probe when idle
+	 */
+	public final boolean heartbeatAdaptive;
+	/**
+	 * Listen on local/dynamic forwards and connect on first client instead of connecting on start
+	 */
+	public final boolean isOnDemand;
+	/**
+	 * On-demand: close session after this millis without open channels, 0 for default
+	 */
+	public final long onDemandIdle;
+	/**
+	 * Id or alias of connection used as jump host (bastion), null for direct; connections through same
+	 * jump host share its session
+	 */
+	public final String jumpHost;
+	/**
+	 * SSH sessions of connection (0 or 1 for single), channels of local and dynamic forwards are spread
+	 * over them by {@link #poolBalance}
+	 */
+	public final int poolSize;
+	public final PoolBalance poolBalance;
+	/**
+	 * Channel receive window and max packet size in bytes, 0 for default (MINA)
+	 */
+	public final long windowSize;
+	public final long maxPacketSize;
+	/**
+	 * Size receive window of new channels to bandwidth-delay product (starts at {@link #windowSize})
+	 */
+	public final boolean windowAutoTune;
+	/**
+	 * Re-exchange keys after this bytes or millis, 0 for default (MINA)
+	 */
+	public final long rekeyBytes;
+	public final long rekeyTime;
+	/**
+	 * Algorithm preference profile, null for default (MINA)
+	 */
+	public final CryptoProfile cryptoProfile;
+	/**
+	 * Algorithm lists (OpenSSH style, comma separated, preferred first) overriding {@link #cryptoProfile},
+	 * null for profile
+	 */
+	public final String ciphers;
+	public final String macs;
+	public final String kexAlgorithms;
 
 	private transient SshdSocketAddress addr = null;
 
 	Connection() {
-		this(null, null, "", 0, "", false, false);
+		this(new Builder().address("").identity(""));
 	}
 
 	public Connection(final String id, final String alias, final String address, final int port,
 			final String identity, //
 			final boolean isAutoStart, final boolean isAutoReconnect) {
-		this.id = (id == null ? UID.generate() : id);
-		this.alias = alias;
-		this.address = address;
-		this.port = port;
-		this.identity = identity;
-		this.isAutoStart = isAutoStart;
-		this.isAutoReconnect = isAutoReconnect;
+		this(new Builder().id(id).alias(alias).address(address).port(port).identity(identity) //
+				.autoStart(isAutoStart).autoReconnect(isAutoReconnect));
+	}
+
+	private Connection(final Builder b) {
+		this.id = (b.id == null ? UID.generate() : b.id);
+		this.alias = b.alias;
+		this.address = b.address;
+		this.port = b.port;
+		this.identity = b.identity;
+		this.isAutoStart = b.isAutoStart;
+		this.isAutoReconnect = b.isAutoReconnect;
+		this.priority = b.priority;
+		this.reconnectPolicies = b.reconnectPolicies;
+		this.heartbeatInterval = b.heartbeatInterval;
+		this.heartbeatReplyWait = b.heartbeatReplyWait;
+		this.heartbeatMaxMissed = b.heartbeatMaxMissed;
+		this.idleTimeout = b.idleTimeout;
+		this.heartbeatAdaptive = b.heartbeatAdaptive;
+		this.isOnDemand = b.isOnDemand;
+		this.onDemandIdle = b.onDemandIdle;
+		this.jumpHost = b.jumpHost;
+		this.poolSize = b.poolSize;
+		this.poolBalance = b.poolBalance;
+		this.windowSize = b.windowSize;
+		this.maxPacketSize = b.maxPacketSize;
+		this.windowAutoTune = b.windowAutoTune;
+		this.rekeyBytes = b.rekeyBytes;
+		this.rekeyTime = b.rekeyTime;
+		this.cryptoProfile = b.cryptoProfile;
+		this.ciphers = b.ciphers;
+		this.macs = b.macs;
+		this.kexAlgorithms = b.kexAlgorithms;
+	}
+
+	/**
+	 * @return builder with all settings of this connection (id included), to copy with overrides
+	 */
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	public ReconnectPolicy getReconnectPolicy(final ReconnectPolicy.ErrorClass error) {
+		return ReconnectPolicy.select(reconnectPolicies, error);
+	}
+
+	public long getHeartbeatInterval() {
+		return ((heartbeatInterval > 0) ? heartbeatInterval : DEFAULT_HEARTBEAT_INTERVAL);
+	}
+
+	public long getHeartbeatReplyWait() {
+		return ((heartbeatReplyWait > 0) ? heartbeatReplyWait : DEFAULT_HEARTBEAT_REPLY_WAIT);
+	}
+
+	public int getHeartbeatMaxMissed() {
+		return ((heartbeatMaxMissed > 0) ? heartbeatMaxMissed : DEFAULT_HEARTBEAT_MAX_MISSED);
+	}
+
+	public long getOnDemandIdle() {
+		return ((onDemandIdle > 0) ? onDemandIdle : DEFAULT_ON_DEMAND_IDLE);
+	}
+
+	public boolean isPooled() {
+		return ((poolSize > 1) && !isOnDemand);
+	}
+
+	public PoolBalance getPoolBalance() {
+		return ((poolBalance == null) ? PoolBalance.CHANNELS : poolBalance);
 	}
 
 	public SshdSocketAddress getSocketAddress() {
@@ -38,6 +172,51 @@ public class Connection implements Comparable<Connection>, AliasID {
 		return addr;
 	}
 
+	public boolean hasJumpHost() {
+		return ((jumpHost != null) && !jumpHost.isEmpty());
+	}
+
+	/**
+	 * @param o other connection
+	 * @return true if both reach same server with same identity and route (other settings ignored)
+	 */
+	public boolean isSameEndpoint(final Connection o) {
+		return (o != null) && (port == o.port) //
+				&& String.valueOf(address).equals(String.valueOf(o.address)) //
+				&& String.valueOf(jumpHost).equals(String.valueOf(o.jumpHost)) //
+				&& String.valueOf(identity).equals(String.valueOf(o.identity));
+	}
+
+	/**
+	 * @param o other connection
+	 * @return true if both use same pool of sessions
+	 */
+	public boolean isSamePool(final Connection o) {
+		return (o != null) && (isPooled() == o.isPooled()) //
+				&& (!isPooled() || ((poolSize == o.poolSize) && (getPoolBalance() == o.getPoolBalance())));
+	}
+
+	/**
+	 * @param o other connection
+	 * @return true if both use same window and rekey settings
+	 */
+	public boolean isSameTuning(final Connection o) {
+		return (o != null) && (windowSize == o.windowSize) && (maxPacketSize == o.maxPacketSize) //
+				&& (windowAutoTune == o.windowAutoTune) //
+				&& (rekeyBytes == o.rekeyBytes) && (rekeyTime == o.rekeyTime);
+	}
+
+	/**
+	 * @param o other connection
+	 * @return true if both use same algorithm preferences
+	 */
+	public boolean isSameCrypto(final Connection o) {
+		return (o != null) && (cryptoProfile == o.cryptoProfile) //
+				&& String.valueOf(ciphers).equals(String.valueOf(o.ciphers)) //
+				&& String.valueOf(macs).equals(String.valueOf(o.macs)) //
+				&& String.valueOf(kexAlgorithms).equals(String.valueOf(o.kexAlgorithms));
+	}
+
 	@Override
 	public String toString() {
 		return "id=" + id + " alias=" + alias //
@@ -100,4 +279,256 @@ public class Connection implements Comparable<Connection>, AliasID {
 			}
 		};
 	}
+
+	/**
+	 * Settings of a new connection, see fields of {@link Connection} (unset ones are default: 0, false or
+	 * null)
+	 */
+	public static final class Builder {
+		private String id;
+		private String alias;
+		private String address;
+		private int port;
+		private String identity;
+		private boolean isAutoStart;
+		private boolean isAutoReconnect;
+		private int priority;
+		private List<ReconnectPolicy> reconnectPolicies = Collections.emptyList();
+		private long heartbeatInterval;
+		private long heartbeatReplyWait;
+		private int heartbeatMaxMissed;
+		private long idleTimeout;
+		private boolean heartbeatAdaptive;
+		private boolean isOnDemand;
+		private long onDemandIdle;
+		private String jumpHost;
+		private int poolSize;
+		private PoolBalance poolBalance;
+		private long windowSize;
+		private long maxPacketSize;
+		private boolean windowAutoTune;
+		private long rekeyBytes;
+		private long rekeyTime;
+		private CryptoProfile cryptoProfile;
+		private String ciphers;
+		private String macs;
+		private String kexAlgorithms;
+
+		public Builder() {
+		}
+
+		private Builder(final Connection c) {
+			this.id = c.id;
+			this.alias = c.alias;
+			this.address = c.address;
+			this.port = c.port;
+			this.identity = c.identity;
+			this.isAutoStart = c.isAutoStart;
+			this.isAutoReconnect = c.isAutoReconnect;
+			this.priority = c.priority;
+			this.reconnectPolicies = c.reconnectPolicies;
+			this.heartbeatInterval = c.heartbeatInterval;
+			this.heartbeatReplyWait = c.heartbeatReplyWait;
+			this.heartbeatMaxMissed = c.heartbeatMaxMissed;
+			this.idleTimeout = c.idleTimeout;
+			this.heartbeatAdaptive = c.heartbeatAdaptive;
+			this.isOnDemand = c.isOnDemand;
+			this.onDemandIdle = c.onDemandIdle;
+			this.jumpHost = c.jumpHost;
+			this.poolSize = c.poolSize;
+			this.poolBalance = c.poolBalance;
+			this.windowSize = c.windowSize;
+			this.maxPacketSize = c.maxPacketSize;
+			this.windowAutoTune = c.windowAutoTune;
+			this.rekeyBytes = c.rekeyBytes;
+			this.rekeyTime = c.rekeyTime;
+			this.cryptoProfile = c.cryptoProfile;
+			this.ciphers = c.ciphers;
+			this.macs = c.macs;
+			this.kexAlgorithms = c.kexAlgorithms;
+		}
+
+		public Builder id(final String id) {
+			this.id = id;
+			return this;
+		}
+
+		public Builder alias(final String alias) {
+			this.alias = alias;
+			return this;
+		}
+
+		public Builder address(final String address) {
+			this.address = address;
+			return this;
+		}
+
+		public Builder port(final int port) {
+			this.port = port;
+			return this;
+		}
+
+		public Builder identity(final String identity) {
+			this.identity = identity;
+			return this;
+		}
+
+		public Builder autoStart(final boolean isAutoStart) {
+			this.isAutoStart = isAutoStart;
+			return this;
+		}
+
+		public Builder autoReconnect(final boolean isAutoReconnect) {
+			this.isAutoReconnect = isAutoReconnect;
+			return this;
+		}
+
+		public Builder priority(final int priority) {
+			this.priority = priority;
+			return this;
+		}
+
+		public Builder reconnectPolicies(final List<ReconnectPolicy> reconnectPolicies) {
+			this.reconnectPolicies = reconnectPolicies;
+			return this;
+		}
+
+		public Builder heartbeatInterval(final long heartbeatInterval) {
+			this.heartbeatInterval = heartbeatInterval;
+			return this;
+		}
+
+		public Builder heartbeatReplyWait(final long heartbeatReplyWait) {
+			this.heartbeatReplyWait = heartbeatReplyWait;
+			return this;
+		}
+
+		public Builder heartbeatMaxMissed(final int heartbeatMaxMissed) {
+			this.heartbeatMaxMissed = heartbeatMaxMissed;
+			return this;
+		}
+
+		public Builder idleTimeout(final long idleTimeout) {
+			this.idleTimeout = idleTimeout;
+			return this;
+		}
+
+		public Builder heartbeatAdaptive(final boolean heartbeatAdaptive) {
+			this.heartbeatAdaptive = heartbeatAdaptive;
+			return this;
+		}
+
+		public Builder onDemand(final boolean isOnDemand) {
+			this.isOnDemand = isOnDemand;
+			return this;
+		}
+
+		public Builder onDemandIdle(final long onDemandIdle) {
+			this.onDemandIdle = onDemandIdle;
+			return this;
+		}
+
+		public Builder jumpHost(final String jumpHost) {
+			this.jumpHost = jumpHost;
+			return this;
+		}
+
+		public Builder poolSize(final int poolSize) {
+			this.poolSize = poolSize;
+			return this;
+		}
+
+		public Builder poolBalance(final PoolBalance poolBalance) {
+			this.poolBalance = poolBalance;
+			return this;
+		}
+
+		public Builder windowSize(final long windowSize) {
+			this.windowSize = windowSize;
+			return this;
+		}
+
+		public Builder maxPacketSize(final long maxPacketSize) {
+			this.maxPacketSize = maxPacketSize;
+			return this;
+		}
+
+		public Builder windowAutoTune(final boolean windowAutoTune) {
+			this.windowAutoTune = windowAutoTune;
+			return this;
+		}
+
+		public Builder rekeyBytes(final long rekeyBytes) {
+			this.rekeyBytes = rekeyBytes;
+			return this;
+		}
+
+		public Builder rekeyTime(final long rekeyTime) {
+			this.rekeyTime = rekeyTime;
+			return this;
+		}
+
+		public Builder cryptoProfile(final CryptoProfile cryptoProfile) {
+			this.cryptoProfile = cryptoProfile;
+			return this;
+		}
+
+		public Builder ciphers(final String ciphers) {
+			this.ciphers = ciphers;
+			return this;
+		}
+
+		public Builder macs(final String macs) {
+			this.macs = macs;
+			return this;
+		}
+
+		public Builder kexAlgorithms(final String kexAlgorithms) {
+			this.kexAlgorithms = kexAlgorithms;
+			return this;
+		}
+
+		public Connection build() {
+			return new Connection(this);
+		}
+	}
+
+	/**
+	 * Choice of pool session for a new channel
+	 */
+	public static enum PoolBalance {
+		/**
+		 * Less open channels
+		 */
+		CHANNELS,
+		/**
+		 * Less recent traffic: bytes relayed, decayed with half-life {@code jentunnel.pool.halflife} (a rate, bulk
+		 * transfers weigh more than interactive or idle channels)
+		 */
+		BYTES;
+	}
+
+	/**
+	 * Algorithm preferences (ciphers, MACs, key exchanges), see {@link CryptoPreferences}
+	 */
+	public static enum CryptoProfile {
+		/**
+		 * Hardware AES first (AES-GCM), then ChaCha20-Poly1305 and AES-CTR with ETM MACs
+		 */
+		THROUGHPUT,
+		/**
+		 * Cheapest per byte (AES-128-GCM, then ChaCha20-Poly1305 for CPUs without AES instructions) and cheap
+		 * key exchange (curve25519, no DH)
+		 */
+		LOW_CPU,
+		/**
+		 * Defaults followed by legacy algorithms for old servers (3DES-CBC, HMAC-SHA1-96, SHA-1 DH group 14
+		 * and group exchange), a warning is logged
+		 */
+		COMPAT,
+		/**
+		 * Ciphers and MACs ordered by throughput measured on this JVM, see {@link CryptoBenchmark}
+		 */
+		FASTEST;
+	}
 }
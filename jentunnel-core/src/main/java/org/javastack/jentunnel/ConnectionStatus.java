@@ -17,6 +17,10 @@ public enum ConnectionStatus {
 	 * Connection failed
 	 */
 	DISCONNECTED,
+	/**
+	 * On-demand: listening on local ports, connect on first client
+	 */
+	STANDBY,
 	//
 	;
 
@@ -0,0 +1,246 @@
+package org.javastack.jentunnel;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.sshd.common.BaseBuilder;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.cipher.Cipher;
+import org.apache.sshd.common.mac.BuiltinMacs;
+import org.apache.sshd.common.mac.Mac;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Throughput of ciphers and MACs on this JVM (provider, AES instructions): each default algorithm
+ * processes packet sized buffers for a short time, once per process and in background. Non AEAD ciphers
+ * are rated together with fastest MAC (both run for every packet).
+ */
+class CryptoBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(CryptoBenchmark.class);
+	private static final int PACKET = 32 * 1024; // Max packet of MINA channels
+	private static final int MAC_KEY = 64;
+	private static final long MEASURE_MILLIS = Long.getLong("jentunnel.crypto.bench", 50L);
+	private static final int PASSES = 3;
+	private static final int ROUNDS = 2;
+	private static final double TIE = Math.log(1.2); // Rates within ~20% are ties (noise)
+	private static final AtomicBoolean started = new AtomicBoolean();
+	private static volatile Result result = null;
+
+	/**
+	 * @return measured order or null if not measured yet (measure is started in background)
+	 */
+	static Result get() {
+		final Result r = result;
+		if (r == null) {
+			start();
+		}
+		return r;
+	}
+
+	/**
+	 * Measure in background (once)
+	 */
+	static void start() {
+		if (!started.compareAndSet(false, true)) {
+			return;
+		}
+		final Thread t = new Thread(() -> {
+			try {
+				result = measure();
+			} catch (RuntimeException e) {
+				log.error("Crypto benchmark failed: {}", String.valueOf(e), e);
+			}
+		});
+		t.setDaemon(true);
+		t.setName("crypto-bench");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * @return ciphers and MACs of MINA default preference (supported on this JVM) ordered by throughput
+	 */
+	static Result measure() {
+		final long start = System.nanoTime();
+		final SecureRandom random = new SecureRandom();
+		final byte[] buf = new byte[PACKET + 64];
+		random.nextBytes(buf);
+		// Best of interleaved passes: JIT compiles shared code (AES, digests) while first algorithms run,
+		// and load of other threads changes over time
+		final Map<String, Double> macRates = new HashMap<String, Double>();
+		final Map<String, Double> cipherRates = new HashMap<String, Double>();
+		for (int pass = 0; pass < PASSES; pass++) {
+			for (final BuiltinMacs m : BaseBuilder.DEFAULT_MAC_PREFERENCE) {
+				// MAC variants of same algorithm (ETM or not) cost the same
+				if (m.isSupported() && !m.isEncryptThenMac()) {
+					measure(macRates, m.getAlgorithm(), () -> rateMac(m, random, buf));
+				}
+			}
+			for (final BuiltinCiphers c : BaseBuilder.DEFAULT_CIPHERS_PREFERENCE) {
+				if (c.isSupported()) {
+					measure(cipherRates, c.getName(), () -> rateCipher(c, random, buf));
+				}
+			}
+		}
+		final List<Rated<BuiltinMacs>> macs = new ArrayList<Rated<BuiltinMacs>>();
+		for (final BuiltinMacs m : BaseBuilder.DEFAULT_MAC_PREFERENCE) {
+			final Double rate = macRates.get(m.getAlgorithm());
+			// Failed (rate 0) are not offered
+			if (m.isSupported() && (rate != null) && (rate > 0)) {
+				macs.add(new Rated<BuiltinMacs>(m, rate));
+			}
+		}
+		sort(macs);
+		final double bestMac = (macs.isEmpty() ? 0 : macs.get(0).rate);
+		final List<Rated<BuiltinCiphers>> ciphers = new ArrayList<Rated<BuiltinCiphers>>();
+		for (final BuiltinCiphers c : BaseBuilder.DEFAULT_CIPHERS_PREFERENCE) {
+			final Double rate = cipherRates.get(c.getName());
+			if (!c.isSupported() || (rate == null) || (rate <= 0)) {
+				continue;
+			}
+			// Non AEAD: cipher and MAC run for every packet
+			final boolean aead = (c.getAuthenticationTagSize() > 0);
+			ciphers.add(new Rated<BuiltinCiphers>(c, //
+					((aead || (bestMac <= 0)) ? rate : (1 / ((1 / rate) + (1 / bestMac))))));
+		}
+		sort(ciphers);
+		final Result r = new Result(names(ciphers), names(macs));
+		log.info("Crypto benchmark ({}ms): ciphers={} macs={}", (System.nanoTime() - start) / 1000000L, //
+				ciphers, macs);
+		return r;
+	}
+
+	private static void measure(final Map<String, Double> rates, final String name, final Rate rate) {
+		if (rates.containsKey(name) && (rates.get(name) <= 0)) {
+			return; // Failed
+		}
+		double r;
+		try {
+			r = rate.get();
+		} catch (Exception e) {
+			log.warn("Crypto benchmark skipped {}: {}", name, String.valueOf(e));
+			r = 0;
+		}
+		final Double old = rates.get(name);
+		rates.put(name, ((old == null) ? r : Math.max(old, r)));
+	}
+
+	private static double rateCipher(final BuiltinCiphers factory, final SecureRandom random,
+			final byte[] buf) throws Exception {
+		final Cipher c = factory.create();
+		final byte[] key = new byte[factory.getKdfSize()];
+		final byte[] iv = new byte[factory.getIVSize()];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		c.init(Cipher.Mode.Encrypt, key, iv);
+		final boolean aead = (factory.getAuthenticationTagSize() > 0);
+		final Step step = () -> {
+			if (aead) {
+				// Packet length is additional authenticated data, tag is appended
+				c.updateWithAAD(buf, 0, 4, PACKET);
+			} else {
+				c.update(buf, 4, PACKET);
+			}
+		};
+		return rate(step);
+	}
+
+	private static double rateMac(final BuiltinMacs factory, final SecureRandom random, final byte[] buf)
+			throws Exception {
+		final Mac m = factory.create();
+		final byte[] key = new byte[MAC_KEY];
+		random.nextBytes(key);
+		m.init(key);
+		final byte[] out = new byte[m.getDefaultBlockSize()];
+		final Step step = () -> {
+			m.updateUInt(0);
+			m.update(buf, 0, PACKET + 4);
+			m.doFinal(out, 0);
+		};
+		return rate(step);
+	}
+
+	/**
+	 * @return packet bytes per second, best round (first rounds run interpreted or not fully compiled)
+	 */
+	private static double rate(final Step step) throws Exception {
+		double best = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			final long start = System.nanoTime();
+			final long packets = run(step, MEASURE_MILLIS);
+			best = Math.max(best, (double) packets * PACKET * 1000000000L / (System.nanoTime() - start));
+		}
+		return best;
+	}
+
+	private static long run(final Step step, final long millis) throws Exception {
+		final long end = System.nanoTime() + (millis * 1000000L);
+		long packets = 0;
+		do {
+			step.run();
+			packets++;
+		} while (System.nanoTime() < end);
+		return packets;
+	}
+
+	private static <T> void sort(final List<Rated<T>> list) {
+		// Stable on log scale steps: ties keep default preference
+		Collections.sort(list, Comparator.comparingLong(Rated<T>::step).reversed());
+	}
+
+	private static <T extends NamedResource> List<String> names(final List<Rated<T>> list) {
+		final List<String> names = new ArrayList<String>(list.size());
+		for (final Rated<T> r : list) {
+			names.add(r.algorithm.getName());
+		}
+		return Collections.unmodifiableList(names);
+	}
+
+	private static interface Step {
+		void run() throws Exception;
+	}
+
+	private static interface Rate {
+		double get() throws Exception;
+	}
+
+	private static final class Rated<T> {
+		final T algorithm;
+		final double rate;
+
+		Rated(final T algorithm, final double rate) {
+			this.algorithm = algorithm;
+			this.rate = rate;
+		}
+
+		long step() {
+			return ((rate <= 0) ? Long.MIN_VALUE : (long) Math.floor(Math.log(rate) / TIE));
+		}
+
+		@Override
+		public String toString() {
+			return algorithm + "=" + Math.round(rate / 1048576) + "MB/s";
+		}
+	}
+
+	static final class Result {
+		/**
+		 * Algorithm names, fastest first
+		 */
+		final List<String> ciphers;
+		final List<String> macs;
+
+		Result(final List<String> ciphers, final List<String> macs) {
+			this.ciphers = ciphers;
+			this.macs = macs;
+		}
+	}
+}
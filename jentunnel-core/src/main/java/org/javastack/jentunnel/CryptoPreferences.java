@@ -0,0 +1,171 @@
+package org.javastack.jentunnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.client.ClientBuilder;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.BaseBuilder;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.OptionalFeature;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.cipher.Cipher;
+import org.apache.sshd.common.cipher.CipherFactory;
+import org.apache.sshd.common.config.ListParseResult;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.kex.DHFactory;
+import org.apache.sshd.common.mac.BuiltinMacs;
+import org.apache.sshd.common.mac.Mac;
+import org.apache.sshd.common.mac.MacFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cipher, MAC and key exchange lists of a session from {@link Connection.CryptoProfile} and explicit
+ * lists. Negotiation picks the first algorithm of client list that server supports, so an order by speed
+ * selects the fastest mutually supported algorithm.
+ */
+class CryptoPreferences {
+	private static final Logger log = LoggerFactory.getLogger(CryptoPreferences.class);
+	private static final Map<Connection.CryptoProfile, CryptoPreferences> PROFILES = profiles();
+
+	/**
+	 * Algorithm names, preferred first (null for default)
+	 */
+	final List<String> ciphers;
+	final List<String> macs;
+	final List<String> kex;
+
+	private CryptoPreferences(final List<String> ciphers, final List<String> macs, final List<String> kex) {
+		this.ciphers = ciphers;
+		this.macs = macs;
+		this.kex = kex;
+	}
+
+	private static Map<Connection.CryptoProfile, CryptoPreferences> profiles() {
+		final Map<Connection.CryptoProfile, CryptoPreferences> map = //
+				new EnumMap<Connection.CryptoProfile, CryptoPreferences>(Connection.CryptoProfile.class);
+		map.put(Connection.CryptoProfile.THROUGHPUT, new CryptoPreferences( //
+				names(BuiltinCiphers.aes128gcm, BuiltinCiphers.aes256gcm, BuiltinCiphers.cc20p1305_openssh, //
+						BuiltinCiphers.aes128ctr, BuiltinCiphers.aes192ctr, BuiltinCiphers.aes256ctr), //
+				names(BuiltinMacs.hmacsha256etm, BuiltinMacs.hmacsha512etm, //
+						BuiltinMacs.hmacsha256, BuiltinMacs.hmacsha512), //
+				null));
+		// AES-GCM runs on AES instructions of JCE, ChaCha20 of MINA is plain Java (next for CPUs without them)
+		map.put(Connection.CryptoProfile.LOW_CPU, new CryptoPreferences( //
+				names(BuiltinCiphers.aes128gcm, BuiltinCiphers.cc20p1305_openssh, //
+						BuiltinCiphers.aes128ctr), //
+				names(BuiltinMacs.hmacsha256etm, BuiltinMacs.hmacsha256), //
+				names(BuiltinDHFactories.curve25519, BuiltinDHFactories.curve25519_libssh, //
+						BuiltinDHFactories.ecdhp256, BuiltinDHFactories.dhg14_256)));
+		map.put(Connection.CryptoProfile.COMPAT, legacy());
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Defaults followed by legacy algorithms (MD5 and SHA-1 group 1 are broken, not offered at all)
+	 */
+	@SuppressWarnings("deprecation") // Deprecated by MINA on purpose: only for old servers, opt-in profile
+	private static CryptoPreferences legacy() {
+		return new CryptoPreferences( //
+				concat(names(BaseBuilder.DEFAULT_CIPHERS_PREFERENCE), names(BuiltinCiphers.tripledescbc)), //
+				concat(names(BaseBuilder.DEFAULT_MAC_PREFERENCE), names(BuiltinMacs.hmacsha196)), //
+				concat(names(BaseBuilder.DEFAULT_KEX_PREFERENCE), //
+						names(BuiltinDHFactories.dhg14, BuiltinDHFactories.dhgex)));
+	}
+
+	/**
+	 * @param profile profile or null
+	 * @return lists of profile, null for default; {@link Connection.CryptoProfile#FASTEST} is
+	 *         {@link Connection.CryptoProfile#THROUGHPUT} until benchmark is done
+	 */
+	static CryptoPreferences of(final Connection.CryptoProfile profile) {
+		if (profile == null) {
+			return null;
+		}
+		if (profile == Connection.CryptoProfile.FASTEST) {
+			final CryptoBenchmark.Result r = CryptoBenchmark.get();
+			if (r != null) {
+				return new CryptoPreferences(r.ciphers, r.macs, null);
+			}
+			log.info("Crypto benchmark pending, using {}", Connection.CryptoProfile.THROUGHPUT);
+			return PROFILES.get(Connection.CryptoProfile.THROUGHPUT);
+		}
+		return PROFILES.get(profile);
+	}
+
+	/**
+	 * Set algorithm lists on session (before key exchange), unset lists keep defaults
+	 *
+	 * @param session new session
+	 * @param c connection
+	 */
+	static void apply(final ClientSession session, final Connection c) {
+		if (c.cryptoProfile == Connection.CryptoProfile.COMPAT) {
+			log.warn("Legacy algorithms offered {}: cryptoProfile={}", c.alias, c.cryptoProfile);
+		}
+		final CryptoPreferences p = of(c.cryptoProfile);
+		final List<CipherFactory> ciphers = select(c, "ciphers", //
+				BuiltinCiphers.parseCiphersList(choose(c.ciphers, (p == null) ? null : p.ciphers)));
+		if (!ciphers.isEmpty()) {
+			session.setCipherFactories(new ArrayList<NamedFactory<Cipher>>(ciphers));
+		}
+		final List<MacFactory> macs = select(c, "macs", //
+				BuiltinMacs.parseMacsList(choose(c.macs, (p == null) ? null : p.macs)));
+		if (!macs.isEmpty()) {
+			session.setMacFactories(new ArrayList<NamedFactory<Mac>>(macs));
+		}
+		final List<DHFactory> kex = select(c, "kexAlgorithms", //
+				BuiltinDHFactories.parseDHFactoriesList(choose(c.kexAlgorithms, (p == null) ? null : p.kex)));
+		if (!kex.isEmpty()) {
+			session.setKeyExchangeFactories( //
+					NamedFactory.setUpTransformedFactories(false, kex, ClientBuilder.DH2KEX));
+		}
+	}
+
+	/**
+	 * @return explicit list (comma separated) or list of profile
+	 */
+	private static List<String> choose(final String explicit, final List<String> profile) {
+		if ((explicit != null) && !explicit.trim().isEmpty()) {
+			return Arrays.asList(explicit.split("\\s*,\\s*"));
+		}
+		return ((profile == null) ? Collections.emptyList() : profile);
+	}
+
+	/**
+	 * @return parsed algorithms supported on this JVM (empty for default)
+	 */
+	private static <F extends NamedResource & OptionalFeature> List<F> select(final Connection c,
+			final String what, final ListParseResult<F> parsed) {
+		final List<String> unknown = parsed.getUnsupportedValues();
+		if ((unknown != null) && !unknown.isEmpty()) {
+			log.warn("Unknown algorithms {}: {}={}", c.alias, what, unknown);
+		}
+		final List<F> list = NamedFactory.setUpBuiltinFactories(false, parsed.getParsedValues());
+		if (list.isEmpty() && !parsed.getParsedValues().isEmpty()) {
+			log.warn("Unsupported algorithms {}: {}={}", c.alias, what, //
+					NamedResource.getNames(parsed.getParsedValues()));
+		}
+		return list;
+	}
+
+	private static List<String> names(final NamedResource... list) {
+		return names(Arrays.asList(list));
+	}
+
+	private static List<String> names(final List<? extends NamedResource> list) {
+		return Collections.unmodifiableList(NamedResource.getNameList(list));
+	}
+
+	private static List<String> concat(final List<String> a, final List<String> b) {
+		final List<String> list = new ArrayList<String>(a);
+		list.addAll(b);
+		return Collections.unmodifiableList(list);
+	}
+}
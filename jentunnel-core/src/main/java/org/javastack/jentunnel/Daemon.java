@@ -0,0 +1,377 @@
+package org.javastack.jentunnel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Headless entrypoint (no Swing/AWT): load configuration, start autostart connections and serve a
+ * control API on loopback HTTP. Endpoint and token are written to {@value #CONTROL_FILE} in config
+ * directory (owner only), requests must send header <code>Authorization: Bearer &lt;token&gt;</code>.
+ *
+ * <pre>
+ * GET  /status[?alias=name|id=id]
+ * GET  /metrics
+ * POST /connect?alias=name|id=id
+ * POST /disconnect?alias=name|id=id
+ * POST /reload
+ * POST /shutdown
+ * </pre>
+ */
+public class Daemon {
+	private static final Logger log = LoggerFactory.getLogger(Daemon.class);
+	private static final String CONTROL_FILE = "daemon.control";
+	private static final int DEFAULT_CONTROL_PORT = Integer.getInteger("jentunnel.daemon.port", 0);
+	private static final String DEFAULT_CONTROL_TOKEN = System.getProperty("jentunnel.daemon.token");
+	private static final boolean STRICT_HOST_KEYS = Boolean.getBoolean("jentunnel.daemon.strict");
+
+	private final SSHClient client;
+	private final byte[] token;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private HttpServer server = null;
+	private File controlFile = null;
+
+	/**
+	 * @param client initialized client
+	 * @param token shared secret for control requests
+	 */
+	public Daemon(final SSHClient client, final String token) {
+		this.client = client;
+		this.token = token.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Start control API on loopback and write control file
+	 *
+	 * @param port TCP port (0 = ephemeral)
+	 * @return bound address
+	 */
+	public synchronized InetSocketAddress start(final int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 8);
+		server.createContext("/", exchange -> {
+			try {
+				handle(exchange);
+			} catch (Exception e) {
+				log.error("Control request failed {}: {}", exchange.getRequestURI(), String.valueOf(e));
+				reply(exchange, 500, "{\"error\":" + quote(String.valueOf(e)) + "}");
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		final InetSocketAddress addr = server.getAddress();
+		controlFile = new File(client.getConfigDir(), CONTROL_FILE);
+		writeControlFile(controlFile.toPath(), //
+				"http://" + addr.getAddress().getHostAddress() + ":" + addr.getPort());
+		log.info("Control API listening: {} (control file: {})", addr, controlFile);
+		return addr;
+	}
+
+	/**
+	 * Stop control API and remove control file (idempotent)
+	 */
+	public synchronized void stop() {
+		if (server != null) {
+			log.info("Control API shutdown");
+			server.stop(0);
+			server = null;
+		}
+		if (controlFile != null) {
+			controlFile.delete();
+			controlFile = null;
+		}
+		stopped.countDown();
+	}
+
+	/**
+	 * Wait for shutdown request (or {@link #stop()})
+	 */
+	public void await() throws InterruptedException {
+		stopped.await();
+	}
+
+	private void writeControlFile(final Path file, final String url) throws IOException {
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		try {
+			Files.createFile(tmp, //
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// Non POSIX (Windows): user profile ACLs
+			Files.createFile(tmp);
+		}
+		final String content = "url=" + url + "\n" + "token=" + new String(token, StandardCharsets.UTF_8) + "\n";
+		Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		if (!isAuthorized(exchange)) {
+			reply(exchange, 401, "{\"error\":\"unauthorized\"}");
+			return;
+		}
+		final String method = exchange.getRequestMethod();
+		final String path = exchange.getRequestURI().getPath();
+		final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		switch (path) {
+			case "/status": {
+				if (!"GET".equals(method)) {
+					reply(exchange, 405, "{\"error\":\"method not allowed\"}");
+					return;
+				}
+				if (query.isEmpty()) {
+					reply(exchange, 200, status());
+					return;
+				}
+				final Connection c = findConnection(query);
+				if (c == Connection.NULL) {
+					reply(exchange, 404, "{\"error\":\"connection not found\"}");
+					return;
+				}
+				reply(exchange, 200, status(c));
+				return;
+			}
+			case "/metrics": {
+				if (!"GET".equals(method)) {
+					reply(exchange, 405, "{\"error\":\"method not allowed\"}");
+					return;
+				}
+				reply(exchange, 200, metrics());
+				return;
+			}
+			case "/connect":
+			case "/disconnect": {
+				if (!"POST".equals(method)) {
+					reply(exchange, 405, "{\"error\":\"method not allowed\"}");
+					return;
+				}
+				final Connection c = findConnection(query);
+				if (c == Connection.NULL) {
+					reply(exchange, 404, "{\"error\":\"connection not found\"}");
+					return;
+				}
+				log.info("Control request {}: {}", path, c.alias);
+				// Asynchronous, poll status for result
+				if ("/connect".equals(path)) {
+					client.connect(c.id);
+				} else {
+					client.disconnect(c.id);
+				}
+				reply(exchange, 202, status(c));
+				return;
+			}
+			case "/reload": {
+				if (!"POST".equals(method)) {
+					reply(exchange, 405, "{\"error\":\"method not allowed\"}");
+					return;
+				}
+				log.info("Control request {}", path);
+				// Only changed connections and forwards are touched
+				client.reload();
+				reply(exchange, 200, status());
+				return;
+			}
+			case "/shutdown": {
+				if (!"POST".equals(method)) {
+					reply(exchange, 405, "{\"error\":\"method not allowed\"}");
+					return;
+				}
+				log.info("Control request {}", path);
+				reply(exchange, 202, "{\"shutdown\":true}");
+				// Main thread stops client and server (not from dispatcher thread)
+				stopped.countDown();
+				return;
+			}
+			default:
+				reply(exchange, 404, "{\"error\":\"not found\"}");
+		}
+	}
+
+	private boolean isAuthorized(final HttpExchange exchange) {
+		final String auth = exchange.getRequestHeaders().getFirst("Authorization");
+		if ((auth == null) || !auth.startsWith("Bearer ")) {
+			return false;
+		}
+		// Constant time
+		return MessageDigest.isEqual(token, auth.substring(7).trim().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Connection findConnection(final Map<String, String> query) {
+		final String id = query.get("id");
+		if (id != null) {
+			return client.getConnection(id);
+		}
+		return client.getConnectionByAlias(query.get("alias"));
+	}
+
+	private String status() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{\"autostartMillis\":").append(client.getAutoStartMillis());
+		sb.append(",\"autostartFailed\":").append(client.getAutoStartFailed());
+		sb.append(",\"connections\":[");
+		boolean first = true;
+		for (final Connection c : client.getConnections()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			appendConnection(sb, c);
+		}
+		return sb.append("]}").toString();
+	}
+
+	private String status(final Connection c) {
+		return appendConnection(new StringBuilder(), c).toString();
+	}
+
+	private StringBuilder appendConnection(final StringBuilder sb, final Connection c) {
+		final HandshakeTimings.Stats hs = client.getHandshakeStats(c.id);
+		sb.append("{\"id\":").append(quote(c.id));
+		sb.append(",\"alias\":").append(quote(c.alias));
+		sb.append(",\"address\":").append(quote(c.address));
+		sb.append(",\"port\":").append(c.port);
+		sb.append(",\"autoStart\":").append(c.isAutoStart);
+		sb.append(",\"status\":").append(quote(client.getStatus(c.id).name()));
+		sb.append(",\"handshake\":{\"samples\":").append(hs.samples);
+		sb.append(",\"lastMillis\":").append(hs.last(HandshakeTimings.Phase.TOTAL));
+		sb.append(",\"p50Millis\":").append(hs.percentile(HandshakeTimings.Phase.TOTAL, 50));
+		sb.append(",\"p95Millis\":").append(hs.percentile(HandshakeTimings.Phase.TOTAL, 95));
+		return sb.append("}}");
+	}
+
+	private String metrics() {
+		final StringBuilder sb = new StringBuilder("{\"traffic\":{");
+		boolean first = true;
+		for (final TrafficMetrics.Snapshot m : client.getMetrics().values()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append(quote(m.name)).append(":{");
+			sb.append("\"bytesIn\":").append(m.bytesIn);
+			sb.append(",\"bytesOut\":").append(m.bytesOut);
+			sb.append(",\"inRate\":").append(m.inRate);
+			sb.append(",\"outRate\":").append(m.outRate);
+			sb.append(",\"channelsOpen\":").append(m.channelsOpen);
+			sb.append(",\"channelsTotal\":").append(m.channelsTotal);
+			sb.append(",\"channelsFailed\":").append(m.channelsFailed);
+			sb.append(",\"openLatencyAvg\":").append(m.openLatencyAvg);
+			sb.append(",\"openLatencyMax\":").append(m.openLatencyMax);
+			sb.append('}');
+		}
+		sb.append("},\"queues\":{");
+		first = true;
+		for (final Map.Entry<String, Integer> e : client.getTaskQueueDepth().entrySet()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append(quote(e.getKey())).append(':').append(e.getValue());
+		}
+		return sb.append("}}").toString();
+	}
+
+	private static void reply(final HttpExchange exchange, final int code, final String json) throws IOException {
+		final byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private static Map<String, String> parseQuery(final String rawQuery) throws UnsupportedEncodingException {
+		final Map<String, String> map = new HashMap<String, String>();
+		if ((rawQuery == null) || rawQuery.isEmpty()) {
+			return map;
+		}
+		for (final String param : rawQuery.split("&")) {
+			final int eq = param.indexOf('=');
+			if (eq > 0) {
+				map.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), //
+						URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return map;
+	}
+
+	private static String quote(final String s) {
+		if (s == null) {
+			return "null";
+		}
+		final StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String generateToken() {
+		final byte[] b = new byte[24];
+		new SecureRandom().nextBytes(b);
+		final StringBuilder sb = new StringBuilder(b.length * 2);
+		for (final byte x : b) {
+			sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	public static void main(final String[] args) throws Throwable {
+		System.setProperty("java.awt.headless", "true");
+		if (args.length < 1) {
+			System.err.println("Usage: java -cp <classpath> " + Daemon.class.getName() + " <configDirectory>");
+			System.exit(1);
+			return;
+		}
+		final SSHClient client = new SSHClient(args[0]);
+		if (STRICT_HOST_KEYS) {
+			// No user to confirm: only servers already in known_hosts
+			client.setKeyAcceptatorNew((clientSession, remoteAddress, serverKey) -> false);
+		}
+		client.init();
+		final Daemon daemon = new Daemon(client, //
+				((DEFAULT_CONTROL_TOKEN == null) || DEFAULT_CONTROL_TOKEN.isEmpty()) //
+						? generateToken() //
+						: DEFAULT_CONTROL_TOKEN);
+		daemon.start(DEFAULT_CONTROL_PORT);
+		// JVM exits when hooks end (main thread does not get to its stop): control API first, then sessions
+		final Thread cleanThread = new Thread(() -> {
+			daemon.stop();
+			client.stop();
+		});
+		cleanThread.setName("daemon-clean");
+		Runtime.getRuntime().addShutdownHook(cleanThread);
+		client.start();
+		daemon.await();
+		daemon.stop();
+		client.stop();
+		log.info("Daemon stopped");
+	}
+}
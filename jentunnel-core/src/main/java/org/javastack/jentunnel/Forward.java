@@ -5,6 +5,11 @@ import java.util.List;
 import org.apache.sshd.common.util.net.SshdSocketAddress;
 
 public abstract class Forward implements Comparable<Forward>, AliasID {
+	/**
+	 * In connect hostname of a range: replaced by port index (0..count-1), connect port is not shifted
+	 */
+	public static final String INDEX_TEMPLATE = "{i}";
+
 	public final String id;
 	public final String alias;
 	public final List<String> connections;
@@ -25,10 +30,61 @@ public abstract class Forward implements Comparable<Forward>, AliasID {
 
 	public abstract SshdSocketAddress getRemoteSocketAddress();
 
+	/**
+	 * @return number of consecutive ports mapped by this forward
+	 */
+	public int getPortCount() {
+		return 1;
+	}
+
+	/**
+	 * Check ports of range (single forwards are checked when bound)
+	 *
+	 * @throws IllegalArgumentException if a port of range is not valid
+	 */
+	public void validate() {
+	}
+
+	/**
+	 * @param index port of range (0..{@link #getPortCount()}-1)
+	 * @return local address of given port (computed, not cached)
+	 */
+	public SshdSocketAddress getLocalSocketAddress(final int index) {
+		return getLocalSocketAddress();
+	}
+
+	/**
+	 * @param index port of range (0..{@link #getPortCount()}-1)
+	 * @return remote address of given port (computed, not cached)
+	 */
+	public SshdSocketAddress getRemoteSocketAddress(final int index) {
+		return getRemoteSocketAddress();
+	}
+
 	public static Forward valueOf(final Type type, //
 			final String id, final String alias, final List<String> connections, //
 			final String localHostname, final int localPort, //
 			final String remoteHostname, final int remotePort) {
+		return valueOf(type, id, alias, connections, //
+				localHostname, localPort, remoteHostname, remotePort, 1);
+	}
+
+	/**
+	 * @param count consecutive ports, more than 1 makes a range (LOCAL and REMOTE only)
+	 */
+	public static Forward valueOf(final Type type, //
+			final String id, final String alias, final List<String> connections, //
+			final String localHostname, final int localPort, //
+			final String remoteHostname, final int remotePort, //
+			final int count) {
+		if ((count > 1) && (type == Type.LOCAL)) {
+			return new Forward.LocalRange(id, alias, connections, //
+					localHostname, localPort, remoteHostname, remotePort, count);
+		}
+		if ((count > 1) && (type == Type.REMOTE)) {
+			return new Forward.RemoteRange(id, alias, connections, //
+					localHostname, localPort, remoteHostname, remotePort, count);
+		}
 		switch (type) {
 			case LOCAL:
 				return new Forward.Local( //
@@ -60,6 +116,16 @@ public abstract class Forward implements Comparable<Forward>, AliasID {
 		}
 	}
 
+	/**
+	 * @param o other forward
+	 * @return true if both listen and connect to same addresses (alias and connections ignored)
+	 */
+	public boolean isSameMapping(final Forward o) {
+		return (o != null) && (getType() == o.getType()) && (getPortCount() == o.getPortCount()) //
+				&& String.valueOf(getLocalSocketAddress()).equals(String.valueOf(o.getLocalSocketAddress())) //
+				&& String.valueOf(getRemoteSocketAddress()).equals(String.valueOf(o.getRemoteSocketAddress()));
+	}
+
 	@Override
 	public String toString() {
 		return "id=" + id + " alias=" + alias //
@@ -256,6 +322,134 @@ public abstract class Forward implements Comparable<Forward>, AliasID {
 		}
 	}
 
+	/**
+	 * Like ssh -L for count consecutive ports: listen port + i connects to remote port + i (or to same remote
+	 * port of hostname with {@link #INDEX_TEMPLATE} replaced by i). Single object in config, addresses are
+	 * computed when mapped.
+	 */
+	public static class LocalRange extends Local {
+		public final int count;
+
+		LocalRange() {
+			super();
+			this.count = 1; // Set by YAML, see ConfigUtils
+		}
+
+		public LocalRange(final String id, final String alias, final List<String> connections, //
+				final String localBindHostname, final int localBindPort, //
+				final String remoteHostname, final int remotePort, //
+				final int count) {
+			super(id, alias, connections, localBindHostname, localBindPort, remoteHostname, remotePort);
+			//
+			this.count = count;
+			validate();
+		}
+
+		@Override
+		public void validate() {
+			checkRange(localBindPort, count);
+			checkTarget(remoteHostname, remotePort, count);
+		}
+
+		@Override
+		public int getPortCount() {
+			return Math.max(1, count);
+		}
+
+		@Override
+		public SshdSocketAddress getLocalSocketAddress(final int index) {
+			return new SshdSocketAddress(localBindHostname, localBindPort + index);
+		}
+
+		@Override
+		public SshdSocketAddress getRemoteSocketAddress(final int index) {
+			return target(remoteHostname, remotePort, index);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + " count=" + count;
+		}
+	}
+
+	/**
+	 * Like ssh -R for count consecutive ports: remote listen port + i connects to local port + i (or to
+	 * same local port of hostname with {@link #INDEX_TEMPLATE} replaced by i)
+	 */
+	public static class RemoteRange extends Remote {
+		public final int count;
+
+		RemoteRange() {
+			super();
+			this.count = 1; // Set by YAML, see ConfigUtils
+		}
+
+		public RemoteRange(final String id, final String alias, final List<String> connections, //
+				final String localHostname, final int localPort, //
+				final String remoteBindHostname, final int remoteBindPort, //
+				final int count) {
+			super(id, alias, connections, localHostname, localPort, remoteBindHostname, remoteBindPort);
+			//
+			this.count = count;
+			validate();
+		}
+
+		@Override
+		public void validate() {
+			checkRange(remoteBindPort, count);
+			checkTarget(localHostname, localPort, count);
+		}
+
+		@Override
+		public int getPortCount() {
+			return Math.max(1, count);
+		}
+
+		@Override
+		public SshdSocketAddress getLocalSocketAddress(final int index) {
+			return target(localHostname, localPort, index);
+		}
+
+		@Override
+		public SshdSocketAddress getRemoteSocketAddress(final int index) {
+			return new SshdSocketAddress(remoteBindHostname, remoteBindPort + index);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + " count=" + count;
+		}
+	}
+
+	/**
+	 * Listen ports of range: no ephemeral port (0 binds a random port for index 0 only), within 65535
+	 */
+	private static void checkRange(final int port, final int count) {
+		if ((port <= 0) || (count < 1) || ((port + (long) count - 1) > 65535)) {
+			throw new IllegalArgumentException("Invalid port range: port=" + port + " count=" + count);
+		}
+	}
+
+	/**
+	 * Target ports of range are shifted too, unless hostname has {@link #INDEX_TEMPLATE}
+	 */
+	private static void checkTarget(final String hostname, final int port, final int count) {
+		if ((hostname != null) && hostname.contains(INDEX_TEMPLATE)) {
+			if ((port <= 0) || (port > 65535)) {
+				throw new IllegalArgumentException("Invalid target port: " + port);
+			}
+			return;
+		}
+		checkRange(port, count);
+	}
+
+	private static SshdSocketAddress target(final String hostname, final int port, final int index) {
+		if ((hostname != null) && hostname.contains(INDEX_TEMPLATE)) {
+			return new SshdSocketAddress(hostname.replace(INDEX_TEMPLATE, String.valueOf(index)), port);
+		}
+		return new SshdSocketAddress(hostname, port + index);
+	}
+
 	public static enum Type {
 		REMOTE, //
 		LOCAL, //
@@ -0,0 +1,169 @@
+package org.javastack.jentunnel;
+
+import java.util.Arrays;
+
+/**
+ * Bounded history of connection handshake phase durations (millis) with percentiles
+ */
+public class HandshakeTimings {
+	public static enum Phase {
+		/**
+		 * TCP connect (until session created)
+		 */
+		TCP,
+		/**
+		 * Key exchange (until KeyEstablished), includes HOST_KEY
+		 */
+		KEX,
+		/**
+		 * Server key verification (known_hosts, user confirmation)
+		 */
+		HOST_KEY,
+		/**
+		 * Authentication (until Authenticated), includes private key loading/decryption
+		 */
+		AUTH,
+		/**
+		 * Forwards mapping
+		 */
+		MAP,
+		TOTAL;
+	}
+
+	private static final int PHASES = Phase.values().length;
+
+	private final long[][] history;
+	private int next = 0;
+	private int count = 0;
+	private volatile Stats stats = Stats.EMPTY;
+
+	public HandshakeTimings(final int capacity) {
+		this.history = new long[Math.max(1, capacity)][];
+	}
+
+	synchronized void add(final long[] sample) {
+		history[next] = sample;
+		next = (next + 1) % history.length;
+		if (count < history.length) {
+			count++;
+		}
+		final long[][] sorted = new long[PHASES][count];
+		for (int i = 0; i < count; i++) {
+			for (int p = 0; p < PHASES; p++) {
+				sorted[p][i] = history[i][p];
+			}
+		}
+		for (int p = 0; p < PHASES; p++) {
+			Arrays.sort(sorted[p]);
+		}
+		stats = new Stats(count, sample, sorted);
+	}
+
+	/**
+	 * @return immutable snapshot (same instance until next handshake)
+	 */
+	public Stats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Marks of one connection attempt
+	 */
+	static class Attempt {
+		private final long start = System.nanoTime();
+		private final long[] marks = new long[PHASES];
+		private long hostKey = 0;
+		private long mapStart = 0;
+
+		/**
+		 * Mark end of phase (first mark wins, KEX is repeated on rekey)
+		 */
+		synchronized void mark(final Phase phase) {
+			if (marks[phase.ordinal()] == 0) {
+				marks[phase.ordinal()] = System.nanoTime();
+			}
+		}
+
+		synchronized void addHostKey(final long nanos) {
+			hostKey += nanos;
+		}
+
+		synchronized void mapStart() {
+			mapStart = System.nanoTime();
+		}
+
+		/**
+		 * @return durations in millis by phase ordinal
+		 */
+		synchronized long[] finish() {
+			final long end = System.nanoTime();
+			final long tcp = mark(Phase.TCP, start);
+			final long kex = mark(Phase.KEX, tcp);
+			final long auth = mark(Phase.AUTH, kex);
+			final long[] d = new long[PHASES];
+			d[Phase.TCP.ordinal()] = millis(tcp - start);
+			d[Phase.KEX.ordinal()] = millis(kex - tcp);
+			d[Phase.HOST_KEY.ordinal()] = millis(hostKey);
+			d[Phase.AUTH.ordinal()] = millis(auth - kex);
+			d[Phase.MAP.ordinal()] = ((mapStart == 0) ? 0 : millis(end - mapStart));
+			d[Phase.TOTAL.ordinal()] = millis(end - start);
+			return d;
+		}
+
+		private long mark(final Phase phase, final long def) {
+			final long m = marks[phase.ordinal()];
+			return ((m == 0) ? def : m);
+		}
+
+		private static long millis(final long nanos) {
+			return (nanos / 1000000L);
+		}
+	}
+
+	public static class Stats {
+		static final Stats EMPTY = new Stats(0, new long[PHASES], new long[PHASES][0]);
+
+		public final int samples;
+		private final long[] last;
+		private final long[][] sorted;
+
+		Stats(final int samples, final long[] last, final long[][] sorted) {
+			this.samples = samples;
+			this.last = last;
+			this.sorted = sorted;
+		}
+
+		/**
+		 * @param phase handshake phase
+		 * @return millis of last handshake
+		 */
+		public long last(final Phase phase) {
+			return last[phase.ordinal()];
+		}
+
+		/**
+		 * Nearest-rank percentile
+		 *
+		 * @param phase handshake phase
+		 * @param percentile 1-100
+		 * @return millis or 0 without samples
+		 */
+		public long percentile(final Phase phase, final int percentile) {
+			final long[] s = sorted[phase.ordinal()];
+			if (s.length == 0) {
+				return 0;
+			}
+			final int rank = (int) Math.ceil(percentile / 100.0 * s.length);
+			return s[Math.min(s.length, Math.max(1, rank)) - 1];
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("samples=").append(samples);
+			for (final Phase p : Phase.values()) {
+				sb.append(' ').append(p.name().toLowerCase()).append('=').append(last(p));
+			}
+			return sb.toString();
+		}
+	}
+}
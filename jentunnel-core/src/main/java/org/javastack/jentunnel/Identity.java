@@ -16,13 +16,26 @@ public class Identity implements Comparable<Identity>, AliasID {
 
 	public Identity(final String id, final String alias, final String username, final String password,
 			final String keyfile) {
+		this(id, alias, username, password, keyfile, true);
+	}
+
+	private Identity(final String id, final String alias, final String username, final String password,
+			final String keyfile, final boolean clearText) {
 		this.id = (id == null ? UID.generate() : id);
 		this.alias = alias;
 		this.username = username;
-		this.password = fromClearTextPassword(password);
+		this.password = (clearText ? fromClearTextPassword(password) : password);
 		this.keyfile = keyfile;
 	}
 
+	/**
+	 * @param password already encoded (as stored in config)
+	 */
+	static Identity withEncodedPassword(final String id, final String alias, final String username,
+			final String password, final String keyfile) {
+		return new Identity(id, alias, username, password, keyfile, false);
+	}
+
 	private static final String fromClearTextPassword(final String clearText) {
 		return PasswordEncoder.encode(clearText);
 	}
@@ -31,6 +44,17 @@ public class Identity implements Comparable<Identity>, AliasID {
 		return PasswordEncoder.decode(password);
 	}
 
+	/**
+	 * @param o other identity
+	 * @return true if both have same credentials (alias ignored)
+	 */
+	public boolean isSameCredentials(final Identity o) {
+		return (o != null) //
+				&& String.valueOf(username).equals(String.valueOf(o.username)) //
+				&& String.valueOf(keyfile).equals(String.valueOf(o.keyfile)) //
+				&& String.valueOf(getClearTextPassword()).equals(String.valueOf(o.getClearTextPassword()));
+	}
+
 	@Override
 	public String toString() {
 		return "id=" + id + " alias=" + alias //
@@ -0,0 +1,99 @@
+package org.javastack.jentunnel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sshd.common.config.keys.FilePasswordProvider;
+import org.apache.sshd.common.keyprovider.KeyIdentityProvider;
+import org.apache.sshd.common.session.SessionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decrypted identity key pairs (memory only) by keyfile, reloaded when file changes (mtime/size), when
+ * identity changes (see {@link #invalidate(Path)}) or after optional TTL, so reconnects do not parse and
+ * decrypt private keys again
+ */
+class IdentityKeyCache {
+	private static final Logger log = LoggerFactory.getLogger(IdentityKeyCache.class);
+
+	private final ConcurrentHashMap<Path, Entry> cache = new ConcurrentHashMap<Path, Entry>();
+	private final ConcurrentHashMap<Path, Object> locks = new ConcurrentHashMap<Path, Object>();
+	private final long ttlMillis;
+
+	/**
+	 * @param ttlMillis max age of decrypted keys (0 = until file changes or {@link #clear()})
+	 */
+	IdentityKeyCache(final long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param keyfile private key
+	 * @param pass passphrase provider for encrypted keys
+	 * @return lazy provider, key is loaded (or reused) on authentication
+	 */
+	KeyIdentityProvider provider(final Path keyfile, final FilePasswordProvider pass) {
+		return session -> {
+			final KeyPair kp = get(session, keyfile, pass);
+			return ((kp == null) ? Collections.emptyList() : Collections.singletonList(kp));
+		};
+	}
+
+	KeyPair get(final SessionContext session, final Path keyfile, final FilePasswordProvider pass)
+			throws IOException, GeneralSecurityException {
+		final Path path = keyfile.toAbsolutePath();
+		// Concurrent reconnects of same identity wait for a single decryption (passphrase prompt)
+		synchronized (locks.computeIfAbsent(path, k -> new Object())) {
+			final BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
+			final long mtime = attr.lastModifiedTime().toMillis();
+			final long now = System.currentTimeMillis();
+			final Entry e = cache.get(path);
+			if ((e != null) && (e.mtime == mtime) && (e.size == attr.size()) //
+					&& ((ttlMillis <= 0) || ((now - e.loaded) < ttlMillis))) {
+				return e.keyPair;
+			}
+			final long start = System.nanoTime();
+			final KeyPair kp = KeyPairUtils.loadKeyPair(session, path, pass);
+			if (kp == null) {
+				cache.remove(path);
+				return null;
+			}
+			cache.put(path, new Entry(kp, mtime, attr.size(), now));
+			log.info("Identity key {}: {} ({}ms)", ((e == null) ? "loaded" : "reloaded"), path,
+					(System.nanoTime() - start) / 1000000L);
+			return kp;
+		}
+	}
+
+	/**
+	 * Forget decrypted key (identity keyfile or password changed): next use decrypts again
+	 */
+	void invalidate(final Path keyfile) {
+		cache.remove(keyfile.toAbsolutePath());
+	}
+
+	void clear() {
+		cache.clear();
+	}
+
+	private static class Entry {
+		final KeyPair keyPair;
+		final long mtime;
+		final long size;
+		final long loaded;
+
+		Entry(final KeyPair keyPair, final long mtime, final long size, final long loaded) {
+			this.keyPair = keyPair;
+			this.mtime = mtime;
+			this.size = size;
+			this.loaded = loaded;
+		}
+	}
+}
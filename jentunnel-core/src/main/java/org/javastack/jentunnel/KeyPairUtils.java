@@ -19,14 +19,28 @@ import org.apache.sshd.common.config.keys.KeyUtils;
 import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyEncryptionContext;
 import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyPairResourceWriter;
 import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.common.session.SessionContext;
 import org.apache.sshd.common.util.io.resource.PathResource;
 import org.apache.sshd.common.util.security.SecurityUtils;
 
 public class KeyPairUtils {
 	public static KeyPair loadKeyPair(final Path privateKey, final FilePasswordProvider pass)
 			throws GeneralSecurityException, IOException {
+		return loadKeyPair(null, privateKey, pass);
+	}
+
+	/**
+	 * @param session context for passphrase provider (may be null)
+	 * @param privateKey file
+	 * @param pass passphrase provider
+	 * @return first key pair or null
+	 * @throws GeneralSecurityException if unable to decode
+	 * @throws IOException if unable to read
+	 */
+	public static KeyPair loadKeyPair(final SessionContext session, final Path privateKey,
+			final FilePasswordProvider pass) throws GeneralSecurityException, IOException {
 		try (final InputStream in = Files.newInputStream(privateKey)) {
-			final Iterable<KeyPair> keyIter = SecurityUtils.loadKeyPairIdentities(null, //
+			final Iterable<KeyPair> keyIter = SecurityUtils.loadKeyPairIdentities(session, //
 					new PathResource(privateKey), in, pass);
 			if (keyIter == null) {
 				return null;
@@ -0,0 +1,249 @@
+package org.javastack.jentunnel;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed size scheduler with keyed serial queues: tasks with same key never run concurrently and are
+ * executed in submission order (once delay expired). Keys without pending tasks are evicted.
+ */
+class KeyedScheduler {
+	private static final Logger log = LoggerFactory.getLogger(KeyedScheduler.class);
+
+	private final String name;
+	private final ScheduledThreadPoolExecutor executor;
+	private final HashMap<String, SerialQueue> queues = new HashMap<String, SerialQueue>();
+	private volatile boolean shutdown = false;
+
+	KeyedScheduler(final String name, final int threads) {
+		this.name = name;
+		this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			final AtomicInteger c = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName(name + "-" + c.incrementAndGet());
+				return t;
+			}
+		});
+		// Cancelled timers are released now (not when they expire)
+		this.executor.setRemoveOnCancelPolicy(true);
+	}
+
+	public int getThreads() {
+		return executor.getCorePoolSize();
+	}
+
+	public Future<?> schedule(final String key, final Runnable task, final long delayMillis) {
+		final FutureTask<Void> f = new FutureTask<Void>(task, null);
+		synchronized (queues) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Scheduler shutdown: " + name);
+			}
+			SerialQueue q = queues.get(key);
+			if (q == null) {
+				q = new SerialQueue(key);
+				queues.put(key, q);
+			}
+			if (delayMillis <= 0) {
+				q.offer(f);
+			} else {
+				final SerialQueue qq = q;
+				final int epoch = qq.epoch;
+				qq.delayed++;
+				executor.schedule(() -> {
+					synchronized (queues) {
+						if (qq.epoch == epoch) { // Not cancelled
+							qq.delayed--;
+							qq.offer(f);
+						}
+					}
+				}, delayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * One-shot timer outside keyed queues (not awaited by {@link #awaitIdle(long)}), task must be
+	 * short (usually re-schedule in a queue)
+	 *
+	 * @param task to run
+	 * @param delayMillis delay
+	 * @return cancellable future
+	 */
+	public Future<?> timer(final Runnable task, final long delayMillis) {
+		return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Pending tasks (queued + delayed + running) per key
+	 *
+	 * @return snapshot map key/depth
+	 */
+	public Map<String, Integer> getQueueDepth() {
+		final TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+		synchronized (queues) {
+			for (final SerialQueue q : queues.values()) {
+				map.put(q.key, q.depth());
+			}
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	public boolean isIdle() {
+		synchronized (queues) {
+			return queues.isEmpty();
+		}
+	}
+
+	/**
+	 * Wait until every queue is drained
+	 *
+	 * @param timeoutMillis max wait
+	 * @return true if idle
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitIdle(final long timeoutMillis) throws InterruptedException {
+		final long end = System.currentTimeMillis() + timeoutMillis;
+		synchronized (queues) {
+			long wait;
+			while (!queues.isEmpty() && ((wait = end - System.currentTimeMillis()) > 0)) {
+				queues.wait(wait);
+			}
+			return queues.isEmpty();
+		}
+	}
+
+	/**
+	 * Discard delayed and queued tasks and interrupt running ones. Scheduler remains usable.
+	 */
+	public void cancelAll() {
+		synchronized (queues) {
+			for (final SerialQueue q : queues.values().toArray(new SerialQueue[0])) {
+				q.cancel();
+			}
+		}
+	}
+
+	public void shutdown() {
+		synchronized (queues) {
+			shutdown = true;
+		}
+		cancelAll();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Called with lock held
+	 */
+	private void evictIfIdle(final SerialQueue q) {
+		if ((q.depth() == 0) && (queues.get(q.key) == q)) {
+			queues.remove(q.key);
+			if (queues.isEmpty()) {
+				queues.notifyAll();
+			}
+		}
+	}
+
+	private final class SerialQueue implements Runnable {
+		final String key;
+		final ArrayDeque<FutureTask<Void>> tasks = new ArrayDeque<FutureTask<Void>>();
+		int delayed = 0;
+		int epoch = 0;
+		Thread runner = null;
+		boolean running = false;
+
+		SerialQueue(final String key) {
+			this.key = key;
+		}
+
+		int depth() {
+			return tasks.size() + delayed + ((runner != null) ? 1 : 0);
+		}
+
+		/**
+		 * Called with lock held
+		 */
+		void offer(final FutureTask<Void> f) {
+			tasks.add(f);
+			if (!running) {
+				running = true;
+				executor.execute(this);
+			}
+		}
+
+		/**
+		 * Called with lock held
+		 */
+		void cancel() {
+			for (final FutureTask<Void> f : tasks) {
+				f.cancel(false);
+			}
+			tasks.clear();
+			delayed = 0;
+			epoch++;
+			if (runner != null) {
+				runner.interrupt();
+			}
+			evictIfIdle(this);
+		}
+
+		@Override
+		public void run() {
+			final FutureTask<Void> f;
+			final Thread t = Thread.currentThread();
+			synchronized (queues) {
+				f = tasks.poll();
+				if (f == null) {
+					running = false;
+					evictIfIdle(this);
+					return;
+				}
+				runner = t;
+			}
+			final String threadName = t.getName();
+			t.setName(key);
+			try {
+				f.run();
+				// FutureTask keeps the exception (run does not throw): log it, self rescheduling tasks stop
+				if (f.isDone() && !f.isCancelled()) {
+					f.get();
+				}
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				log.error("Task error id={}: {}", key, String.valueOf(cause), cause);
+			} catch (InterruptedException e) {
+				// Cancelled while finishing (status cleared below)
+			} finally {
+				t.setName(threadName);
+				Thread.interrupted(); // Clear interrupt status
+				synchronized (queues) {
+					runner = null;
+					if (tasks.isEmpty()) {
+						running = false;
+						evictIfIdle(this);
+					} else {
+						executor.execute(this); // One task per turn, fair to other keys
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package org.javastack.jentunnel;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sshd.client.ClientFactoryManager;
+import org.apache.sshd.client.session.ClientSessionImpl;
+import org.apache.sshd.client.session.SessionFactory;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.forward.ForwardingTunnelEndpointsProvider;
+import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.apache.sshd.server.forward.TcpipServerChannel;
+
+/**
+ * Client session with traffic counters: channel data is counted when packets are written or
+ * handled (peek at header, no copy), channels are tracked with a {@link ChannelListener} and
+ * attributed to a forward by tunnel entrance (bind address and port, wildcard bind matches any address).
+ * Channels of a forward count to the connection that mapped it (session shared by several connections),
+ * other channels to the connection holding the session.
+ */
+class MeteredClientSession extends ClientSessionImpl implements ChannelListener {
+	private final ConcurrentHashMap<Long, ChannelMeter> byLocalId = new ConcurrentHashMap<Long, ChannelMeter>();
+	private final ConcurrentHashMap<Long, ChannelMeter> byRemoteId = new ConcurrentHashMap<Long, ChannelMeter>();
+	private final ConcurrentHashMap<SshdSocketAddress, Entrance> localForwards = //
+			new ConcurrentHashMap<SshdSocketAddress, Entrance>();
+	private final ConcurrentHashMap<SshdSocketAddress, Entrance> remoteForwards = //
+			new ConcurrentHashMap<SshdSocketAddress, Entrance>();
+	// All channels of session, whatever connection they are accounted to
+	private final TrafficMetrics total = new TrafficMetrics();
+	// No initializer: set by session listener while super constructor runs
+	private volatile TrafficMetrics metrics;
+
+	MeteredClientSession(final ClientFactoryManager client, final IoSession ioSession) throws Exception {
+		super(client, ioSession);
+		addChannelListener(this);
+	}
+
+	void setMetrics(final TrafficMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return counters of every channel of session (not sampled, no rates)
+	 */
+	TrafficMetrics getTotal() {
+		return total;
+	}
+
+	/**
+	 * Re-read settings cached on construction (rekey limits), after per-connection properties are set
+	 */
+	void applyProperties() {
+		refreshConfiguration();
+	}
+
+	/**
+	 * @param remote true for remote forward (entrance on server side)
+	 * @param bound bound address of forward
+	 * @param forwardMetrics counters of forward
+	 * @param connectionMetrics counters of connection that mapped forward (null for holder of session)
+	 */
+	void bindForward(final boolean remote, final SshdSocketAddress bound, final TrafficMetrics forwardMetrics,
+			final TrafficMetrics connectionMetrics) {
+		if (bound != null) {
+			forwards(remote).put(entranceKey(remote, bound), new Entrance(forwardMetrics, connectionMetrics));
+		}
+	}
+
+	void unbindForward(final boolean remote, final SshdSocketAddress bound) {
+		if (bound != null) {
+			forwards(remote).remove(entranceKey(remote, bound));
+		}
+	}
+
+	void unbindForwards() {
+		localForwards.clear();
+		remoteForwards.clear();
+	}
+
+	private ConcurrentHashMap<SshdSocketAddress, Entrance> forwards(final boolean remote) {
+		return (remote ? remoteForwards : localForwards);
+	}
+
+	/**
+	 * Remote entrance is reported by server as it was requested (name or address): port only
+	 */
+	private static SshdSocketAddress entranceKey(final boolean remote, final SshdSocketAddress address) {
+		return (remote ? new SshdSocketAddress(address.getPort()) : address);
+	}
+
+	private Entrance resolveForward(final Channel channel) {
+		if (!(channel instanceof ForwardingTunnelEndpointsProvider)) {
+			return null;
+		}
+		final SshdSocketAddress entrance = ((ForwardingTunnelEndpointsProvider) channel).getTunnelEntrance();
+		if (entrance == null) {
+			return null;
+		}
+		final boolean remote = (channel instanceof TcpipServerChannel);
+		return SshdSocketAddress.findByOptionalWildcardAddress(forwards(remote), entranceKey(remote, entrance));
+	}
+
+	@Override
+	public IoWriteFuture writePacket(final Buffer buffer) throws IOException {
+		count(buffer, false);
+		return super.writePacket(buffer);
+	}
+
+	@Override
+	protected void handleMessage(final Buffer buffer) throws Exception {
+		count(buffer, true);
+		super.handleMessage(buffer);
+	}
+
+	/**
+	 * Peek SSH_MSG_CHANNEL_DATA / SSH_MSG_CHANNEL_EXTENDED_DATA header (buffer is untouched)
+	 */
+	private void count(final Buffer buffer, final boolean inbound) {
+		final int rpos = buffer.rpos();
+		final int avail = buffer.available();
+		if (avail < 9) {
+			return;
+		}
+		final byte cmd = buffer.rawByte(rpos);
+		final int lenOffset;
+		if (cmd == SshConstants.SSH_MSG_CHANNEL_DATA) {
+			lenOffset = 5;
+		} else if ((cmd == SshConstants.SSH_MSG_CHANNEL_EXTENDED_DATA) && (avail >= 13)) {
+			lenOffset = 9;
+		} else {
+			return;
+		}
+		final long recipient = buffer.rawUInt(rpos + 1);
+		final long len = buffer.rawUInt(rpos + lenOffset);
+		final ChannelMeter m = (inbound ? byLocalId : byRemoteId).get(recipient);
+		if (m != null) {
+			m.add(inbound, len);
+		}
+	}
+
+	@Override
+	public void channelInitialized(final Channel channel) {
+		byLocalId.put(channel.getChannelId(), new ChannelMeter());
+	}
+
+	@Override
+	public void channelOpenSuccess(final Channel channel) {
+		final ChannelMeter m = byLocalId.get(channel.getChannelId());
+		if (m == null) {
+			return;
+		}
+		final Entrance e = resolveForward(channel);
+		m.opened(total, connection(e), ((e == null) ? null : e.forward));
+		byRemoteId.put(channel.getRecipient(), m);
+	}
+
+	@Override
+	public void channelOpenFailure(final Channel channel, final Throwable reason) {
+		final ChannelMeter m = byLocalId.remove(channel.getChannelId());
+		if (m != null) {
+			final Entrance e = resolveForward(channel);
+			m.failed(total, connection(e), ((e == null) ? null : e.forward));
+		}
+	}
+
+	@Override
+	public void channelClosed(final Channel channel, final Throwable reason) {
+		final ChannelMeter m = byLocalId.remove(channel.getChannelId());
+		if (m != null) {
+			byRemoteId.remove(channel.getRecipient(), m);
+			m.closed();
+		}
+	}
+
+	private TrafficMetrics connection(final Entrance e) {
+		return (((e == null) || (e.connection == null)) ? metrics : e.connection);
+	}
+
+	private static final class Entrance {
+		final TrafficMetrics forward;
+		final TrafficMetrics connection;
+
+		Entrance(final TrafficMetrics forward, final TrafficMetrics connection) {
+			this.forward = forward;
+			this.connection = connection;
+		}
+	}
+
+	private static final class ChannelMeter {
+		private final long start = System.nanoTime();
+		private volatile TrafficMetrics total = null;
+		private volatile TrafficMetrics session = null;
+		private volatile TrafficMetrics forward = null;
+
+		void opened(final TrafficMetrics total, final TrafficMetrics session, final TrafficMetrics forward) {
+			final long latency = (System.nanoTime() - start) / 1000000L;
+			this.total = total;
+			this.session = session;
+			this.forward = forward;
+			total.channelOpened(latency);
+			if (session != null) {
+				session.channelOpened(latency);
+			}
+			if (forward != null) {
+				forward.channelOpened(latency);
+			}
+		}
+
+		void failed(final TrafficMetrics total, final TrafficMetrics session, final TrafficMetrics forward) {
+			total.channelFailed();
+			if (session != null) {
+				session.channelFailed();
+			}
+			if (forward != null) {
+				forward.channelFailed();
+			}
+		}
+
+		void add(final boolean inbound, final long len) {
+			final TrafficMetrics t = total;
+			final TrafficMetrics s = session;
+			final TrafficMetrics f = forward;
+			if (t == null) {
+				return; // Not opened yet
+			}
+			if (inbound) {
+				t.addIn(len);
+				if (s != null) {
+					s.addIn(len);
+				}
+				if (f != null) {
+					f.addIn(len);
+				}
+			} else {
+				t.addOut(len);
+				if (s != null) {
+					s.addOut(len);
+				}
+				if (f != null) {
+					f.addOut(len);
+				}
+			}
+		}
+
+		void closed() {
+			final TrafficMetrics t = total;
+			final TrafficMetrics s = session;
+			final TrafficMetrics f = forward;
+			if (t != null) {
+				t.channelClosed();
+			}
+			if (s != null) {
+				s.channelClosed();
+			}
+			if (f != null) {
+				f.channelClosed();
+			}
+		}
+	}
+
+	static class Factory extends SessionFactory {
+		Factory(final ClientFactoryManager client) {
+			super(client);
+		}
+
+		@Override
+		protected ClientSessionImpl doCreateSession(final IoSession ioSession) throws Exception {
+			return new MeteredClientSession(getClient(), ioSession);
+		}
+	}
+}
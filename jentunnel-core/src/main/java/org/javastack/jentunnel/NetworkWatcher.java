@@ -0,0 +1,107 @@
+package org.javastack.jentunnel;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Poll local interface addresses and default route (source address used to reach a non-local
+ * address), notify on change (Wi-Fi switch, VPN up/down, DHCP renew,...)
+ */
+class NetworkWatcher {
+	private static final Logger log = LoggerFactory.getLogger(NetworkWatcher.class);
+	// TEST-NET-1 (RFC-5737), nothing is sent, only used to resolve the route
+	private static final InetSocketAddress ROUTE_PROBE = new InetSocketAddress("192.0.2.1", 9);
+
+	private final Listener listener;
+	private volatile Set<InetAddress> last = null;
+	private volatile InetAddress lastRoute = null;
+
+	NetworkWatcher(final Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Reset state, next check will be the baseline (no notification)
+	 */
+	void reset() {
+		last = null;
+		lastRoute = null;
+	}
+
+	/**
+	 * @return true if changes detected (and notified)
+	 */
+	boolean check() {
+		final Set<InetAddress> current;
+		final InetAddress route;
+		try {
+			current = getLocalAddresses();
+			route = getDefaultRouteAddress();
+		} catch (Exception e) {
+			log.warn("Unable to check network: {}", String.valueOf(e));
+			return false;
+		}
+		final Set<InetAddress> previous = last;
+		final InetAddress previousRoute = lastRoute;
+		last = current;
+		lastRoute = route;
+		if (previous == null) {
+			log.info("Network addresses={} route={}", current, route);
+			return false;
+		}
+		if (previous.equals(current) && String.valueOf(previousRoute).equals(String.valueOf(route))) {
+			return false;
+		}
+		log.info("Network changed addresses={} route={} (old addresses={} route={})", //
+				current, route, previous, previousRoute);
+		listener.networkChanged(current);
+		return true;
+	}
+
+	static Set<InetAddress> getLocalAddresses() throws IOException {
+		final HashSet<InetAddress> set = new HashSet<InetAddress>();
+		final Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces();
+		if (ifaces == null) {
+			return Collections.emptySet();
+		}
+		while (ifaces.hasMoreElements()) {
+			final NetworkInterface iface = ifaces.nextElement();
+			if (!iface.isUp()) {
+				continue;
+			}
+			final Enumeration<InetAddress> addrs = iface.getInetAddresses();
+			while (addrs.hasMoreElements()) {
+				set.add(addrs.nextElement());
+			}
+		}
+		return set;
+	}
+
+	static InetAddress getDefaultRouteAddress() {
+		try (final DatagramSocket s = new DatagramSocket()) {
+			s.connect(ROUTE_PROBE);
+			final InetAddress addr = s.getLocalAddress();
+			return (((addr == null) || addr.isAnyLocalAddress()) ? null : addr);
+		} catch (Exception e) {
+			// Network unreachable
+			return null;
+		}
+	}
+
+	static interface Listener {
+		/**
+		 * @param addresses current local addresses
+		 */
+		public void networkChanged(final Set<InetAddress> addresses);
+	}
+}
@@ -0,0 +1,176 @@
+package org.javastack.jentunnel;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listen sockets of an on-demand connection while there is no SSH session (local and dynamic forwards,
+ * all ports of ranges). First client triggers connect; clients accepted until forwards are mapped are
+ * kept and then replayed, relayed over loopback to the port mapped by the session. Later clients
+ * connect directly to the mapped port.
+ */
+class OnDemandListener {
+	private static final Logger log = LoggerFactory.getLogger(OnDemandListener.class);
+	private static final int BACKLOG = 50;
+	private static final long RELEASE_WAIT = 1000;
+
+	private final String name;
+	private final Runnable onDemand;
+	private final List<ServerSocket> servers = new ArrayList<ServerSocket>();
+	private final List<Thread> acceptors = new ArrayList<Thread>();
+	private final List<Client> pending = new ArrayList<Client>();
+	private boolean triggered = false;
+	private boolean released = false;
+
+	/**
+	 * @param name connection alias (logs and thread names)
+	 * @param onDemand called on first client (from accept thread, must not block)
+	 */
+	OnDemandListener(final String name, final Runnable onDemand) {
+		this.name = name;
+		this.onDemand = onDemand;
+	}
+
+	/**
+	 * Bind local ports of forwards (remote forwards are ignored, they need a session)
+	 *
+	 * @param forwards of connection
+	 * @throws IOException if a port can not be bound (nothing is left bound)
+	 */
+	void bind(final List<Forward> forwards) throws IOException {
+		try {
+			bind0(forwards);
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private synchronized void bind0(final List<Forward> forwards) throws IOException {
+		for (final Forward f : forwards) {
+			if (f.getType() == Forward.Type.REMOTE) {
+				continue;
+			}
+			for (int i = 0; i < f.getPortCount(); i++) {
+				final SshdSocketAddress addr = f.getLocalSocketAddress(i);
+				final ServerSocket ss = new ServerSocket();
+				servers.add(ss);
+				ss.setReuseAddress(true);
+				ss.bind(addr.toInetSocketAddress(), BACKLOG);
+				final Thread t = new Thread(() -> acceptLoop(ss, addr));
+				t.setDaemon(true);
+				t.setName("on-demand-" + name + "-" + addr.getPort());
+				acceptors.add(t);
+				t.start();
+			}
+		}
+		log.info("On-demand listening {}: ports={}", name, servers.size());
+	}
+
+	private void acceptLoop(final ServerSocket ss, final SshdSocketAddress addr) {
+		while (!ss.isClosed()) {
+			final Socket s;
+			try {
+				s = ss.accept();
+			} catch (IOException e) {
+				break;
+			}
+			final boolean first;
+			synchronized (this) {
+				if (released) {
+					// Raced with release (listen socket is being closed)
+					closeQuietly(s);
+					break;
+				}
+				pending.add(new Client(s, addr));
+				first = !triggered;
+				triggered = true;
+			}
+			log.info("On-demand client {}: {} > {}", name, s.getRemoteSocketAddress(), addr);
+			if (first) {
+				onDemand.run();
+			}
+		}
+	}
+
+	/**
+	 * Failed connect: drop waiting clients and keep listening, next client triggers again
+	 */
+	synchronized void reject() {
+		for (final Client c : pending) {
+			closeQuietly(c.socket);
+		}
+		pending.clear();
+		triggered = false;
+	}
+
+	/**
+	 * Stop listening (ports are free to be mapped by the session)
+	 *
+	 * @return clients waiting for replay
+	 */
+	List<Client> release() {
+		final List<Thread> threads;
+		final List<Client> list;
+		synchronized (this) {
+			released = true;
+			for (final ServerSocket ss : servers) {
+				closeQuietly(ss);
+			}
+			servers.clear();
+			threads = new ArrayList<Thread>(acceptors);
+			acceptors.clear();
+			list = new ArrayList<Client>(pending);
+			pending.clear();
+		}
+		// Listen socket blocked in accept is really closed (port free) when accept returns
+		for (final Thread t : threads) {
+			try {
+				t.join(RELEASE_WAIT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return list;
+	}
+
+	void close() {
+		for (final Client c : release()) {
+			closeQuietly(c.socket);
+		}
+	}
+
+	/**
+	 * Relay each client to its (now mapped) listen address
+	 *
+	 * @param clients released clients
+	 */
+	static void replay(final List<Client> clients) {
+		for (final Client c : clients) {
+			new SocketRelay(c.socket, c.address.toInetSocketAddress(), null) //
+					.start("on-demand-replay-" + c.address.getPort());
+		}
+	}
+
+	private static void closeQuietly(final AutoCloseable c) {
+		SocketRelay.closeQuietly(c);
+	}
+
+	static final class Client {
+		final Socket socket;
+		final SshdSocketAddress address;
+
+		Client(final Socket socket, final SshdSocketAddress address) {
+			this.socket = socket;
+			this.address = address;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.javastack.jentunnel;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.SshException;
+import org.apache.sshd.common.session.helpers.TimeoutIndicator;
+
+/**
+ * Reconnect backoff with decorrelated jitter: {@code sleep = min(max, random(min, lastSleep * 3))}
+ * <p>
+ * Policy is selected by {@link ErrorClass} in this order: connection policy for the error, built-in
+ * policy for the error ({@link #DEFAULTS}), connection policy without error (any), built-in policy
+ * without error.
+ */
+public class ReconnectPolicy {
+	public static final long DEFAULT_MIN_SLEEP_MILLIS = 1000;
+	public static final long DEFAULT_MAX_SLEEP_MILLIS = 30000;
+
+	public static final ReconnectPolicy ANY = new ReconnectPolicy();
+	public static final List<ReconnectPolicy> DEFAULTS = Collections.unmodifiableList(Arrays.asList( //
+			new ReconnectPolicy(ErrorClass.AUTH, false, 0, 0), //
+			new ReconnectPolicy(ErrorClass.HOST_KEY, false, 0, 0), //
+			new ReconnectPolicy(ErrorClass.UNREACHABLE, true, 5000, 60000), //
+			ANY));
+
+	/**
+	 * Error this policy apply to, null for any
+	 */
+	public final ErrorClass error;
+	public final boolean retry;
+	public final long minSleep;
+	public final long maxSleep;
+
+	ReconnectPolicy() {
+		this(null, true, DEFAULT_MIN_SLEEP_MILLIS, DEFAULT_MAX_SLEEP_MILLIS);
+	}
+
+	public ReconnectPolicy(final ErrorClass error, final boolean retry, final long minSleep,
+			final long maxSleep) {
+		this.error = error;
+		this.retry = retry;
+		this.minSleep = minSleep;
+		this.maxSleep = maxSleep;
+	}
+
+	/**
+	 * @param lastSleep previous sleep in millis, 0 for first retry
+	 * @return sleep in millis before next retry or -1 for no retry
+	 */
+	public long nextSleep(final long lastSleep) {
+		if (!retry) {
+			return -1;
+		}
+		final long min = Math.max(0, minSleep);
+		final long max = Math.max(min, maxSleep);
+		final long upper = Math.min(max, Math.max(min, lastSleep) * 3);
+		if (upper <= min) {
+			return min;
+		}
+		return ThreadLocalRandom.current().nextLong(min, upper + 1);
+	}
+
+	public static ReconnectPolicy select(final List<ReconnectPolicy> custom, final ErrorClass error) {
+		ReconnectPolicy p = null;
+		if ((p = find(custom, error)) != null) {
+			return p;
+		}
+		if ((p = find(DEFAULTS, error)) != null) {
+			return p;
+		}
+		if ((p = find(custom, null)) != null) {
+			return p;
+		}
+		return ANY;
+	}
+
+	private static ReconnectPolicy find(final List<ReconnectPolicy> list, final ErrorClass error) {
+		if (list == null) {
+			return null;
+		}
+		for (final ReconnectPolicy p : list) {
+			if ((p != null) && (p.error == error)) {
+				return p;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "error=" + error + " retry=" + retry + " min=" + minSleep + " max=" + maxSleep;
+	}
+
+	public static enum ErrorClass {
+		/**
+		 * Authentication failed (bad user/password/key)
+		 */
+		AUTH,
+		/**
+		 * Server key rejected (unknown or modified)
+		 */
+		HOST_KEY,
+		/**
+		 * Connect or handshake timeout
+		 */
+		TIMEOUT,
+		/**
+		 * No route, unknown host, network down
+		 */
+		UNREACHABLE,
+		/**
+		 * Anything else (refused, broken connection,...)
+		 */
+		OTHER;
+
+		public static ErrorClass classify(final Throwable error) {
+			Throwable t = error;
+			for (int i = 0; (t != null) && (i < 16); i++, t = t.getCause()) {
+				if (t instanceof SshException) {
+					switch (((SshException) t).getDisconnectCode()) {
+						case SshConstants.SSH2_DISCONNECT_NO_MORE_AUTH_METHODS_AVAILABLE:
+						case SshConstants.SSH2_DISCONNECT_ILLEGAL_USER_NAME:
+						case SshConstants.SSH2_DISCONNECT_AUTH_CANCELLED_BY_USER:
+							return AUTH;
+						case SshConstants.SSH2_DISCONNECT_HOST_KEY_NOT_VERIFIABLE:
+							return HOST_KEY;
+						default:
+							break;
+					}
+					if (isAuthTimeout(t)) {
+						return TIMEOUT;
+					}
+				} else if ((t instanceof SocketTimeoutException) //
+						|| (t instanceof InterruptedByTimeoutException) //
+						|| (t instanceof TimeoutException)) {
+					return TIMEOUT;
+				} else if ((t instanceof NoRouteToHostException) //
+						|| (t instanceof UnknownHostException) //
+						|| (t instanceof PortUnreachableException)) {
+					return UNREACHABLE;
+				} else if ((t instanceof ConnectException) //
+						&& String.valueOf(t.getMessage()).contains("unreachable")) {
+					// "Network is unreachable"
+					return UNREACHABLE;
+				}
+			}
+			return OTHER;
+		}
+
+		/**
+		 * MINA auth timeout (local or of peer) is a protocol error disconnect: "Detected AuthTimeout after..."
+		 */
+		private static boolean isAuthTimeout(final Throwable t) {
+			return String.valueOf(t.getMessage()).contains(TimeoutIndicator.TimeoutStatus.AuthTimeout.name());
+		}
+	}
+}
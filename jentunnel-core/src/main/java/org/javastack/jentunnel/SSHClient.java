@@ -14,15 +14,16 @@
  */
 package org.javastack.jentunnel;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.Console;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
@@ -30,42 +31,58 @@ import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.PublicKey;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.sshd.client.SshClient;
 import org.apache.sshd.client.channel.ClientChannel;
 import org.apache.sshd.client.channel.ClientChannelEvent;
 import org.apache.sshd.client.config.hosts.HostConfigEntry;
+import org.apache.sshd.client.future.AuthFuture;
 import org.apache.sshd.client.future.ConnectFuture;
-import org.apache.sshd.client.keyverifier.KnownHostsServerKeyVerifier;
 import org.apache.sshd.client.keyverifier.ModifiedServerKeyAcceptor;
 import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
 import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.client.session.ClientSessionCreator;
 import org.apache.sshd.client.session.forward.PortForwardingTracker;
+import org.apache.sshd.common.AttributeRepository;
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
 import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.SshException;
 import org.apache.sshd.common.config.keys.FilePasswordProvider;
 import org.apache.sshd.common.config.keys.KeyUtils;
 import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyPairResourceWriter;
 import org.apache.sshd.common.digest.BuiltinDigests;
+import org.apache.sshd.common.future.GlobalRequestFuture;
 import org.apache.sshd.common.forward.DefaultForwarderFactory;
+import org.apache.sshd.common.kex.KexProposalOption;
+import org.apache.sshd.common.session.ConnectionService;
 import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.session.helpers.AbstractConnectionService;
+import org.apache.sshd.common.util.buffer.Buffer;
 import org.apache.sshd.common.util.io.input.NoCloseInputStream;
 import org.apache.sshd.common.util.io.output.NoCloseOutputStream;
 import org.apache.sshd.common.util.net.SshdSocketAddress;
@@ -80,26 +97,62 @@ public class SSHClient {
 																								 // Changeme
 
 	private static final Logger log = LoggerFactory.getLogger(SSHClient.class);
-	private static final long DEFAULT_MIN_RECONNECT_SLEEP_TIME_MILLIS = 1000;
-	private static final long DEFAULT_MAX_RECONNECT_SLEEP_TIME_MILLIS = 30000;
+	private static final long DEFAULT_MIN_RECONNECT_SLEEP_TIME_MILLIS = ReconnectPolicy.DEFAULT_MIN_SLEEP_MILLIS;
+	private static final long DEFAULT_MAX_RECONNECT_SLEEP_TIME_MILLIS = ReconnectPolicy.DEFAULT_MAX_SLEEP_MILLIS;
+	private static final AttributeKey<Session> SESSION_ATTR = new AttributeKey<Session>();
+	private static final AttributeKey<SessionPool> POOL_ATTR = new AttributeKey<SessionPool>();
+	private static final int DEFAULT_SCHEDULER_THREADS = Integer.getInteger("jentunnel.scheduler.threads", 8);
+	private static final int DEFAULT_AUTOSTART_CONCURRENCY = Integer.getInteger("jentunnel.autostart.concurrency", 4);
+	private static final long DEFAULT_AUTOSTART_STAGGER_MILLIS = Long.getLong("jentunnel.autostart.stagger", 250L);
+	private static final long DEFAULT_NETWORK_POLL_MILLIS = Long.getLong("jentunnel.network.poll", 2000L);
+	private static final long DEFAULT_PROBE_TIMEOUT_MILLIS = 3000L;
+	private static final long DEFAULT_FAST_RECONNECT_MILLIS = 100L;
+	private static final String PROBE_REQUEST = "keepalive@openssh.com";
+	private static final int ADAPTIVE_HEARTBEAT_MAX_FACTOR = 8;
+	private static final long DEFAULT_METRICS_SAMPLE_MILLIS = Long.getLong("jentunnel.metrics.sample", 1000L);
+	private static final int DEFAULT_HANDSHAKE_HISTORY = Integer.getInteger("jentunnel.handshake.history", 64);
+	private static final long DEFAULT_IDENTITY_KEY_TTL_MILLIS = Long.getLong("jentunnel.identity.ttl", 0L);
+	private static final long DEFAULT_CONFIG_POLL_MILLIS = Long.getLong("jentunnel.config.poll", 0L);
+	private static final long DEFAULT_SAVE_DELAY_MILLIS = Long.getLong("jentunnel.config.save.delay", 500L);
+	private static final boolean DEFAULT_SESSION_SHARING = Boolean
+			.parseBoolean(System.getProperty("jentunnel.session.sharing", "false"));
+	private static final long DEFAULT_POOL_RETRY_MILLIS = Long.getLong("jentunnel.pool.retry", 5000L);
+	private static final long DEFAULT_WINDOW_TUNE_MILLIS = Long.getLong("jentunnel.window.tune", 2000L);
+	private static final long DEFAULT_WINDOW_MAX = Long.getLong("jentunnel.window.max", 64L * 1024 * 1024);
 
 	private final String configDirectory;
 	private final ConfigUtils cfg;
 	private final Set<Session> sessions;
+	private final Map<String, Session> sessionsByConnection;
 	private final Set<Notify> notify;
-	private Set<Identity> identities = null;
-	private Set<Forward> forwards = null;
-	private Set<Connection> connections = null;
-	private HashMap<String, ScheduledExecutorService> thPool = null;
-	private volatile boolean isDirtyConfig = false;
+	private final ConfigRegistry registry = new ConfigRegistry();
+	private SharedKnownHostsVerifier knownHostsVerifier = null;
+	private final IdentityKeyCache identityKeys = new IdentityKeyCache(DEFAULT_IDENTITY_KEY_TTL_MILLIS);
+	private KeyedScheduler scheduler = null;
+	private final AtomicLong configVersion = new AtomicLong();
+	private volatile long savedVersion = 0;
+	private final List<Runnable> saveCallbacks = new ArrayList<Runnable>();
+	private boolean savePending = false;
 	private ServerKeyVerifier keyAcceptatorNew = null;
 	private ModifiedServerKeyAcceptor keyAcceptatorModified = null;
 	private FilePasswordProvider filePasswordProvider = null;
+	private SshClient sshClient = null;
+	private volatile AutoStart autoStart = null;
+	private NetworkWatcher networkWatcher = null;
+	private volatile boolean networkWatching = false;
+	private final Map<String, TrafficMetrics> connectionMetrics = new ConcurrentHashMap<String, TrafficMetrics>();
+	private final Map<String, TrafficMetrics> forwardMetrics = new ConcurrentHashMap<String, TrafficMetrics>();
+	private volatile boolean metricsSampling = false;
+	private volatile boolean configWatching = false;
+	private volatile long configModified = 0;
+	private final Map<String, HandshakeTimings> handshakeTimings = new ConcurrentHashMap<String, HandshakeTimings>();
+	private final Map<String, SharedSession> sharedSessions = new HashMap<String, SharedSession>();
 
 	public SSHClient(final String configDirectory) {
 		this.configDirectory = configDirectory;
 		this.cfg = new ConfigUtils(configDirectory);
 		this.sessions = new CopyOnWriteArraySet<Session>();
+		this.sessionsByConnection = new ConcurrentHashMap<String, Session>();
 		this.notify = new CopyOnWriteArraySet<Notify>();
 	}
 
@@ -113,15 +166,23 @@ public class SSHClient {
 		}
 		//
 		log.info("Directory configutarion: {}", configDirectory);
+		configModified = cfg.lastModified();
 		final ConfigData data = cfg.load();
-		this.identities = data.identities();
-		this.forwards = data.forwards();
-		this.connections = data.connections();
-		log.info("Identities loaded={}", identities.size());
-		log.info("Forwards loaded={}", forwards.size());
-		log.info("Connections loaded={}", connections.size());
+		registry.load(data);
+		log.info("Identities loaded={}", registry.identities.size());
+		log.info("Forwards loaded={}", registry.forwards.size());
+		log.info("Connections loaded={}", registry.connections.size());
+		for (final Connection c : registry.connections.values()) {
+			if (c.cryptoProfile == Connection.CryptoProfile.FASTEST) {
+				// Measured in background, ready before (most) connections start
+				CryptoBenchmark.start();
+				break;
+			}
+		}
 		//
-		this.thPool = new HashMap<String, ScheduledExecutorService>();
+		this.scheduler = new KeyedScheduler("ssh-task", DEFAULT_SCHEDULER_THREADS);
+		log.info("Scheduler threads={}", scheduler.getThreads());
+		this.networkWatcher = new NetworkWatcher(addresses -> networkChanged(addresses));
 		//
 		final Thread cleanThread = new Thread(() -> stop());
 		cleanThread.setName("ssh-clean");
@@ -141,6 +202,17 @@ public class SSHClient {
 
 	public void setFilePasswordProvider(final FilePasswordProvider filePasswordProvider) {
 		this.filePasswordProvider = filePasswordProvider;
+		synchronized (this) {
+			if (sshClient != null) {
+				sshClient.setFilePasswordProvider(getFilePasswordProvider());
+			}
+		}
+	}
+
+	private FilePasswordProvider getFilePasswordProvider() {
+		return ((filePasswordProvider != null) //
+				? filePasswordProvider //
+				: FilePasswordProvider.EMPTY);
 	}
 
 	public void setKeyAcceptatorNew(final ServerKeyVerifier keyAcceptatorNew) {
@@ -152,50 +224,318 @@ public class SSHClient {
 	}
 
 	public void stop() {
-		if (sessions.isEmpty() && thPool.isEmpty()) {
+		networkWatching = false;
+		metricsSampling = false;
+		configWatching = false;
+		if (sessions.isEmpty() && scheduler.isIdle() && (sshClient == null)) {
 			// Nothing to do
 			return;
 		}
 		log.info("Stoping...");
+		final AutoStart as = autoStart;
+		if (as != null) {
+			as.cancel();
+		}
 		for (final Session s : sessions) {
 			final String id = s.getConnectionID();
 			submitTask("connection:" + s.getConnectionAlias(), () -> disconnect0(id));
 		}
-		for (final Entry<String, ScheduledExecutorService> e : thPool.entrySet()) {
-			shutdownAndAwaitTermination(e.getKey(), e.getValue());
-		}
-		thPool.clear();
+		awaitTermination();
+		stopSshClient();
 	}
 
-	private void shutdownAndAwaitTermination(final String id, final ExecutorService pool) {
-		log.info("ThreadPool shutdown: {}", id);
-		pool.shutdown(); // Disable new tasks from being submitted
+	private void awaitTermination() {
+		log.info("Scheduler drain: {}", scheduler.getQueueDepth());
 		try {
 			// Wait a while for existing tasks to terminate
-			if (!pool.awaitTermination(DEFAULT_MIN_RECONNECT_SLEEP_TIME_MILLIS * 2, TimeUnit.MILLISECONDS)) {
-				pool.shutdownNow(); // Cancel currently executing tasks
+			if (!scheduler.awaitIdle(DEFAULT_MIN_RECONNECT_SLEEP_TIME_MILLIS * 2)) {
+				scheduler.cancelAll(); // Cancel pending and currently executing tasks
 				// Wait a while for tasks to respond to being cancelled
-				if (!pool.awaitTermination(500 //
+				if (!scheduler.awaitIdle(500 //
 						+ DEFAULT_MIN_RECONNECT_SLEEP_TIME_MILLIS //
-						+ DEFAULT_MAX_RECONNECT_SLEEP_TIME_MILLIS //
-						, TimeUnit.MILLISECONDS)) {
-					log.error("ThreadPool did not terminate: {}", id);
+						+ DEFAULT_MAX_RECONNECT_SLEEP_TIME_MILLIS)) {
+					log.error("Scheduler did not terminate: {}", scheduler.getQueueDepth());
 				}
 			}
 		} catch (InterruptedException ie) {
 			// (Re-)Cancel if current thread also interrupted
-			pool.shutdownNow();
+			scheduler.cancelAll();
 			// Preserve interrupt status
 			Thread.currentThread().interrupt();
 		}
 	}
 
+	/**
+	 * Shared SSH engine (NIO workers, timers) for all sessions, created on demand and released in
+	 * {@link #stop()}. Per-connection settings are applied on session creation, see
+	 * {@link Session#setup(ClientSession)}.
+	 */
+	private synchronized SshClient getSshClient() {
+		if (sshClient == null) {
+			// Alternative with JSch http://www.jcraft.com/jsch/examples/PortForwardingR.java.html
+			final SshClient client = SshClient.setUpDefaultClient();
+			// org.apache.sshd.client.ClientBuilder
+			client.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE); // For RemotePortForwarding
+			client.setForwarderFactory(new DefaultForwarderFactory());
+			client.setSessionFactory(new MeteredClientSession.Factory(client)); // Traffic counters
+			// https://github.com/apache/mina-sshd/blob/master/docs/client-setup.md
+			// TODO: Nuevo PublicKey Auth?
+			// client.setClientIdentityLoader(ClientIdentityLoader.DEFAULT);
+			// For encrypted private keys
+			client.setFilePasswordProvider(getFilePasswordProvider());
+			// client.setKeyIdentityProvider(null);
+			client.addSessionListener(new SessionListener() {
+				@Override
+				public void sessionCreated(final org.apache.sshd.common.session.Session session) {
+					final ClientSession cs = (ClientSession) session;
+					final AttributeRepository context = cs.getConnectionContext();
+					final Session s = ((context == null) ? null : context.getAttribute(SESSION_ATTR));
+					if (s == null) {
+						return;
+					}
+					if (context.getAttribute(POOL_ATTR) != null) {
+						s.setupMember(cs);
+					} else {
+						s.setup(cs);
+					}
+				}
+			});
+
+			// org.apache.sshd.client.session.ClientConnectionService
+			// handleUnknownRequest(ClientConnectionService[ClientSessionImpl[test@/192.168.x.x:22]])
+			// unknown global request: keepalive@openssh.com
+			// client.setSessionHeartbeat(HeartbeatType.IGNORE, TimeUnit.SECONDS, 10);
+
+			// apache.sshd.client.session.ClientSessionImpl
+			// Disconnecting(ClientSessionImpl[test@/192.168.x.x:22]): SSH2_DISCONNECT_PROTOCOL_ERROR
+			// - Detected IdleTimeout after 600215/600000 ms.
+			// PropertyResolverUtils.updateProperty(client, FactoryManager.IDLE_TIMEOUT, 0L); // DISABLE
+
+			// org.apache.sshd.client.session.ClientSessionImpl
+			// exceptionCaught(ClientSessionImpl[test@/192.168.x.x:22])[state=Opened]
+			// InterruptedByTimeoutException: null
+			// PropertyResolverUtils.updateProperty(client, FactoryManager.NIO2_READ_TIMEOUT,
+			// TimeUnit.DAYS.toMillis(0L)); // DISABLE
+			client.start();
+			log.info("SshClient started");
+			sshClient = client;
+		}
+		return sshClient;
+	}
+
+	/**
+	 * Shared known_hosts verifier (parsed once, reloaded on file change), created on demand
+	 */
+	private synchronized ServerKeyVerifier getKnownHostsVerifier() throws IOException {
+		if (knownHostsVerifier == null) {
+			final File knownHost = new File(getConfigDir(), "known_hosts");
+			if (!knownHost.exists()) {
+				knownHost.createNewFile();
+			}
+			final SharedKnownHostsVerifier hostVerifier = new SharedKnownHostsVerifier(
+					((clientSession, remoteAddress, serverKey) -> {
+						log.warn("Unknown server {} publickey [{}][{}] ({} [{}])", //
+								remoteAddress, //
+								KeyUtils.getFingerPrint(BuiltinDigests.sha256, serverKey), //
+								KeyUtils.getFingerPrint(BuiltinDigests.md5, serverKey), //
+								KeyUtils.getKeyType(serverKey), //
+								KeyUtils.getKeySize(serverKey));
+						return (keyAcceptatorNew == null) ? true
+								: keyAcceptatorNew.verifyServerKey(clientSession, //
+										remoteAddress, serverKey);
+					}), knownHost.toPath());
+			hostVerifier.setModifiedServerKeyAcceptor(
+					(clientSession, remoteAddress, entry, expected, actual) -> {
+						log.warn(
+								"Known server {} changed publickey from [{}][{}] ({} [{}]) to [{}][{}] ({} [{}])",
+								remoteAddress, //
+								KeyUtils.getFingerPrint(BuiltinDigests.sha256, expected), //
+								KeyUtils.getFingerPrint(BuiltinDigests.md5, expected), //
+								KeyUtils.getKeyType(expected), //
+								KeyUtils.getKeySize(expected), //
+								KeyUtils.getFingerPrint(BuiltinDigests.sha256, actual), //
+								KeyUtils.getFingerPrint(BuiltinDigests.md5, actual), //
+								KeyUtils.getKeyType(actual), //
+								KeyUtils.getKeySize(actual));
+						return (keyAcceptatorModified == null) ? false
+								: keyAcceptatorModified.acceptModifiedServerKey(clientSession, //
+										remoteAddress, entry, expected, actual);
+					});
+			knownHostsVerifier = hostVerifier;
+		}
+		return knownHostsVerifier;
+	}
+
+	private synchronized void stopSshClient() {
+		if (sshClient != null) {
+			log.info("SshClient shutdown");
+			try {
+				sshClient.stop();
+			} catch (Exception e) {
+				log.error("Unable to stop SshClient: {}", String.valueOf(e));
+			}
+			sshClient = null;
+		}
+		identityKeys.clear();
+		if (knownHostsVerifier != null) {
+			knownHostsVerifier.close();
+		}
+	}
+
 	public void start() {
-		for (final Connection c : connections) {
+		startNetworkWatcher();
+		startMetricsSampler();
+		startConfigWatcher();
+		final List<Connection> list = new ArrayList<Connection>();
+		for (final Connection c : registry.connections.values()) {
 			if (!c.isAutoStart) {
 				continue;
 			}
-			connect(c.id);
+			list.add(c);
+		}
+		if (list.isEmpty()) {
+			return;
+		}
+		// Jump hosts before connections through them, then higher priority first
+		final Map<String, Integer> depth = new HashMap<String, Integer>();
+		for (final Connection c : list) {
+			depth.put(c.id, jumpDepth(c));
+		}
+		Collections.sort(list, (a, b) -> {
+			int cmp = Integer.compare(depth.get(a.id), depth.get(b.id));
+			if (cmp == 0) {
+				cmp = Integer.compare(b.priority, a.priority);
+			}
+			return ((cmp != 0) ? cmp : String.valueOf(a.alias).compareTo(String.valueOf(b.alias)));
+		});
+		final AutoStart as = new AutoStart(list, DEFAULT_AUTOSTART_CONCURRENCY, DEFAULT_AUTOSTART_STAGGER_MILLIS);
+		final AutoStart old = autoStart;
+		if (old != null) {
+			old.cancel();
+		}
+		autoStart = as;
+		as.pump();
+	}
+
+	/**
+	 * Elapsed time of last autostart until all connections established or failed without retry
+	 *
+	 * @return millis, -1 if in progress or -2 if never started (no autostart connections)
+	 */
+	public long getAutoStartMillis() {
+		final AutoStart as = autoStart;
+		return ((as == null) ? -2 : as.getElapsedMillis());
+	}
+
+	/**
+	 * @return connections of last autostart failed without retry (auth, host key, reconnect disabled)
+	 */
+	public int getAutoStartFailed() {
+		final AutoStart as = autoStart;
+		return ((as == null) ? 0 : as.failed.size());
+	}
+
+	/**
+	 * Autostart pipeline: limit in-flight handshakes and stagger them with jitter to avoid CPU spikes
+	 * and server side throttling (sshd MaxStartups)
+	 */
+	private final class AutoStart {
+		private final ArrayDeque<Connection> pending;
+		private final Set<String> waiting;
+		private final Set<String> failed = new CopyOnWriteArraySet<String>();
+		private final int total;
+		private final int maxInFlight;
+		private final long stagger;
+		private final long startTime = System.currentTimeMillis();
+		private volatile long endTime = 0;
+		private int inFlight = 0;
+		private int launched = 0;
+		private boolean cancelled = false;
+
+		AutoStart(final List<Connection> list, final int maxInFlight, final long stagger) {
+			this.pending = new ArrayDeque<Connection>(list);
+			this.waiting = new CopyOnWriteArraySet<String>();
+			for (final Connection c : list) {
+				waiting.add(c.id);
+			}
+			this.total = list.size();
+			this.maxInFlight = Math.max(1, maxInFlight);
+			this.stagger = Math.max(0, stagger);
+			log.info("Autostart connections={} maxInFlight={} stagger={}ms", total, this.maxInFlight,
+					this.stagger);
+		}
+
+		synchronized void pump() {
+			while (!cancelled && (inFlight < maxInFlight) && !pending.isEmpty()) {
+				final Connection c = pending.poll();
+				// First burst is spread over time, next ones are paced by completions
+				final long delay = ((launched < maxInFlight) ? (launched * stagger) : 0) //
+						+ ((stagger > 0) ? ThreadLocalRandom.current().nextLong(stagger) : 0);
+				inFlight++;
+				launched++;
+				submitTask("connection:" + c.alias, () -> {
+					CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+					try {
+						if (!isCancelled()) {
+							disconnect0(c.id);
+							done = connect0(c.id);
+						}
+					} finally {
+						// Slot is released when handshake ends, not when task returns
+						done.whenComplete((v, e) -> completed());
+					}
+				}, 100 + delay);
+			}
+		}
+
+		private synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		private void completed() {
+			synchronized (this) {
+				inFlight--;
+			}
+			pump();
+		}
+
+		void established(final String id) {
+			if (waiting.remove(id)) {
+				done();
+			}
+		}
+
+		/**
+		 * Final failure (no retry) ends the wait for this connection
+		 *
+		 * @return true if connection was waited
+		 */
+		boolean failed(final String id) {
+			if (!waiting.remove(id)) {
+				return false;
+			}
+			failed.add(id);
+			done();
+			return true;
+		}
+
+		private void done() {
+			if (waiting.isEmpty()) {
+				endTime = System.currentTimeMillis();
+				log.info("Autostart done: connections={} failed={} time={}ms", total, failed.size(),
+						endTime - startTime);
+			}
+		}
+
+		long getElapsedMillis() {
+			final long end = endTime;
+			return ((end == 0) ? -1 : (end - startTime));
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			pending.clear();
+			waiting.clear();
 		}
 	}
 
@@ -216,25 +556,169 @@ public class SSHClient {
 
 	private Future<?> submitTask(final String id, final Runnable task, final long delay) {
 		log.info("Submitting task id={} delay={}", id, delay);
-		ScheduledExecutorService thPoolLocal = null;
-		synchronized (thPool) {
-			thPoolLocal = thPool.get(id);
-			if (thPoolLocal == null) {
-				thPoolLocal = Executors.newScheduledThreadPool(1, new ThreadFactory() {
-					final AtomicInteger c = new AtomicInteger();
+		return scheduler.schedule(id, task, delay);
+	}
 
-					@Override
-					public Thread newThread(final Runnable r) {
-						final Thread t = new Thread(r);
-						t.setDaemon(true);
-						t.setName(id + "-" + c.incrementAndGet());
-						return t;
+	/**
+	 * Pending tasks per queue (connection:alias, save,...)
+	 *
+	 * @return snapshot map id/depth
+	 */
+	public Map<String, Integer> getTaskQueueDepth() {
+		return scheduler.getQueueDepth();
+	}
+
+	/**
+	 * Traffic counters per connection and per forward (key connection:alias or forward:alias)
+	 *
+	 * @return snapshot map key/metrics
+	 */
+	public Map<String, TrafficMetrics.Snapshot> getMetrics() {
+		final TreeMap<String, TrafficMetrics.Snapshot> map = new TreeMap<String, TrafficMetrics.Snapshot>();
+		for (final Map.Entry<String, TrafficMetrics> e : connectionMetrics.entrySet()) {
+			final Connection c = registry.connections.get(e.getKey());
+			final String name = "connection:" + ((c == null) ? e.getKey() : c.alias);
+			map.put(name, e.getValue().snapshot(name));
+		}
+		for (final Map.Entry<String, TrafficMetrics> e : forwardMetrics.entrySet()) {
+			final Forward f = getForward(e.getKey());
+			final String name = "forward:" + ((f == null) ? e.getKey() : f.alias);
+			map.put(name, e.getValue().snapshot(name));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Handshake phases of last connection and percentiles over recent history
+	 *
+	 * @param id connection id
+	 * @return stats (empty if never connected)
+	 */
+	public HandshakeTimings.Stats getHandshakeStats(final String id) {
+		final HandshakeTimings t = handshakeTimings.get(id);
+		return ((t == null) ? HandshakeTimings.Stats.EMPTY : t.getStats());
+	}
+
+	private static TrafficMetrics getMetrics(final Map<String, TrafficMetrics> map, final String id) {
+		return map.computeIfAbsent(id, k -> new TrafficMetrics());
+	}
+
+	/**
+	 * Drop counters of a removed connection
+	 */
+	private void removeMetrics(final String id) {
+		connectionMetrics.remove(id);
+		handshakeTimings.remove(id);
+	}
+
+	private void startMetricsSampler() {
+		if ((DEFAULT_METRICS_SAMPLE_MILLIS <= 0) || metricsSampling) {
+			return;
+		}
+		metricsSampling = true;
+		scheduler.schedule("metrics", () -> sampleMetrics(), 0);
+	}
+
+	private void sampleMetrics() {
+		if (!metricsSampling) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		for (final TrafficMetrics m : connectionMetrics.values()) {
+			m.sample(now);
+		}
+		for (final TrafficMetrics m : forwardMetrics.values()) {
+			m.sample(now);
+		}
+		if (metricsSampling) {
+			// Not using submitTask, avoid logging every sample
+			scheduler.schedule("metrics", () -> sampleMetrics(), DEFAULT_METRICS_SAMPLE_MILLIS);
+		}
+	}
+
+	private void startConfigWatcher() {
+		if ((DEFAULT_CONFIG_POLL_MILLIS <= 0) || configWatching) {
+			return;
+		}
+		configWatching = true;
+		scheduler.schedule("config", () -> watchConfig(), DEFAULT_CONFIG_POLL_MILLIS);
+	}
+
+	/**
+	 * Reload configuration changed on disk by others (ignored while there are unsaved changes)
+	 */
+	private void watchConfig() {
+		if (!configWatching) {
+			return;
+		}
+		final long modified = cfg.lastModified();
+		if (modified != configModified) {
+			if (isDirtyConfig()) {
+				log.warn("Configuration changed on disk, not reloaded: unsaved changes");
+				configModified = modified;
+			} else {
+				try {
+					reload();
+				} catch (Exception e) {
+					configModified = modified;
+					log.error("Unable to reload configuration: {}", String.valueOf(e));
+				}
+			}
+		}
+		if (configWatching) {
+			// Not using submitTask, avoid logging every poll
+			scheduler.schedule("config", () -> watchConfig(), DEFAULT_CONFIG_POLL_MILLIS);
+		}
+	}
+
+	private void startNetworkWatcher() {
+		if ((DEFAULT_NETWORK_POLL_MILLIS <= 0) || networkWatching) {
+			return;
+		}
+		networkWatching = true;
+		networkWatcher.reset();
+		scheduler.schedule("network", () -> watchNetwork(), 0);
+	}
+
+	private void watchNetwork() {
+		if (!networkWatching) {
+			return;
+		}
+		networkWatcher.check();
+		if (networkWatching) {
+			// Not using submitTask, avoid logging every poll
+			scheduler.schedule("network", () -> watchNetwork(), DEFAULT_NETWORK_POLL_MILLIS);
+		}
+	}
+
+	/**
+	 * Local network changed: reconnect sessions bound to a vanished address, probe the others and
+	 * retry now the ones waiting for reconnect
+	 */
+	private void networkChanged(final Set<InetAddress> addresses) {
+		for (final Session s : sessions) {
+			switch (s.getStatus()) {
+				case CONNECTED: {
+					final InetAddress local = s.getLocalAddress();
+					if ((local != null) && !local.isLoopbackAddress() && !addresses.contains(local)) {
+						log.warn("Local address vanished {}: {}", s.getConnectionAlias(), local);
+						s.reconnectNow(s.session);
+					} else {
+						s.probe(DEFAULT_PROBE_TIMEOUT_MILLIS);
 					}
-				});
-				thPool.put(id, thPoolLocal);
+					break;
+				}
+				case DISCONNECTED: {
+					if (s.isRetryPending()) {
+						log.info("Reconnect now {}: network changed", s.getConnectionAlias());
+						scheduleReconnect(s, DEFAULT_FAST_RECONNECT_MILLIS);
+					}
+					break;
+				}
+				default:
+					break;
 			}
 		}
-		return thPoolLocal.schedule(task, delay, TimeUnit.MILLISECONDS);
 	}
 
 	public void connect(final String id) {
@@ -247,49 +731,130 @@ public class SSHClient {
 		});
 	}
 
-	private void connect0(final String id) {
-		for (final Connection c : connections) {
-			if (id.equals(c.id)) {
-				final Identity i = findIdentity(c.identity);
-				if ((i == null) || (i == Identity.NULL)) {
-					log.error("Identity not found: {}", c.identity);
-					continue;
-				}
-				final Session s = new Session(c.id, i.id);
-				s.setNotify(notify);
-				connect1(s);
-			}
-		}
+	private CompletableFuture<Void> connect0(final String id) {
+		final Connection c = registry.connections.get(id);
+		if (c == null) {
+			log.error("Connection not found: {}", id);
+			return CompletableFuture.completedFuture(null);
+		}
+		final Identity i = findIdentity(c.identity);
+		if ((i == null) || (i == Identity.NULL)) {
+			log.error("Identity not found: {}", c.identity);
+			autoStartFailed(c.id);
+			return CompletableFuture.completedFuture(null);
+		}
+		final Session s = new Session(c.id, i.id);
+		s.setNotify(notify);
+		if (c.isOnDemand) {
+			s.standby();
+			// Ready once listening
+			established(c.id);
+			return CompletableFuture.completedFuture(null);
+		}
+		return connect1(s);
 	}
 
-	private void connect1(final Session s) {
+	/**
+	 * Start connection, non-blocking
+	 * 
+	 * @param s session
+	 * @return completed when established (forwards mapped) or failed (reconnect scheduled)
+	 */
+	private CompletableFuture<Void> connect1(final Session s) {
 		final Connection c = s.getConnection();
 		if (c == null || c == Connection.NULL) {
 			log.error("Connection not found: {}", s.getConnectionID());
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
 		final Identity i = s.getIdentity();
 		if (i == null || i == Identity.NULL) {
 			log.error("Identity not found: {}", s.getIdentityID());
-			return;
-		}
-		try {
-			s.connect();
+			return CompletableFuture.completedFuture(null);
+		}
+		// Continuation runs in connection task queue (see Session.PendingConnect)
+		return s.connect().thenRun(() -> {
+			s.handshake.mapStart();
+			// On-demand: listen ports are handed over to session forwards
+			final List<OnDemandListener.Client> replay = s.releaseStandby();
+			s.openPool();
 			s.map(filterByConnection(c.id));
+			OnDemandListener.replay(replay);
+			s.handshakeDone();
 			s.setEstablished(true);
+			if (c.isOnDemand) {
+				s.new IdleClose(s.session, c.getOnDemandIdle()).start();
+			}
+			established(c.id);
+			jumpReady(c);
+		}).exceptionally(ex -> {
+			final Throwable e = (((ex instanceof CompletionException) && (ex.getCause() != null)) //
+					? ex.getCause() //
+					: ex);
+			if (s.isWaitingJump()) {
+				// Resumed by jump host (see jumpReady)
+				return null;
+			}
+			if (e instanceof CancellationException) {
+				log.info("Connect cancelled {}: {}", s.getConnectionAlias(), e.getMessage());
+			} else if (e instanceof IOException) {
+				log.error("IOException: " + e);
+			} else {
+				log.error("Exception: " + e, e);
+			}
+			jumpFailed(c);
+			if (s.rejectStandby()) {
+				// On-demand: no retry loop, next client tries again
+				return null;
+			}
+			scheduleReconnect(s, e);
+			return null;
+		});
+	}
+
+	private void established(final String id) {
+		final AutoStart as = autoStart;
+		if (as != null) {
+			as.established(id);
+		}
+	}
+
+	/**
+	 * Connection will not be retried: neither will the connections waiting for it as jump host
+	 */
+	private void autoStartFailed(final String id) {
+		final AutoStart as = autoStart;
+		if ((as != null) && as.failed(id)) {
+			for (final Connection c : getJumpDependents(id)) {
+				autoStartFailed(c.id);
+			}
+		}
+	}
+
+	private void scheduleReconnect(final Session s, final Throwable cause) {
+		final ReconnectPolicy.ErrorClass error = ReconnectPolicy.ErrorClass.classify(cause);
+		s.lastError = error;
+		if (!s.isAutoReconnect()) {
+			autoStartFailed(s.getConnectionID());
 			return;
-		} catch (IOException e) {
-			log.error("IOException: " + e);
-		} catch (Exception e) {
-			log.error("Exception: " + e, e);
 		}
-		if (s.isAutoReconnect()) {
-			submitTask("connection:" + s.getConnectionAlias(), () -> {
-				if (s.isAutoReconnect()) {
-					connect1(s);
-				}
-			}, s.nextRetrySleep());
+		final long sleep = (s.takeFastReconnect() ? DEFAULT_FAST_RECONNECT_MILLIS : s.nextRetrySleep(error));
+		if (sleep < 0) {
+			log.warn("Reconnect disabled {}: error={}", s.getConnectionAlias(), error);
+			autoStartFailed(s.getConnectionID());
+			return;
 		}
+		log.info("Reconnect {}: error={} sleep={}", s.getConnectionAlias(), error, sleep);
+		scheduleReconnect(s, sleep);
+	}
+
+	private void scheduleReconnect(final Session s, final long sleep) {
+		// Only latest scheduled retry is run
+		final long seq = s.newRetry();
+		submitTask("connection:" + s.getConnectionAlias(), () -> {
+			if (s.takeRetry(seq) && s.isAutoReconnect()) {
+				connect1(s);
+			}
+		}, sleep);
 	}
 
 	public void disconnect(final String id) {
@@ -297,13 +862,129 @@ public class SSHClient {
 			return;
 		}
 		submitTask("connection:" + getConnection(id).alias, () -> disconnect0(id));
+		// Connections through this jump host can not work without it
+		for (final Connection c : getJumpDependents(id)) {
+			if (sessionsByConnection.containsKey(c.id)) {
+				disconnect(c.id);
+			}
+		}
+	}
+
+	/**
+	 * @param c connection
+	 * @return jump host of connection, null if direct or not found
+	 */
+	private Connection findJumpHost(final Connection c) {
+		if ((c == null) || !c.hasJumpHost()) {
+			return null;
+		}
+		final Connection j = registry.connections.get(c.jumpHost);
+		return ((j != null) ? j : registry.connections.getByAlias(c.jumpHost));
+	}
+
+	/**
+	 * @param c connection
+	 * @return jump hosts before reaching connection (0 for direct) or -1 if chain is broken or loops
+	 */
+	private int jumpDepth(final Connection c) {
+		final Set<String> seen = new HashSet<String>();
+		seen.add(c.id);
+		int depth = 0;
+		Connection j = c;
+		while (j.hasJumpHost()) {
+			j = findJumpHost(j);
+			if ((j == null) || !seen.add(j.id)) {
+				return -1;
+			}
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * @param id jump host connection id
+	 * @return connections using it as jump host (directly)
+	 */
+	private List<Connection> getJumpDependents(final String id) {
+		final List<Connection> list = new ArrayList<Connection>();
+		for (final Connection c : registry.connections.values()) {
+			final Connection j = findJumpHost(c);
+			if ((j != null) && j.id.equals(id) && (jumpDepth(c) > 0)) {
+				list.add(c);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @param jump jump host connection
+	 * @return its authenticated session or null if not (yet) connected
+	 */
+	private ClientSession getJumpSession(final Connection jump) {
+		final Session js = sessionsByConnection.get(jump.id);
+		final ClientSession cs = ((js == null) ? null : js.session);
+		return (((cs != null) && cs.isOpen() && (js.getStatus() == ConnectionStatus.CONNECTED)) ? cs : null);
+	}
+
+	/**
+	 * Connection waits for its jump host: start it (in jump host task queue) if nobody else will
+	 */
+	private void startJump(final Connection jump) {
+		submitTask("connection:" + jump.alias, () -> {
+			final Session js = sessionsByConnection.get(jump.id);
+			final ConnectionStatus st = ((js == null) ? ConnectionStatus.NOT_CONNECTED : js.getStatus());
+			if (st == ConnectionStatus.STANDBY) {
+				js.activate();
+			} else if ((st == ConnectionStatus.NOT_CONNECTED) //
+					|| ((st == ConnectionStatus.DISCONNECTED) && !js.isRetryPending())) {
+				log.info("Starting jump host {}", jump.alias);
+				disconnect0(jump.id);
+				connect0(jump.id);
+			}
+		});
+	}
+
+	/**
+	 * Jump host established: resume connections waiting for it and reconnect now the ones waiting
+	 * for retry (dropped with previous jump host session)
+	 */
+	private void jumpReady(final Connection jump) {
+		for (final Connection c : getJumpDependents(jump.id)) {
+			final Session s = sessionsByConnection.get(c.id);
+			if (s == null) {
+				continue;
+			}
+			if (s.isWaitingJump()) {
+				submitTask("connection:" + c.alias, () -> {
+					if (s.isWaitingJump()) {
+						connect1(s);
+					}
+				});
+			} else if ((s.getStatus() == ConnectionStatus.DISCONNECTED) && s.isRetryPending()) {
+				log.info("Reconnect now {}: jump host ready", c.alias);
+				scheduleReconnect(s, DEFAULT_FAST_RECONNECT_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Jump host attempt failed: connections waiting for it are shown as failed and keep waiting
+	 * (resumed when jump host retry succeeds)
+	 */
+	private void jumpFailed(final Connection jump) {
+		for (final Connection c : getJumpDependents(jump.id)) {
+			final Session s = sessionsByConnection.get(c.id);
+			if ((s != null) && s.isWaitingJump()) {
+				submitTask("connection:" + c.alias, () -> s.failWaitingJump());
+			}
+		}
 	}
 
 	private void disconnect0(final String id) {
 		final Iterator<Session> ite = sessions.iterator();
 		while (ite.hasNext()) {
 			final Session sess = ite.next();
-			if (id.equals(sess.getConnection().id)) {
+			if (id.equals(sess.getConnectionID())) {
 				log.info("Disconnecting {}: {}@{}", sess.getConnectionAlias(), sess.getIdentityUserName(),
 						sess.getConnectionAddress());
 				disconnect1(sess, true);
@@ -318,24 +999,24 @@ public class SSHClient {
 	}
 
 	private Identity findIdentity(final String id) {
-		for (final Identity i : identities) {
-			if (i.id.equals(id)) {
-				return i;
-			}
-		}
-		return null;
+		return ((id == null) ? null : registry.identities.get(id));
 	}
 
+	/**
+	 * @return forwards of connection in configured order
+	 */
 	private List<Forward> filterByConnection(final String id) {
-		final List<Forward> ff = new ArrayList<Forward>();
-		for (final Forward f : forwards) {
-			for (final String connection : f.connections) {
-				if (id.equals(connection)) {
-					ff.add(f);
-				}
-			}
-		}
-		return Collections.unmodifiableList(ff);
+		return registry.getForwardsByConnection(id);
+	}
+
+	private void addSession(final Session s) {
+		sessions.add(s);
+		sessionsByConnection.put(s.getConnectionID(), s);
+	}
+
+	private void removeSession(final Session s) {
+		sessions.remove(s);
+		sessionsByConnection.remove(s.getConnectionID(), s);
 	}
 
 	public void resetIdle() {
@@ -372,6 +1053,168 @@ public class SSHClient {
 		 * @param session of event
 		 */
 		public void notifyClosed(final Session session);
+
+		/**
+		 * Connection status changed, also sent after handshake stats update (same status)
+		 * 
+		 * @param connectionId of session
+		 * @param status new status
+		 */
+		public default void notifyStatus(final String connectionId, final ConnectionStatus status) {
+		}
+	}
+
+	@FunctionalInterface
+	private static interface StepTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Forward and its trackers (one per mapped port of range)
+	 */
+	private static class Mapping {
+		final Forward forward;
+		final List<PortForwardingTracker> trackers;
+
+		Mapping(final Forward forward, final List<PortForwardingTracker> trackers) {
+			this.forward = forward;
+			this.trackers = trackers;
+		}
+	}
+
+	/**
+	 * @param c connection
+	 * @return key of connections that may share one SSH session: same server, identity, route and session
+	 *         settings (heartbeat, idle timeout, window, rekey, algorithms)
+	 */
+	private static String shareKey(final Connection c) {
+		return c.address + ":" + c.port + "@" + c.identity + (c.hasJumpHost() ? ("/" + c.jumpHost) : "") //
+				+ "#" + c.heartbeatInterval + "," + c.heartbeatReplyWait + "," + c.heartbeatMaxMissed //
+				+ "," + c.heartbeatAdaptive + "," + c.idleTimeout //
+				+ "," + c.windowSize + "," + c.maxPacketSize + "," + c.windowAutoTune //
+				+ "," + c.rekeyBytes + "," + c.rekeyTime //
+				+ "," + c.cryptoProfile + "," + c.ciphers + "," + c.macs + "," + c.kexAlgorithms;
+	}
+
+	/**
+	 * One SSH session used by several connections (see {@link #shareKey(Connection)}), like ssh
+	 * ControlMaster: first user connects, others attach when it is established. Each connection keeps its
+	 * own forwards and status; session is closed when last user disconnects.
+	 */
+	private final class SharedSession {
+		final String key;
+		final Connection connection; // session settings
+		final Identity identity;
+		private final Set<Session> users = new LinkedHashSet<Session>();
+		private final List<Session.PendingConnect> waiters = new ArrayList<Session.PendingConnect>();
+		private final Session owner;
+		private Session holder; // jump channel, metrics and adaptive heartbeat of session
+		private ClientSession cs = null;
+		private boolean failed = false;
+
+		SharedSession(final String key, final Session owner) {
+			this.key = key;
+			this.connection = owner.getConnection();
+			this.identity = owner.getIdentity();
+			this.owner = owner;
+			this.holder = owner;
+			users.add(owner);
+		}
+
+		/**
+		 * @param i identity of joining connection
+		 * @return false if session was authenticated with other credentials (changed identity)
+		 */
+		boolean matches(final Identity i) {
+			return identity.isSameCredentials(i);
+		}
+
+		synchronized boolean isAlive() {
+			return !failed && ((cs == null) || cs.isOpen());
+		}
+
+		/**
+		 * @param s connection attaching now (established) or when owner is established
+		 */
+		synchronized void join(final Session s, final Session.PendingConnect p) {
+			if (failed) {
+				p.step(() -> p.fail(new ConnectException("Shared session not established: " + key)));
+				return;
+			}
+			users.add(s);
+			if (cs != null) {
+				final ClientSession established = cs;
+				p.step(() -> p.attach(established));
+			} else {
+				waiters.add(p);
+			}
+		}
+
+		/**
+		 * Owner authenticated: attach waiting users and reconnect now the ones waiting for retry
+		 */
+		void established(final ClientSession session) {
+			synchronized (this) {
+				cs = session;
+				for (final Session.PendingConnect p : waiters) {
+					p.step(() -> p.attach(session));
+				}
+				waiters.clear();
+			}
+			for (final Session s : sessions) {
+				if ((s.getStatus() == ConnectionStatus.DISCONNECTED) && s.isRetryPending() //
+						&& key.equals(shareKey(s.getConnection()))) {
+					log.info("Reconnect now {}: shared session ready", s.getConnectionAlias());
+					scheduleReconnect(s, DEFAULT_FAST_RECONNECT_MILLIS);
+				}
+			}
+		}
+
+		/**
+		 * @param s leaving connection
+		 * @return true if session has no more users (caller closes it)
+		 */
+		boolean release(final Session s) {
+			final boolean last;
+			synchronized (this) {
+				users.remove(s);
+				if ((cs == null) && (s == owner) && !failed) {
+					// Owner attempt ended: waiting users retry on their own (one of them will connect)
+					failed = true;
+					for (final Session.PendingConnect p : waiters) {
+						p.step(() -> p.fail(new ConnectException("Shared session not established: " + key)));
+					}
+					waiters.clear();
+				}
+				last = (failed || users.isEmpty() || ((cs != null) && !cs.isOpen()));
+				if (!last && (s == holder) && (cs != null)) {
+					holder = users.iterator().next();
+					handOver(s, holder);
+				}
+			}
+			if (last) {
+				synchronized (sharedSessions) {
+					sharedSessions.remove(key, this);
+				}
+			}
+			return last;
+		}
+
+		/**
+		 * Session resources held by leaving user pass to a remaining one
+		 */
+		private void handOver(final Session from, final Session to) {
+			if (cs instanceof MeteredClientSession) {
+				((MeteredClientSession) cs).setMetrics(getMetrics(connectionMetrics, to.getConnectionID()));
+			}
+			if (connection.heartbeatAdaptive) {
+				to.new AdaptiveHeartbeat(cs, connection).start();
+			}
+			if (connection.windowAutoTune) {
+				to.tuner = from.tuner;
+				to.new WindowAutoTune(cs).start();
+			}
+		}
 	}
 
 	public class Session implements AutoCloseable, SessionListener {
@@ -381,15 +1224,32 @@ public class SSHClient {
 		private final String s_c;
 		private final String s_i;
 
-		private final List<PortForwardingTracker> trackers = new CopyOnWriteArrayList<PortForwardingTracker>();
-		private SshClient client = null;
-		private ClientSession session = null;
+		private final Map<String, Mapping> trackers = new ConcurrentHashMap<String, Mapping>();
+		private volatile ClientSession session = null;
+		private ServerKeyVerifier hostVerifier = null;
 		private Set<Notify> listeners = null;
 
-		private volatile long nextRetrysleep = DEFAULT_MIN_RECONNECT_SLEEP_TIME_MILLIS;
+		private volatile long lastRetrySleep = 0;
 		private volatile boolean established = false;
 		private volatile boolean disconnecting = false;
+		private volatile boolean fastReconnect = false;
+		private final AtomicLong retrySeq = new AtomicLong();
+		private volatile boolean retryPending = false;
 		private volatile ConnectionStatus state = ConnectionStatus.NOT_CONNECTED;
+		private volatile ReconnectPolicy.ErrorClass lastError = null;
+		private volatile HandshakeTimings.Attempt handshake = new HandshakeTimings.Attempt();
+		private volatile PendingConnect pending = null;
+		private volatile OnDemandListener standby = null;
+		private volatile boolean idleClosing = false;
+		private int standbyFailures = 0;
+		private volatile boolean waitingJump = false;
+		private volatile PortForwardingTracker jumpTracker = null;
+		private volatile SharedSession shared = null;
+		private volatile SessionPool pool = null;
+		private volatile HostConfigEntry dialConfig = null;
+		private volatile SshdSocketAddress dialTarget = null;
+		private volatile ClientSession dialJump = null;
+		private volatile WindowTuner tuner = null;
 
 		public Session(final String c, final String i) {
 			this.s_c = c;
@@ -412,18 +1272,281 @@ public class SSHClient {
 			return SSHClient.this.getIdentity(s_i);
 		}
 
-		public long nextRetrySleep() {
-			final long n = Math.min(nextRetrysleep, DEFAULT_MAX_RECONNECT_SLEEP_TIME_MILLIS);
-			if (nextRetrysleep < DEFAULT_MAX_RECONNECT_SLEEP_TIME_MILLIS) {
-				nextRetrysleep *= 2;
+		/**
+		 * @param error class of last failure
+		 * @return sleep in millis before next retry or -1 for no retry
+		 */
+		public long nextRetrySleep(final ReconnectPolicy.ErrorClass error) {
+			final long n = getConnection().getReconnectPolicy(error).nextSleep(lastRetrySleep);
+			if (n >= 0) {
+				lastRetrySleep = n;
 			}
 			return n;
 		}
 
+		private long newRetry() {
+			retryPending = true;
+			return retrySeq.incrementAndGet();
+		}
+
+		private boolean takeRetry(final long seq) {
+			if (retrySeq.get() != seq) {
+				return false; // Superseded
+			}
+			retryPending = false;
+			return true;
+		}
+
+		boolean isRetryPending() {
+			return retryPending;
+		}
+
+		private boolean takeFastReconnect() {
+			if (fastReconnect) {
+				fastReconnect = false;
+				lastRetrySleep = 0;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Drop current session (if still the same) and reconnect without backoff
+		 *
+		 * @param expected session to drop
+		 */
+		void reconnectNow(final ClientSession expected) {
+			if ((expected == null) || (session != expected)) {
+				return;
+			}
+			fastReconnect = true;
+			expected.close(true);
+		}
+
+		/**
+		 * Send a keepalive (want reply) and reconnect if there is no reply in time
+		 *
+		 * @param timeoutMillis max wait for reply
+		 */
+		void probe(final long timeoutMillis) {
+			final ClientSession cs = session;
+			if (cs == null) {
+				return;
+			}
+			try {
+				final Buffer buf = cs.createBuffer(SshConstants.SSH_MSG_GLOBAL_REQUEST, 64);
+				buf.putString(PROBE_REQUEST);
+				buf.putBoolean(true);
+				final GlobalRequestFuture f = cs.request(buf, PROBE_REQUEST, null);
+				submitTask("connection:" + getConnectionAlias(), () -> {
+					if (!f.isDone()) {
+						log.warn("Probe timeout {}: {}", getConnectionAlias(), getConnectionAddress());
+						reconnectNow(cs);
+					}
+				}, timeoutMillis);
+			} catch (IOException e) {
+				log.warn("Probe failed {}: {}", getConnectionAlias(), String.valueOf(e));
+				reconnectNow(cs);
+			}
+		}
+
+		/**
+		 * Inbound traffic proves the link is alive: while there is traffic no keepalive is sent and the
+		 * check interval is doubled (up to ADAPTIVE_HEARTBEAT_MAX_FACTOR); when idle, the
+		 * interval is reset and a keepalive (want reply) is sent. Session is dropped after max missed
+		 * replies.
+		 */
+		private final class AdaptiveHeartbeat implements Runnable {
+			private final ClientSession cs;
+			private final long base;
+			private final long max;
+			private final long replyWait;
+			private final int maxMissed;
+			private long interval;
+			private long lastActivity;
+			private int missed = 0;
+			private boolean probing = false;
+
+			AdaptiveHeartbeat(final ClientSession cs, final Connection c) {
+				this.cs = cs;
+				this.base = c.getHeartbeatInterval();
+				this.max = base * ADAPTIVE_HEARTBEAT_MAX_FACTOR;
+				this.replyWait = c.getHeartbeatReplyWait();
+				this.maxMissed = c.getHeartbeatMaxMissed();
+				this.interval = base;
+			}
+
+			void start() {
+				lastActivity = cs.getIdleTimeoutStart().toEpochMilli();
+				schedule(interval);
+			}
+
+			private void schedule(final long delay) {
+				// Not using submitTask, avoid logging every heartbeat
+				scheduler.schedule("heartbeat:" + getConnectionID(), this, delay);
+			}
+
+			@Override
+			public void run() {
+				if ((session != cs) || !cs.isOpen()) {
+					return;
+				}
+				final long activity = cs.getIdleTimeoutStart().toEpochMilli();
+				if (activity != lastActivity) {
+					lastActivity = activity;
+					missed = 0;
+					if (probing) {
+						// Reply received (idle link)
+						probing = false;
+					} else {
+						// Traffic: stretch
+						interval = Math.min(max, interval * 2);
+					}
+					schedule(interval);
+					return;
+				}
+				if (probing && (++missed >= maxMissed)) {
+					log.warn("Heartbeat timeout {}: missed={}", getConnectionAlias(), missed);
+					reconnectNow(cs);
+					return;
+				}
+				try {
+					timedProbe(cs);
+				} catch (IOException e) {
+					log.warn("Heartbeat failed {}: {}", getConnectionAlias(), String.valueOf(e));
+					reconnectNow(cs);
+					return;
+				}
+				probing = true;
+				interval = base;
+				schedule(replyWait);
+			}
+		}
+
+		/**
+		 * Send a keepalive (want reply), its round trip feeds window auto-tuning
+		 */
+		private GlobalRequestFuture timedProbe(final ClientSession cs) throws IOException {
+			final Buffer buf = cs.createBuffer(SshConstants.SSH_MSG_GLOBAL_REQUEST, 64);
+			buf.putString(PROBE_REQUEST);
+			buf.putBoolean(true);
+			final long start = System.nanoTime();
+			final GlobalRequestFuture f = cs.request(buf, PROBE_REQUEST, null);
+			final WindowTuner t = tuner;
+			if (t != null) {
+				f.addListener(r -> {
+					// Success or failure is a reply (closed session is not)
+					if (cs.isOpen()) {
+						final long now = System.nanoTime();
+						t.addRtt(now - start, now);
+					}
+				});
+			}
+			return f;
+		}
+
+		/**
+		 * Receive window of new channels follows bandwidth-delay product, see {@link WindowTuner} (open
+		 * channels keep the window they were opened with)
+		 */
+		private final class WindowAutoTune implements Runnable {
+			private final ClientSession cs;
+
+			WindowAutoTune(final ClientSession cs) {
+				this.cs = cs;
+			}
+
+			void start() {
+				final WindowTuner t = tuner;
+				if (t != null) {
+					// Reconnect: learned window is kept, start counting again
+					update(t);
+				}
+				schedule(0);
+			}
+
+			private long update(final WindowTuner t) {
+				// Whole session (all its connections if shared) or connection wide (all sessions of pool),
+				// window applies per channel
+				final TrafficMetrics m = (((pool == null) && (cs instanceof MeteredClientSession)) //
+						? ((MeteredClientSession) cs).getTotal() //
+						: getMetrics(connectionMetrics, s_c));
+				return t.update(m.getBytesIn(), m.getChannelsOpen(), System.nanoTime());
+			}
+
+			private void schedule(final long delay) {
+				// Not using submitTask, avoid logging every probe
+				scheduler.schedule("tune:" + getConnectionID(), this, delay);
+			}
+
+			@Override
+			public void run() {
+				if ((session != cs) || !cs.isOpen()) {
+					return;
+				}
+				final WindowTuner t = tuner;
+				final long window = update(t);
+				if (window > 0) {
+					log.info("Window {} (new channels): rtt={}ms window={}", getConnectionAlias(), //
+							t.getRttMillis(), window);
+					final SessionPool sp = pool;
+					final List<ClientSession> list = ((sp == null) //
+							? Collections.singletonList(cs) //
+							: sp.getSessions());
+					for (final ClientSession member : list) {
+						CoreModuleProperties.WINDOW_SIZE.set(member, window);
+					}
+				}
+				try {
+					timedProbe(cs);
+				} catch (IOException e) {
+					log.warn("Window probe failed {}: {}", getConnectionAlias(), String.valueOf(e));
+				}
+				schedule(DEFAULT_WINDOW_TUNE_MILLIS);
+			}
+		}
+
+		InetAddress getLocalAddress() {
+			final ClientSession cs = session;
+			if (cs == null) {
+				return null;
+			}
+			final SocketAddress addr = cs.getIoSession().getLocalAddress();
+			return ((addr instanceof InetSocketAddress) ? ((InetSocketAddress) addr).getAddress() : null);
+		}
+
+		private void handshakeDone() {
+			final long[] d = handshake.finish();
+			handshakeTimings.computeIfAbsent(s_c, k -> new HandshakeTimings(DEFAULT_HANDSHAKE_HISTORY)).add(d);
+			log.info("Handshake {}: tcp={}ms kex={}ms hostkey={}ms auth={}ms map={}ms total={}ms", //
+					getConnectionAlias(), //
+					d[HandshakeTimings.Phase.TCP.ordinal()], //
+					d[HandshakeTimings.Phase.KEX.ordinal()], //
+					d[HandshakeTimings.Phase.HOST_KEY.ordinal()], //
+					d[HandshakeTimings.Phase.AUTH.ordinal()], //
+					d[HandshakeTimings.Phase.MAP.ordinal()], //
+					d[HandshakeTimings.Phase.TOTAL.ordinal()]);
+			fireStatus();
+		}
+
+		private void setState(final ConnectionStatus state) {
+			this.state = state;
+			fireStatus();
+		}
+
+		private void fireStatus() {
+			if (listeners != null) {
+				final ConnectionStatus state = this.state;
+				for (final Notify notify : listeners) {
+					notify.notifyStatus(s_c, state);
+				}
+			}
+		}
+
 		public void setEstablished(final boolean established) {
 			this.established = established;
 			if (established) {
-				this.nextRetrysleep = DEFAULT_MIN_RECONNECT_SLEEP_TIME_MILLIS;
+				this.lastRetrySleep = 0;
 			}
 		}
 
@@ -439,6 +1562,14 @@ public class SSHClient {
 			return state;
 		}
 
+		/**
+		 * @return class of last failed attempt (see {@link ReconnectPolicy.ErrorClass#classify(Throwable)}),
+		 *         null if none
+		 */
+		public ReconnectPolicy.ErrorClass getLastError() {
+			return lastError;
+		}
+
 		public void setNotify(final Set<Notify> listeners) {
 			this.listeners = listeners;
 		}
@@ -455,33 +1586,496 @@ public class SSHClient {
 
 		private void map(final Forward f) throws IOException {
 			log.info("Mapping: {}", f);
+			final long start = System.nanoTime();
+			final int count = f.getPortCount();
+			final List<PortForwardingTracker> list = new ArrayList<PortForwardingTracker>(count);
+			for (int i = 0; i < count; i++) {
+				try {
+					final PortForwardingTracker tracker = track(f, i);
+					if (tracker != null) {
+						list.add(tracker);
+					}
+				} catch (IOException | RuntimeException e) {
+					if (count == 1) {
+						throw e;
+					}
+					// Ports of a range are independent (like several ssh -L)
+					log.warn("Error mapping: {} index={} error={}", f.alias, i, String.valueOf(e));
+				}
+			}
+			if (list.isEmpty()) {
+				if (count > 1) {
+					throw new IOException("No port of range mapped: " + f);
+				}
+				return;
+			}
+			trackers.put(f.id, new Mapping(f, list));
+			log.info("Mapped {}: ports={}/{} {}ms", f.alias, list.size(), count,
+					(System.nanoTime() - start) / 1000000L);
+			if ((session instanceof MeteredClientSession) && ((pool == null) || !SessionPool.isPooled(f))) {
+				// Pool binds metrics on ports of each session
+				final TrafficMetrics metrics = getMetrics(forwardMetrics, f.id);
+				// Shared session: channels of this forward count to this connection, not to holder
+				final TrafficMetrics connection = getMetrics(connectionMetrics, s_c);
+				for (final PortForwardingTracker tracker : list) {
+					((MeteredClientSession) session).bindForward((f.getType() == Forward.Type.REMOTE), //
+							tracker.getBoundAddress(), metrics, connection);
+				}
+			}
+		}
+
+		private PortForwardingTracker track(final Forward f, final int index) throws IOException {
+			final SessionPool sp = pool;
+			if ((sp != null) && SessionPool.isPooled(f)) {
+				return sp.track(f, index, getMetrics(forwardMetrics, f.id));
+			}
 			switch (f.getType()) {
 				case REMOTE: {
-					trackers.add(session.createRemotePortForwardingTracker(f.getRemoteSocketAddress(), //
-							f.getLocalSocketAddress()));
-					break;
+					return session.createRemotePortForwardingTracker(f.getRemoteSocketAddress(index), //
+							f.getLocalSocketAddress(index));
 				}
 				case LOCAL: {
-					trackers.add(session.createLocalPortForwardingTracker(f.getLocalSocketAddress(), //
-							f.getRemoteSocketAddress()));
-					break;
+					return session.createLocalPortForwardingTracker(f.getLocalSocketAddress(index), //
+							f.getRemoteSocketAddress(index));
+				}
+				case DYNAMIC: {
+					return session.createDynamicPortForwardingTracker(f.getLocalSocketAddress(index));
+				}
+				default:
+					return null;
+			}
+		}
+
+		public void unmap() {
+			final ClientSession cs = session;
+			for (final Mapping m : trackers.values()) {
+				for (final PortForwardingTracker tracker : m.trackers) {
+					if (cs instanceof MeteredClientSession) {
+						// Only own forwards, session may be shared
+						((MeteredClientSession) cs).unbindForward((m.forward.getType() == Forward.Type.REMOTE), //
+								tracker.getBoundAddress());
+					}
+					try {
+						log.info("Unmapping: {}", tracker);
+						tracker.close();
+					} catch (Exception ign) {
+					}
+				}
+			}
+			trackers.clear();
+		}
+
+		private void unmap(final Mapping m) {
+			log.info("Unmapping: {}", m.forward);
+			trackers.remove(m.forward.id, m);
+			final ClientSession cs = session;
+			for (final PortForwardingTracker tracker : m.trackers) {
+				if (cs instanceof MeteredClientSession) {
+					((MeteredClientSession) cs).unbindForward((m.forward.getType() == Forward.Type.REMOTE), //
+							tracker.getBoundAddress());
+				}
+				try {
+					tracker.close();
+				} catch (Exception e) {
+					log.warn("Error unmapping: {} error={}", m.forward, String.valueOf(e));
+				}
+			}
+		}
+
+		/**
+		 * Apply forwards to established session: removed or changed ones are unmapped and new ones mapped,
+		 * unchanged mappings (and their open channels) are kept
+		 *
+		 * @param forwards current forwards of connection
+		 */
+		void remap(final List<Forward> forwards) {
+			if ((standby != null) && (state == ConnectionStatus.STANDBY)) {
+				// Not connected: listen on new ports
+				standby();
+				return;
+			}
+			if ((session == null) || (state != ConnectionStatus.CONNECTED)) {
+				return;
+			}
+			final Map<String, Forward> wanted = new HashMap<String, Forward>();
+			for (final Forward f : forwards) {
+				wanted.put(f.id, f);
+			}
+			for (final Mapping m : trackers.values()) {
+				final Forward f = wanted.get(m.forward.id);
+				if ((f == null) || !f.isSameMapping(m.forward)) {
+					unmap(m);
+				} else if (f != m.forward) {
+					// Only alias or connections changed
+					trackers.replace(f.id, m, new Mapping(f, m.trackers));
+				}
+			}
+			for (final Forward f : forwards) {
+				if (!trackers.containsKey(f.id)) {
+					try {
+						map(f);
+					} catch (Exception e) {
+						log.error("Error mapping: {} error={}", f, e.getMessage(), e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * On-demand: listen on local ports of forwards without SSH session, first client connects
+		 */
+		void standby() {
+			closeStandby();
+			final Session self = this;
+			final OnDemandListener l = new OnDemandListener(getConnectionAlias(), () -> {
+				submitTask("connection:" + getConnectionAlias(), () -> activate());
+			});
+			try {
+				l.bind(filterByConnection(s_c));
+			} catch (IOException e) {
+				// First retry is fast: port may be released by closing session
+				final long sleep = ((standbyFailures++ == 0) //
+						? DEFAULT_FAST_RECONNECT_MILLIS //
+						: nextRetrySleep(ReconnectPolicy.ErrorClass.classify(e)));
+				log.error("Unable to listen on-demand {}: {} retry={}", getConnectionAlias(), String.valueOf(e),
+						sleep);
+				setState(ConnectionStatus.DISCONNECTED);
+				if (sleep >= 0) {
+					final long seq = newRetry();
+					submitTask("connection:" + getConnectionAlias(), () -> {
+						if (takeRetry(seq) && !disconnecting) {
+							standby();
+						}
+					}, sleep);
+				}
+				return;
+			}
+			standby = l;
+			standbyFailures = 0;
+			disconnecting = false;
+			addSession(self);
+			setState(ConnectionStatus.STANDBY);
+			established(s_c);
+		}
+
+		private void activate() {
+			if ((standby == null) || (state != ConnectionStatus.STANDBY)) {
+				return;
+			}
+			log.info("On-demand connect {}", getConnectionAlias());
+			connect1(this);
+		}
+
+		/**
+		 * @return clients waiting for replay (listen ports are closed)
+		 */
+		private List<OnDemandListener.Client> releaseStandby() {
+			final OnDemandListener l = standby;
+			standby = null;
+			return ((l == null) ? Collections.<OnDemandListener.Client> emptyList() : l.release());
+		}
+
+		/**
+		 * Failed on-demand connect: waiting clients are dropped, listen ports are kept
+		 *
+		 * @return false if not on-demand
+		 */
+		private boolean rejectStandby() {
+			final OnDemandListener l = standby;
+			if (l == null) {
+				return false;
+			}
+			l.reject();
+			setState(ConnectionStatus.STANDBY);
+			return true;
+		}
+
+		private void closeStandby() {
+			final OnDemandListener l = standby;
+			standby = null;
+			if (l != null) {
+				l.close();
+			}
+		}
+
+		boolean isWaitingJump() {
+			return waitingJump;
+		}
+
+		/**
+		 * Jump host failed while waiting for it
+		 */
+		private void failWaitingJump() {
+			if (!waitingJump) {
+				return;
+			}
+			if (rejectStandby()) {
+				// On-demand: next client tries again (starting jump host)
+				waitingJump = false;
+				return;
+			}
+			final Session self = this;
+			setState(ConnectionStatus.DISCONNECTED);
+			if (self.listeners != null) {
+				for (final Notify notify : self.listeners) {
+					notify.notifyFail(self);
+				}
+			}
+		}
+
+		/**
+		 * Loopback port to target through jump host session: each accepted socket is a direct-tcpip
+		 * channel of upstream; only needed to dial, close it once the transport is connected
+		 */
+		private PortForwardingTracker openJump(final ClientSession upstream, final SshdSocketAddress target)
+				throws IOException {
+			return upstream.createLocalPortForwardingTracker( //
+					new SshdSocketAddress(SshdSocketAddress.LOCALHOST_IPV4, 0), target);
+		}
+
+		/**
+		 * Close loopback port of jump (channel of a connected transport stays open)
+		 */
+		private void closeJump(final PortForwardingTracker t) {
+			if (t != null) {
+				try {
+					t.close();
+				} catch (IOException e) {
+					log.warn("Error closing jump port {}: {}", getConnectionAlias(), String.valueOf(e));
+				}
+			}
+		}
+
+		/**
+		 * Close loopback port of pending attempt through jump host
+		 */
+		private void closeJumpTracker() {
+			final PortForwardingTracker t = jumpTracker;
+			jumpTracker = null;
+			closeJump(t);
+		}
+
+		private HostConfigEntry dialConfig(final SshdSocketAddress address) {
+			final HostConfigEntry hostConfig = new HostConfigEntry(null, address.getHostName(), address.getPort(),
+					getIdentityUserName());
+			hostConfig.setIdentitiesOnly(true);
+			return hostConfig;
+		}
+
+		/**
+		 * Pooled connection: start extra sessions, forwards are mapped on each one when authenticated
+		 */
+		private void openPool() {
+			closePool();
+			final Connection c = getConnection();
+			final ClientSession cs = session;
+			if (!c.isPooled() || (cs == null)) {
+				return;
+			}
+			final SessionPool sp = new SessionPool(getConnectionAlias(), c.getPoolBalance(), cs);
+			pool = sp;
+			log.info("Pool {}: sessions={} balance={}", getConnectionAlias(), c.poolSize, c.getPoolBalance());
+			for (int k = 1; k < c.poolSize; k++) {
+				new MemberConnect(sp).start();
+			}
+		}
+
+		private void closePool() {
+			final SessionPool sp = pool;
+			pool = null;
+			if (sp != null) {
+				sp.close();
+			}
+		}
+
+		private void scheduleMember(final SessionPool sp) {
+			submitTask("connection:" + getConnectionAlias(), () -> new MemberConnect(sp).start(),
+					DEFAULT_POOL_RETRY_MILLIS);
+		}
+
+		/**
+		 * Connect of an extra session of pool (same address, identity and host key check as primary),
+		 * non-blocking; failed or closed ones are retried while pool is open
+		 */
+		private final class MemberConnect {
+			private final SessionPool sp;
+			private final AtomicBoolean done = new AtomicBoolean();
+			private final AtomicBoolean ended = new AtomicBoolean();
+			private volatile ConnectFuture connect = null;
+			private volatile ClientSession cs = null;
+			private volatile Future<?> timeout = null;
+			private volatile PortForwardingTracker jump = null;
+
+			MemberConnect(final SessionPool sp) {
+				this.sp = sp;
+			}
+
+			void start() {
+				HostConfigEntry hostConfig = dialConfig;
+				if ((pool != sp) || (hostConfig == null)) {
+					return;
+				}
+				final Map<AttributeKey<?>, Object> attrs = new HashMap<AttributeKey<?>, Object>();
+				attrs.put(SESSION_ATTR, Session.this);
+				attrs.put(POOL_ATTR, sp);
+				final SshdSocketAddress target = dialTarget;
+				if (target != null) {
+					attrs.put(ClientSessionCreator.TARGET_SERVER, target);
+				}
+				timeout = scheduler.timer(() -> {
+					fail(new SocketTimeoutException("Unable to connect pool session (timeout): " //
+							+ getConnectionAddress()));
+				}, DEFAULT_CONNECT_TIMEOUT + DEFAULT_AUTH_TIMEOUT);
+				try {
+					final ClientSession upstream = dialJump;
+					if (upstream != null) {
+						// Own channel of jump host session
+						jump = openJump(upstream, target);
+						hostConfig = dialConfig(jump.getBoundAddress());
+					}
+					connect = getSshClient().connect(hostConfig, AttributeRepository.ofAttributesMap(attrs), null);
+					connect.addListener(f -> connected(f));
+				} catch (IOException | RuntimeException e) {
+					fail(e);
+				}
+			}
+
+			private void connected(final ConnectFuture f) {
+				closeJump(jump);
+				if (!f.isConnected()) {
+					fail(f.getException());
+					return;
+				}
+				cs = f.getClientSession();
+				if (done.get()) {
+					// Late completion of failed attempt
+					cs.close(true);
+					return;
+				}
+				try {
+					addCredentials(cs, getIdentityPath());
+					cs.auth().addListener(f2 -> {
+						scheduler.schedule("connection:" + getConnectionAlias(), () -> authenticated(f2), 0);
+					});
+				} catch (IOException | RuntimeException e) {
+					fail(e);
+				}
+			}
+
+			private void authenticated(final AuthFuture f) {
+				if (!f.isSuccess()) {
+					fail(f.getException());
+					return;
+				}
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				cancelTimeout();
+				final ClientSession member = cs;
+				if (pool != sp) {
+					member.close(true);
+					return;
+				}
+				member.addSessionListener(new SessionListener() {
+					@Override
+					public void sessionClosed(final org.apache.sshd.common.session.Session session) {
+						closed(member);
+					}
+				});
+				if (!member.isOpen()) {
+					closed(member);
+				} else if (!sp.addMember(member)) {
+					member.close(true);
+				} else if (!member.isOpen()) {
+					// Closed while mapping
+					sp.removeMember(member);
+				}
+			}
+
+			/**
+			 * Extra session closed (once): replaced while pool is open
+			 */
+			private void closed(final ClientSession member) {
+				if (!ended.compareAndSet(false, true)) {
+					return;
+				}
+				sp.removeMember(member);
+				if (pool == sp) {
+					log.info("Pool session closed {}: reconnect={}", getConnectionAlias(), //
+							DEFAULT_POOL_RETRY_MILLIS);
+					scheduleMember(sp);
+				}
+			}
+
+			private void fail(final Throwable e) {
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				cancelTimeout();
+				final ConnectFuture c = connect;
+				if (c != null) {
+					c.cancel();
+				}
+				closeJump(jump);
+				final ClientSession member = cs;
+				if (member != null) {
+					member.close(true);
+				}
+				if (pool == sp) {
+					log.warn("Pool session failed {}: {}", getConnectionAlias(), String.valueOf(e));
+					scheduleMember(sp);
+				}
+			}
+
+			private void cancelTimeout() {
+				final Future<?> t = timeout;
+				if (t != null) {
+					t.cancel(false);
+				}
+			}
+		}
+
+		/**
+		 * On-demand: close session (back to standby) after idle millis without open channels
+		 */
+		private final class IdleClose implements Runnable {
+			private final ClientSession cs;
+			private final long idle;
+			private long lastBusy = System.currentTimeMillis();
+
+			IdleClose(final ClientSession cs, final long idle) {
+				this.cs = cs;
+				this.idle = idle;
+			}
+
+			void start() {
+				scheduler.schedule("idle:" + getConnectionID(), this, Math.max(100L, idle / 4));
+			}
+
+			@Override
+			public void run() {
+				if ((session != cs) || !cs.isOpen()) {
+					return;
 				}
-				case DYNAMIC: {
-					trackers.add(session.createDynamicPortForwardingTracker(f.getLocalSocketAddress()));
-					break;
+				final long now = System.currentTimeMillis();
+				if (openChannels(cs) > 0) {
+					lastBusy = now;
+				} else if ((now - lastBusy) >= idle) {
+					log.info("On-demand idle {}: closing session", getConnectionAlias());
+					idleClosing = true;
+					cs.close(false);
+					return;
 				}
+				start();
 			}
 		}
 
-		public void unmap() {
-			for (final PortForwardingTracker m : trackers) {
-				try {
-					log.info("Unmapping: {}", m);
-					m.close();
-				} catch (Exception ign) {
-				}
+		private int openChannels(final ClientSession cs) {
+			final ConnectionService service = cs.getService(ConnectionService.class);
+			if (service instanceof AbstractConnectionService) {
+				return ((AbstractConnectionService) service).getChannels().size();
 			}
-			trackers.clear();
+			return 1; // Unknown, never idle
 		}
 
 		public void resetIdle() {
@@ -494,21 +2088,120 @@ public class SSHClient {
 		@Override
 		public void sessionEvent(org.apache.sshd.common.session.Session session, //
 				SessionListener.Event event) {
+			if (event == SessionListener.Event.KeyEstablished) {
+				handshake.mark(HandshakeTimings.Phase.KEX);
+				log.info("Key exchange {}: kex={} cipher={} mac={}", getConnectionAlias(), //
+						session.getNegotiatedKexParameter(KexProposalOption.ALGORITHMS), //
+						session.getNegotiatedKexParameter(KexProposalOption.C2SENC), //
+						session.getNegotiatedKexParameter(KexProposalOption.C2SMAC));
+			} else if (event == SessionListener.Event.Authenticated) {
+				handshake.mark(HandshakeTimings.Phase.AUTH);
+				setConnected();
+			}
+		}
+
+		private void setConnected() {
 			final Session self = this;
-			if (event == SessionListener.Event.Authenticated) {
-				state = ConnectionStatus.CONNECTED;
-				if (self.listeners != null) {
-					for (final Notify notify : self.listeners) {
-						notify.notifyEstablished(self);
-					}
+			setState(ConnectionStatus.CONNECTED);
+			if (self.listeners != null) {
+				for (final Notify notify : self.listeners) {
+					notify.notifyEstablished(self);
+				}
+			}
+		}
+
+		/**
+		 * Join (or start) shared session of same server and identity
+		 *
+		 * @return true if attempt is completed by shared session (now or when established)
+		 */
+		private boolean joinShared(final PendingConnect p) {
+			final Connection c = getConnection();
+			if (!DEFAULT_SESSION_SHARING || c.isOnDemand || c.isPooled()) {
+				return false;
+			}
+			final String key = shareKey(c);
+			final SharedSession sh;
+			synchronized (sharedSessions) {
+				final SharedSession current = sharedSessions.get(key);
+				if ((current == null) || !current.isAlive() || !current.matches(getIdentity())) {
+					// This connection opens the session (old one is closed by its last user)
+					shared = new SharedSession(key, this);
+					sharedSessions.put(key, shared);
+					return false;
 				}
+				sh = current;
+			}
+			shared = sh;
+			log.info("Connecting to: {}@{} shared", getIdentityUserName(), getConnectionAddress());
+			p.timeout(DEFAULT_CONNECT_TIMEOUT + DEFAULT_AUTH_TIMEOUT, "Unable to connect (shared timeout): ");
+			sh.join(this, p);
+			return true;
+		}
+
+		/**
+		 * @return true if there is no other user of session (or it is not shared)
+		 */
+		private boolean releaseShared() {
+			final SharedSession sh = shared;
+			shared = null;
+			return ((sh == null) || sh.release(this));
+		}
+
+		@Override
+		public void sessionException(org.apache.sshd.common.session.Session session, Throwable t) {
+			final PendingConnect p = pending;
+			if ((p != null) && p.owns(session)) {
+				p.closing(t);
+			}
+		}
+
+		@Override
+		public void sessionDisconnect(org.apache.sshd.common.session.Session session, int reason, String msg,
+				String language, boolean initiator) {
+			final PendingConnect p = pending;
+			if ((p != null) && p.owns(session)) {
+				p.closing(new SshException(reason, msg));
 			}
 		}
 
 		@Override
 		public void sessionClosed(org.apache.sshd.common.session.Session session) {
 			final Session self = this;
-			state = (disconnecting //
+			final PendingConnect p = pending;
+			if (!disconnecting && (p != null) && p.owns(session)) {
+				// Attempt fails with the close cause (state, notify and retry, see PendingConnect.fail)
+				p.closed();
+				return;
+			}
+			if (!disconnecting && getConnection().isOnDemand) {
+				if (!established) {
+					// Failed attempt (still listening, see rejectStandby) or already handled
+					return;
+				}
+				// Idle or dropped on-demand session: listen again, next client reconnects
+				final boolean idle = idleClosing;
+				idleClosing = false;
+				self.setEstablished(false);
+				disconnect(false);
+				log.info("On-demand {} {}: standby", getConnectionAlias(), (idle ? "idle" : "dropped"));
+				if (self.listeners != null) {
+					for (final Notify notify : self.listeners) {
+						if (idle) {
+							notify.notifyClosed(self);
+						} else {
+							notify.notifyFail(self);
+						}
+					}
+				}
+				submitTask("connection:" + getConnectionAlias(), () -> {
+					if (!disconnecting) {
+						standby();
+					}
+				});
+				return;
+			}
+			setState(disconnecting //
 					? ConnectionStatus.NOT_CONNECTED //
 					: ConnectionStatus.DISCONNECTED);
 			if (!disconnecting) {
@@ -524,162 +2217,431 @@ public class SSHClient {
 				}
 			}
 			if (disconnecting) {
-				sessions.remove(self);
+				removeSession(self);
 			} else {
 				if (self.isAutoReconnect() && self.established) {
-					submitTask("connection:" + self.getConnectionAlias(), () -> {
-						if (self.isAutoReconnect()) {
-							connect1(self);
-						}
-					}, self.nextRetrySleep());
+					scheduleReconnect(self, null);
 				}
 			}
 			self.setEstablished(false);
 		}
 
-		public void connect() throws IOException {
+		/**
+		 * Apply per-connection settings, called by shared client on session creation (before KEX)
+		 * 
+		 * @param session the new client session
+		 */
+		private void setup(final ClientSession session) {
+			handshake.mark(HandshakeTimings.Phase.TCP);
+			configure(session, true);
+			final PendingConnect p = pending;
+			if (p != null) {
+				// Close before ConnectFuture completes is owned by attempt too
+				p.session = session;
+			}
+			session.addSessionListener(this);
+		}
+
+		/**
+		 * Apply per-connection settings to an extra session of pool (no timings, no session listener)
+		 * 
+		 * @param session the new client session
+		 */
+		private void setupMember(final ClientSession session) {
+			configure(session, false);
+		}
+
+		private void configure(final ClientSession session, final boolean primary) {
+			// Used for caching private key passphrase in AskUserGUI#getPassword
+			PropertyResolverUtils.updateProperty(session, IDENTITY_PROP_ID, getIdentity());
+			final AttributeRepository context = session.getConnectionContext();
+			final SshdSocketAddress target = ((context == null) ? null
+					: context.getAttribute(ClientSessionCreator.TARGET_SERVER));
+			if (target != null) {
+				// Through jump host: known_hosts is checked against real server, not local port
+				session.setAttribute(ClientSessionCreator.TARGET_SERVER, target);
+			}
+			final HandshakeTimings.Attempt attempt = handshake;
+			final ServerKeyVerifier verifier = hostVerifier;
+			if (primary) {
+				session.setServerKeyVerifier((clientSession, remoteAddress, serverKey) -> {
+					final long start = System.nanoTime();
+					try {
+						return verifier.verifyServerKey(clientSession, remoteAddress, serverKey);
+					} finally {
+						attempt.addHostKey(System.nanoTime() - start);
+					}
+				});
+			} else {
+				session.setServerKeyVerifier(verifier);
+			}
+			if (session instanceof MeteredClientSession) {
+				((MeteredClientSession) session).setMetrics(getMetrics(connectionMetrics, s_c));
+			}
+			final Connection c = getConnection();
+			if (c.heartbeatAdaptive && primary) {
+				// Disable built-in heartbeat, see AdaptiveHeartbeat (extra sessions of pool use built-in)
+				CoreModuleProperties.HEARTBEAT_INTERVAL.set(session, Duration.ZERO);
+			} else {
+				CoreModuleProperties.HEARTBEAT_INTERVAL.set(session, Duration.ofMillis(c.getHeartbeatInterval()));
+				CoreModuleProperties.HEARTBEAT_REPLY_WAIT.set(session,
+						Duration.ofMillis(c.getHeartbeatReplyWait()));
+				CoreModuleProperties.HEARTBEAT_REQUEST.set(session, PROBE_REQUEST);
+				if (c.heartbeatMaxMissed > 0) {
+					CoreModuleProperties.HEARTBEAT_NO_REPLY_MAX.set(session, c.heartbeatMaxMissed);
+				}
+			}
+			if (c.idleTimeout > 0) {
+				CoreModuleProperties.IDLE_TIMEOUT.set(session, Duration.ofMillis(c.idleTimeout));
+			}
+			final WindowTuner t = tuner;
+			if (c.windowAutoTune && (t != null)) {
+				CoreModuleProperties.WINDOW_SIZE.set(session, t.getWindow());
+			} else if (c.windowSize > 0) {
+				CoreModuleProperties.WINDOW_SIZE.set(session, c.windowSize);
+			}
+			if (c.maxPacketSize > 0) {
+				CoreModuleProperties.MAX_PACKET_SIZE.set(session, c.maxPacketSize);
+			}
+			if (c.rekeyBytes > 0) {
+				CoreModuleProperties.REKEY_BYTES_LIMIT.set(session, c.rekeyBytes);
+			}
+			if (c.rekeyTime > 0) {
+				CoreModuleProperties.REKEY_TIME_LIMIT.set(session, Duration.ofMillis(c.rekeyTime));
+			}
+			if (session instanceof MeteredClientSession) {
+				((MeteredClientSession) session).applyProperties();
+			}
+			CryptoPreferences.apply(session, c);
+		}
+
+		/**
+		 * Start connection (TCP, KEX, AUTH), non-blocking
+		 * 
+		 * @return completed when authenticated or failed
+		 */
+		public CompletableFuture<Void> connect() {
 			final Session self = this;
 			disconnecting = false;
-			SshClient client = null;
+			waitingJump = false;
+			closeJumpTracker();
+			final PendingConnect p = new PendingConnect("connection:" + getConnectionAlias());
+			pending = p;
 			try {
-				// Alternative with JSch http://www.jcraft.com/jsch/examples/PortForwardingR.java.html
-				client = SshClient.setUpDefaultClient();
-				// Used for caching private key passphrase in AskUserGUI#getPassword
-				PropertyResolverUtils.updateProperty(client, IDENTITY_PROP_ID, getIdentity());
-				// org.apache.sshd.client.ClientBuilder
-				client.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE); // For RemotePortForwarding
-				final File knownHost = new File(getConfigDir(), "known_hosts");
-				if (!knownHost.exists()) {
-					knownHost.createNewFile();
-				}
-				KnownHostsServerKeyVerifier hostVerifier = new KnownHostsServerKeyVerifier(
-						((clientSession, remoteAddress, serverKey) -> {
-							log.warn("Unknown server {} publickey [{}][{}] ({} [{}])", //
-									remoteAddress, //
-									KeyUtils.getFingerPrint(BuiltinDigests.sha256, serverKey), //
-									KeyUtils.getFingerPrint(BuiltinDigests.md5, serverKey), //
-									KeyUtils.getKeyType(serverKey), //
-									KeyUtils.getKeySize(serverKey));
-							return (keyAcceptatorNew == null) ? true
-									: keyAcceptatorNew.verifyServerKey(clientSession, //
-											remoteAddress, serverKey);
-						}), knownHost.toPath());
-				hostVerifier.setModifiedServerKeyAcceptor(
-						(clientSession, remoteAddress, entry, expected, actual) -> {
-							log.warn(
-									"Known server {} changed publickey from [{}][{}] ({} [{}]) to [{}][{}] ({} [{}])",
-									remoteAddress, //
-									KeyUtils.getFingerPrint(BuiltinDigests.sha256, expected), //
-									KeyUtils.getFingerPrint(BuiltinDigests.md5, expected), //
-									KeyUtils.getKeyType(expected), //
-									KeyUtils.getKeySize(expected), //
-									KeyUtils.getFingerPrint(BuiltinDigests.sha256, actual), //
-									KeyUtils.getFingerPrint(BuiltinDigests.md5, actual), //
-									KeyUtils.getKeyType(actual), //
-									KeyUtils.getKeySize(actual));
-							return (keyAcceptatorModified == null) ? false
-									: keyAcceptatorModified.acceptModifiedServerKey(clientSession, //
-											remoteAddress, entry, expected, actual);
-						});
-				client.setServerKeyVerifier(hostVerifier);
-				client.setForwarderFactory(new DefaultForwarderFactory());
-				// https://github.com/apache/mina-sshd/blob/master/docs/client-setup.md
-				// TODO: Nuevo PublicKey Auth?
-				// client.setClientIdentityLoader(ClientIdentityLoader.DEFAULT);
-				// For encrypted private keys
-				client.setFilePasswordProvider((filePasswordProvider != null) //
-						? filePasswordProvider //
-						: FilePasswordProvider.EMPTY);
-				// client.setKeyIdentityProvider(null);
-				client.addSessionListener(this);
-				sessions.add(self);
-				state = ConnectionStatus.CONNECTING;
+				this.hostVerifier = getKnownHostsVerifier();
+				final SshClient client = getSshClient();
+				addSession(self);
+				setState(ConnectionStatus.CONNECTING);
 				if (self.listeners != null) {
 					for (final Notify notify : self.listeners) {
 						notify.notifyConnecting(self);
 					}
 				}
-				CoreModuleProperties.HEARTBEAT_INTERVAL.set(client, Duration.ofSeconds(10));
-				CoreModuleProperties.HEARTBEAT_REPLY_WAIT.set(client, Duration.ofSeconds(15));
-				CoreModuleProperties.HEARTBEAT_REQUEST.set(client, "keepalive@openssh.com");
-
-				// org.apache.sshd.client.session.ClientConnectionService
-				// handleUnknownRequest(ClientConnectionService[ClientSessionImpl[test@/192.168.x.x:22]])
-				// unknown global request: keepalive@openssh.com
-				// client.setSessionHeartbeat(HeartbeatType.IGNORE, TimeUnit.SECONDS, 10);
-
-				// apache.sshd.client.session.ClientSessionImpl
-				// Disconnecting(ClientSessionImpl[test@/192.168.x.x:22]): SSH2_DISCONNECT_PROTOCOL_ERROR
-				// - Detected IdleTimeout after 600215/600000 ms.
-				// PropertyResolverUtils.updateProperty(client, FactoryManager.IDLE_TIMEOUT, 0L); // DISABLE
-
-				// org.apache.sshd.client.session.ClientSessionImpl
-				// exceptionCaught(ClientSessionImpl[test@/192.168.x.x:22])[state=Opened]
-				// InterruptedByTimeoutException: null
-				// PropertyResolverUtils.updateProperty(client, FactoryManager.NIO2_READ_TIMEOUT,
-				// TimeUnit.DAYS.toMillis(0L)); // DISABLE
-				client.start();
-				log.info("Connecting to: {}@{}", getIdentityUserName(), getConnectionAddress());
-				HostConfigEntry hostConfig = new HostConfigEntry(null, getConnectionAddress().getHostName(),
-						getConnectionAddress().getPort(), getIdentityUserName());
-				hostConfig.setIdentitiesOnly(true);
-				// hostConfig.addIdentity("/tmp/sshd/id_rsa");
-				final String key = getIdentityKey();
-				if (!key.isEmpty()) {
-					final Path idPath = Paths.get(configDirectory, key);
-					if (idPath.toFile().exists()) {
-						hostConfig.addIdentity(idPath);
-					} else {
-						log.error("Identity file not found: {}", idPath);
+				handshake = new HandshakeTimings.Attempt();
+				if (joinShared(p)) {
+					return p.result;
+				}
+				SshdSocketAddress address = getConnectionAddress();
+				final Connection c = getConnection();
+				if (c.hasJumpHost()) {
+					final Connection jump = findJumpHost(c);
+					if ((jump == null) || (jumpDepth(c) < 0)) {
+						throw new IOException("Jump host not found or loop: " + c.jumpHost);
+					}
+					final ClientSession upstream = getJumpSession(jump);
+					if (upstream == null) {
+						log.info("Waiting jump host {}: {}", jump.alias, getConnectionAlias());
+						waitingJump = true;
+						// Resumed attempt opens the shared session again (no self-join)
+						releaseShared();
+						p.abort();
+						startJump(jump);
+						return p.result;
 					}
+					// One direct-tcpip channel of shared jump host session per transport
+					final PortForwardingTracker t = openJump(upstream, address);
+					jumpTracker = t;
+					p.jump = t;
+					p.jumpTarget = address;
+					dialJump = upstream;
+					address = t.getBoundAddress();
+					log.info("Connecting to: {}@{} via {}", getIdentityUserName(), getConnectionAddress(),
+							jump.alias);
+				} else {
+					dialJump = null;
+					log.info("Connecting to: {}@{}", getIdentityUserName(), getConnectionAddress());
 				}
-				ConnectFuture connect = client.connect(hostConfig);
-				if (!connect.await(DEFAULT_CONNECT_TIMEOUT)) {
-					throw new ConnectException("Unable to connect (timeout): " //
-							+ getConnectionAddress());
+				final HostConfigEntry hostConfig = dialConfig(address);
+				p.identityPath = getIdentityPath();
+				// Extra sessions of pool dial the same (see MemberConnect)
+				dialConfig = hostConfig;
+				dialTarget = p.jumpTarget;
+				if (c.windowAutoTune && (tuner == null)) {
+					final long initial = ((c.windowSize > 0) ? c.windowSize //
+							: CoreModuleProperties.DEFAULT_WINDOW_SIZE);
+					tuner = new WindowTuner(initial, DEFAULT_WINDOW_MAX);
 				}
-				if (!connect.isConnected()) {
-					throw new ConnectException("Unable to connect (not connected): " //
-							+ getConnectionAddress());
+				p.start(client, hostConfig);
+			} catch (RuntimeException | IOException e) {
+				p.fail(e);
+			}
+			return p.result;
+		}
+
+		/**
+		 * State machine of one connection attempt: ConnectFuture &gt; AuthFuture. Listeners resume the
+		 * next step in the connection task queue and timeouts run on the scheduler timer, so no thread is
+		 * parked while waiting for the network.
+		 */
+		private final class PendingConnect {
+			private final CompletableFuture<Void> result = new CompletableFuture<Void>();
+			private final AtomicBoolean done = new AtomicBoolean();
+			private final String queue;
+			private volatile ConnectFuture connect = null;
+			private volatile ClientSession session = null;
+			private volatile Future<?> timeout = null;
+			private final AtomicReference<Throwable> closeCause = new AtomicReference<Throwable>();
+			private volatile Path identityPath = null;
+			private volatile SshdSocketAddress jumpTarget = null;
+			private volatile PortForwardingTracker jump = null;
+
+			PendingConnect(final String queue) {
+				this.queue = queue;
+			}
+
+			void start(final SshClient client, final HostConfigEntry hostConfig) throws IOException {
+				final Session self = Session.this;
+				timeout(DEFAULT_CONNECT_TIMEOUT, "Unable to connect (timeout): ");
+				final Map<AttributeKey<?>, Object> attrs = new HashMap<AttributeKey<?>, Object>();
+				attrs.put(SESSION_ATTR, self);
+				if (jumpTarget != null) {
+					attrs.put(ClientSessionCreator.TARGET_SERVER, jumpTarget);
+				}
+				connect = client.connect(hostConfig, AttributeRepository.ofAttributesMap(attrs), null);
+				connect.addListener(f -> step(() -> connected(f)));
+			}
+
+			private void connected(final ConnectFuture f) throws IOException {
+				if (jump != null) {
+					// Loopback port not needed anymore, transport keeps its channel
+					if (jumpTracker == jump) {
+						jumpTracker = null;
+					}
+					closeJump(jump);
 				}
-				ClientSession session = connect.getClientSession();
-				final String pass = getIdentityPassword();
-				if (!pass.isEmpty()) {
-					session.addPasswordIdentity(pass);
+				if (!f.isConnected()) {
+					final ConnectException e = new ConnectException("Unable to connect (not connected): " //
+							+ getConnectionAddress());
+					e.initCause(f.getException());
+					fail(e);
+					return;
 				}
+				session = f.getClientSession();
+				addCredentials(session, identityPath);
 				// session.addPublicKeyIdentity(getIdentityKey());
-				session.auth().verify(DEFAULT_AUTH_TIMEOUT);
+				timeout(DEFAULT_AUTH_TIMEOUT, "Unable to authenticate (timeout): ");
+				session.auth().addListener(f2 -> step(() -> authenticated(f2)));
+			}
+
+			private void authenticated(final AuthFuture f) throws IOException {
+				if (!f.isSuccess()) {
+					final Throwable t = f.getException();
+					fail(((t instanceof IOException) || (t instanceof RuntimeException)) ? t
+							: new IOException("Unable to authenticate: " + getConnectionAddress(), t));
+					return;
+				}
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				cancelTimeout();
 				log.info("Session established: {}@{}", getIdentityUserName(), getConnectionAddress());
-				this.client = client;
-				this.session = session;
-			} catch (RuntimeException | IOException e) {
-				state = ConnectionStatus.DISCONNECTED;
-				disconnect(false);
-				if (client != null) {
+				Session.this.session = session;
+				if (getConnection().heartbeatAdaptive) {
+					new AdaptiveHeartbeat(session, getConnection()).start();
+				}
+				if (getConnection().windowAutoTune) {
+					new WindowAutoTune(session).start();
+				}
+				final SharedSession sh = shared;
+				if (sh != null) {
+					sh.established(session);
+				}
+				clearPending();
+				result.complete(null);
+			}
+
+			/**
+			 * Use session established by other connection (see {@link SharedSession})
+			 */
+			private void attach(final ClientSession cs) throws IOException {
+				cs.addSessionListener(Session.this);
+				if (!cs.isOpen()) {
+					cs.removeSessionListener(Session.this);
+					throw new ConnectException("Shared session closed: " + getConnectionAddress());
+				}
+				if (!done.compareAndSet(false, true)) {
+					cs.removeSessionListener(Session.this);
+					return;
+				}
+				cancelTimeout();
+				log.info("Session shared: {}@{}", getIdentityUserName(), getConnectionAddress());
+				Session.this.session = cs;
+				setConnected();
+				clearPending();
+				result.complete(null);
+			}
+
+			/**
+			 * Resume in connection task queue, ignored if attempt already ended
+			 */
+			private void step(final StepTask task) {
+				scheduler.schedule(queue, () -> {
+					if (done.get()) {
+						discard();
+						return;
+					}
 					try {
-						client.close();
-					} catch (IOException ign) {
+						task.run();
+					} catch (RuntimeException | IOException e) {
+						fail(e);
+					}
+				}, 0);
+			}
+
+			/**
+			 * @return true if session was opened by this attempt
+			 */
+			boolean owns(final org.apache.sshd.common.session.Session cs) {
+				return ((cs != null) && (cs == session));
+			}
+
+			/**
+			 * Record why session is closing (first reason: KEX or host key error, disconnect)
+			 */
+			void closing(final Throwable cause) {
+				closeCause.compareAndSet(null, cause);
+			}
+
+			/**
+			 * Session closed before authentication: auth failure signalled before close is already queued
+			 * and ends attempt with its own cause, else fail with recorded close cause
+			 */
+			void closed() {
+				step(() -> {
+					final Throwable t = closeCause.get();
+					final ConnectException e = new ConnectException("Session closed: " + getConnectionAddress());
+					if (t != null) {
+						e.initCause(t);
 					}
+					fail(e);
+				});
+			}
+
+			private void timeout(final long millis, final String message) {
+				cancelTimeout();
+				timeout = scheduler.timer(() -> step(() -> {
+					fail(new SocketTimeoutException(message + getConnectionAddress()));
+				}), millis);
+			}
+
+			private void cancelTimeout() {
+				final Future<?> t = timeout;
+				if (t != null) {
+					t.cancel(false);
+				}
+			}
+
+			private void clearPending() {
+				if (pending == this) {
+					pending = null;
+				}
+			}
+
+			/**
+			 * Failed attempt (same cleanup as a failed blocking connect)
+			 */
+			void fail(final Throwable e) {
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				final Session self = Session.this;
+				final ClientSession cs = session;
+				if (cs != null) {
+					// Failure is notified here (not again by sessionClosed): before pending is cleared
+					// and session closed by disconnect
+					cs.removeSessionListener(self);
+				}
+				cancelTimeout();
+				clearPending();
+				setState(ConnectionStatus.DISCONNECTED);
+				disconnect(false);
+				final ConnectFuture c = connect;
+				if (c != null) {
+					c.cancel();
 				}
 				if (self.listeners != null) {
 					for (final Notify notify : self.listeners) {
 						notify.notifyFail(self);
 					}
 				}
-				throw e;
+				result.completeExceptionally(e);
+			}
+
+			/**
+			 * Attempt superseded by disconnect (user or new attempt), session state is handled by caller
+			 */
+			void abort() {
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				cancelTimeout();
+				clearPending();
+				discard();
+				result.completeExceptionally(new CancellationException("Connection aborted: " //
+						+ getConnectionAddress()));
+			}
+
+			/**
+			 * Release network resources of an ended attempt (late completions too)
+			 */
+			private void discard() {
+				final ConnectFuture c = connect;
+				if (c != null) {
+					c.cancel();
+					if (c.isConnected()) {
+						session = c.getClientSession();
+					}
+				}
+				final ClientSession cs = session;
+				if ((cs != null) && (cs != Session.this.session)) {
+					cs.removeSessionListener(Session.this);
+					cs.close(true);
+				}
 			}
 		}
 
 		public void disconnect(final boolean gracefully) {
 			if (gracefully) {
 				disconnecting = true;
+				waitingJump = false;
+				closeStandby();
+			}
+			final PendingConnect p = pending;
+			if (p != null) {
+				p.abort();
 			}
-			final boolean wantTrace = ((session != null) || (client != null));
+			final boolean wantTrace = (session != null);
 			if (wantTrace) {
 				log.info("Disconnecting from: {}@{}", getIdentityUserName(), getConnectionAddress());
 			}
+			closePool();
+			final boolean last = releaseShared();
 			if (session != null) {
-				if (gracefully) {
+				if (!last) {
+					// Shared session is kept for other connections
+					session.removeSessionListener(this);
+					unmap();
+				} else if (gracefully) {
 					try {
 						session.close(false).await(DEFAULT_CONNECT_TIMEOUT);
 					} catch (Exception e) {
@@ -691,13 +2653,7 @@ public class SSHClient {
 				}
 				session = null;
 			}
-			if (client != null) {
-				try {
-					client.stop();
-				} catch (Exception ign) {
-				}
-				client = null;
-			}
+			closeJumpTracker();
 			if (wantTrace) {
 				log.info("Disconnected: {}@{}", getIdentityUserName(), getConnectionAddress());
 			}
@@ -719,6 +2675,34 @@ public class SSHClient {
 			return getIdentity().keyfile;
 		}
 
+		/**
+		 * Keys are not added to hostConfig (parsed on every connect), see IdentityKeyCache
+		 * 
+		 * @return key file of identity, null if none or not found
+		 */
+		private Path getIdentityPath() {
+			final String key = getIdentityKey();
+			if (key.isEmpty()) {
+				return null;
+			}
+			final Path idPath = Paths.get(configDirectory, key);
+			if (!idPath.toFile().exists()) {
+				log.error("Identity file not found: {}", idPath);
+				return null;
+			}
+			return idPath;
+		}
+
+		private void addCredentials(final ClientSession cs, final Path identityPath) {
+			if (identityPath != null) {
+				cs.setKeyIdentityProvider(identityKeys.provider(identityPath, getFilePasswordProvider()));
+			}
+			final String pass = getIdentityPassword();
+			if (!pass.isEmpty()) {
+				cs.addPasswordIdentity(pass);
+			}
+		}
+
 		@Override
 		public void close() throws Exception {
 			disconnect(false);
@@ -726,62 +2710,43 @@ public class SSHClient {
 	}
 
 	public boolean aliasExistInIdentities(final String alias) {
-		for (final Identity i : identities) {
-			if (alias.equals(i.alias)) {
-				return true;
-			}
-		}
-		return false;
+		return registry.identities.existAlias(alias);
 	}
 
 	public boolean aliasExistInConnections(final String alias) {
-		for (final Connection c : connections) {
-			if (alias.equals(c.alias)) {
-				return true;
-			}
-		}
-		return false;
+		return registry.connections.existAlias(alias);
 	}
 
 	public boolean aliasExistInForwards(final String alias) {
-		for (final Forward f : forwards) {
-			if (alias.equals(f.alias)) {
-				return true;
-			}
-		}
-		return false;
+		return registry.forwards.existAlias(alias);
 	}
 
 	public Set<Identity> getIdentities() {
-		return Collections.unmodifiableSet(this.identities);
+		return registry.identities.values();
 	}
 
 	public AliasID[] getAliasedIdentities() {
-		final int size = identities.size();
-		AliasID[] arr = new AliasID[size];
-		int i = 0;
-		for (final Identity id : identities) {
-			arr[i++] = id.getAliasFacade();
+		final List<AliasID> list = new ArrayList<AliasID>();
+		for (final Identity id : registry.identities.values()) {
+			list.add(id.getAliasFacade());
 		}
-		return arr;
+		return list.toArray(new AliasID[list.size()]);
 	}
 
 	public AliasID[] getAliasedConnections() {
-		final int size = connections.size();
-		AliasID[] arr = new AliasID[size];
-		int i = 0;
-		for (final Connection con : connections) {
-			arr[i++] = con.getAliasFacade();
+		final List<AliasID> list = new ArrayList<AliasID>();
+		for (final Connection con : registry.connections.values()) {
+			list.add(con.getAliasFacade());
 		}
-		return arr;
+		return list.toArray(new AliasID[list.size()]);
 	}
 
 	public Set<Connection> getConnections() {
-		return Collections.unmodifiableSet(this.connections);
+		return registry.connections.values();
 	}
 
 	public Set<Forward> getForwards() {
-		return Collections.unmodifiableSet(this.forwards);
+		return registry.forwards.values();
 	}
 
 	public Set<String> getIdentityUsage(final Identity item) {
@@ -790,24 +2755,21 @@ public class SSHClient {
 			return Collections.emptySet();
 		}
 		final TreeSet<String> list = new TreeSet<String>();
-		for (final Connection c : connections) {
-			if (id.equals(c.identity)) {
-				list.add(c.alias);
-			}
+		for (final Connection c : registry.getConnectionsByIdentity(id)) {
+			list.add(c.alias);
 		}
 		return Collections.unmodifiableSet(list);
 	}
 
 	public Set<String> getForwardUsage(final Forward item) {
-		if ((connections == null) || connections.isEmpty()) {
+		if ((item.connections == null) || item.connections.isEmpty()) {
 			return Collections.emptySet();
 		}
 		final TreeSet<String> list = new TreeSet<String>();
 		for (final String connection : item.connections) {
-			for (final Connection c : connections) {
-				if (connection.equals(c.id)) {
-					list.add(c.alias);
-				}
+			final Connection c = registry.connections.get(connection);
+			if (c != null) {
+				list.add(c.alias);
 			}
 		}
 		return Collections.unmodifiableSet(list);
@@ -817,122 +2779,314 @@ public class SSHClient {
 		if ((id == null) || id.isEmpty()) {
 			return ConnectionStatus.NOT_CONNECTED;
 		}
-		for (final Session sess : sessions) {
-			final Connection conn = sess.getConnection();
-			if (id.equals(conn.id)) {
-				return sess.getStatus();
-			}
-		}
-		return ConnectionStatus.NOT_CONNECTED;
+		final Session sess = sessionsByConnection.get(id);
+		return ((sess == null) ? ConnectionStatus.NOT_CONNECTED : sess.getStatus());
 	}
 
 	public Identity getIdentity(final String id) {
-		for (final Identity i : identities) {
-			if (id.equals(i.id)) {
-				return i;
-			}
-		}
-		return Identity.NULL;
+		final Identity i = registry.identities.get(id);
+		return ((i == null) ? Identity.NULL : i);
 	}
 
 	public void removeIdentity(final String id) {
-		for (final Identity i : identities) {
-			if (id.equals(i.id)) {
-				identities.remove(i);
-				setDirtyConfig(true);
-			}
+		final Identity old = registry.removeIdentity(id);
+		if (old != null) {
+			invalidateKey(old);
+			setDirtyConfig(true);
 		}
 	}
 
+	/**
+	 * Drop decrypted key of identity (keyfile or password changed, or removed), next auth reloads it
+	 */
+	private void invalidateKey(final Identity identity) {
+		if ((identity.keyfile != null) && !identity.keyfile.isEmpty()) {
+			identityKeys.invalidate(Paths.get(configDirectory, identity.keyfile));
+		}
+	}
+
+	/**
+	 * Add or replace identity, established connections using it are reconnected if credentials
+	 * changed
+	 */
 	public void setIdentity(final Identity identity) {
-		final String id = identity.id;
-		removeIdentity(id);
-		identities.add(identity);
+		final ConfigChange change = new ConfigChange();
+		change.identity(registry.putIdentity(identity), identity);
 		setDirtyConfig(true);
+		change.apply();
 	}
 
 	public Connection getConnection(final String id) {
-		for (final Connection c : connections) {
-			if (id.equals(c.id)) {
-				return c;
-			}
-		}
-		return Connection.NULL;
+		final Connection c = registry.connections.get(id);
+		return ((c == null) ? Connection.NULL : c);
+	}
+
+	/**
+	 * @param alias connection alias
+	 * @return connection or {@link Connection#NULL} if not found
+	 */
+	public Connection getConnectionByAlias(final String alias) {
+		final Connection c = ((alias == null) ? null : registry.connections.getByAlias(alias));
+		return ((c == null) ? Connection.NULL : c);
 	}
 
+	/**
+	 * Remove connection, disconnecting its session
+	 */
 	public void removeConnection(final String id) {
-		for (final Connection c : connections) {
-			if (id.equals(c.id)) {
-				connections.remove(c);
-				setDirtyConfig(true);
-			}
+		final ConfigChange change = new ConfigChange();
+		final Connection old = registry.removeConnection(id);
+		if (old != null) {
+			change.connection(old, null);
+			setDirtyConfig(true);
+			change.apply();
 		}
 	}
 
+	/**
+	 * Add or replace connection, its session is reconnected if address or identity changed
+	 */
 	public void setConnection(final Connection connection) {
-		final String id = connection.id;
-		removeConnection(id);
-		connections.add(connection);
+		final ConfigChange change = new ConfigChange();
+		change.connection(registry.putConnection(connection), connection);
 		setDirtyConfig(true);
+		change.apply();
 	}
 
 	public Forward getForward(final String id) {
-		for (final Forward f : forwards) {
-			if (id.equals(f.id)) {
-				return f;
-			}
-		}
-		return null;
+		return registry.forwards.get(id);
 	}
 
+	/**
+	 * Remove forward, unmapping it from established sessions
+	 */
 	public void removeForward(final String id) {
-		for (final Forward f : forwards) {
-			if (id.equals(f.id)) {
-				forwards.remove(f);
-				setDirtyConfig(true);
-			}
+		final ConfigChange change = new ConfigChange();
+		final Forward old = registry.removeForward(id);
+		if (old != null) {
+			change.forward(old, null);
+			setDirtyConfig(true);
+			change.apply();
 		}
 	}
 
+	/**
+	 * Add or replace forward, established sessions of old and new connections are remapped
+	 */
 	public void setForward(final Forward forward) {
-		final String id = forward.id;
-		removeForward(id);
-		forwards.add(forward);
+		final ConfigChange change = new ConfigChange();
+		change.forward(registry.putForward(forward), forward);
 		setDirtyConfig(true);
+		change.apply();
+	}
+
+	/**
+	 * Reload configuration from disk (discarding unsaved changes), only differences are applied to
+	 * live sessions: see {@link #setIdentity(Identity)}, {@link #setConnection(Connection)},
+	 * {@link #setForward(Forward)}
+	 */
+	public void reload() throws IOException {
+		final long modified = cfg.lastModified();
+		final ConfigData data = cfg.load();
+		configModified = modified;
+		final ConfigChange change = new ConfigChange();
+		synchronized (registry) {
+			final Set<String> identities = new HashSet<String>();
+			final Set<String> connections = new HashSet<String>();
+			final Set<String> forwards = new HashSet<String>();
+			for (final Identity i : data.identities) {
+				identities.add(i.id);
+			}
+			for (final Connection c : data.connections) {
+				connections.add(c.id);
+			}
+			for (final Forward f : data.forwards) {
+				forwards.add(f.id);
+			}
+			for (final Forward f : registry.forwards.values()) {
+				if (!forwards.contains(f.id)) {
+					change.forward(registry.removeForward(f.id), null);
+				}
+			}
+			for (final Connection c : registry.connections.values()) {
+				if (!connections.contains(c.id)) {
+					change.connection(registry.removeConnection(c.id), null);
+				}
+			}
+			for (final Identity i : registry.identities.values()) {
+				if (!identities.contains(i.id)) {
+					change.identity(registry.removeIdentity(i.id), null);
+				}
+			}
+			// Replaced in file order
+			for (final Identity i : data.identities) {
+				change.identity(registry.putIdentity(i), i);
+			}
+			for (final Connection c : data.connections) {
+				change.connection(registry.putConnection(c), c);
+			}
+			for (final Forward f : data.forwards) {
+				change.forward(registry.putForward(f), f);
+			}
+			setDirtyConfig(false);
+		}
+		log.info("Configuration reloaded: identities={} connections={} forwards={} {}", //
+				data.identities.size(), data.connections.size(), data.forwards.size(), change);
+		change.apply();
+	}
+
+	/**
+	 * Effects of configuration changes on live sessions, collected to apply each once: changed
+	 * endpoint or credentials reconnect, changed forwards remap (unrelated sessions are untouched)
+	 */
+	private final class ConfigChange {
+		private final Map<String, String> disconnect = new LinkedHashMap<String, String>(); // id/alias
+		private final Set<String> removedForwards = new LinkedHashSet<String>();
+		private final Set<String> reconnect = new LinkedHashSet<String>();
+		private final Set<String> remap = new LinkedHashSet<String>();
+
+		void identity(final Identity old, final Identity now) {
+			if ((old != null) && ((now == null) || !now.isSameCredentials(old))) {
+				invalidateKey(old);
+			}
+			// Removed identity: sessions are kept (same as connect without identity)
+			if ((old != null) && (now != null) && !now.isSameCredentials(old)) {
+				for (final Connection c : registry.getConnectionsByIdentity(old.id)) {
+					reconnect.add(c.id);
+				}
+			}
+		}
+
+		void connection(final Connection old, final Connection now) {
+			if (old == null) {
+				return;
+			}
+			if (now == null) {
+				disconnect.put(old.id, old.alias);
+			} else if (!now.isSameEndpoint(old) || (now.isOnDemand != old.isOnDemand) //
+					|| !now.isSamePool(old) || !now.isSameTuning(old) || !now.isSameCrypto(old)) {
+				reconnect.add(now.id);
+			}
+		}
+
+		void forward(final Forward old, final Forward now) {
+			if ((old != null) && (now != null) && now.isSameMapping(old) //
+					&& String.valueOf(old.connections).equals(String.valueOf(now.connections))) {
+				return;
+			}
+			if ((old != null) && (now == null)) {
+				removedForwards.add(old.id);
+			}
+			if ((old != null) && (old.connections != null)) {
+				remap.addAll(old.connections);
+			}
+			if ((now != null) && (now.connections != null)) {
+				remap.addAll(now.connections);
+			}
+		}
+
+		void apply() {
+			for (final Map.Entry<String, String> e : disconnect.entrySet()) {
+				final String id = e.getKey();
+				if (sessionsByConnection.containsKey(id)) {
+					log.info("Disconnect {}: configuration removed", e.getValue());
+					submitTask("connection:" + e.getValue(), () -> {
+						disconnect0(id);
+						removeMetrics(id);
+					});
+				} else {
+					removeMetrics(id);
+				}
+			}
+			for (final String id : removedForwards) {
+				// Unmapped by remap (after this), channels still open count to a dropped entry
+				forwardMetrics.remove(id);
+			}
+			for (final String id : reconnect) {
+				final Session s = sessionsByConnection.get(id);
+				if ((s != null) && !disconnect.containsKey(id) //
+						&& ((s.getStatus() != ConnectionStatus.DISCONNECTED) || s.isRetryPending())) {
+					log.info("Reconnect {}: configuration changed", s.getConnectionAlias());
+					connect(id);
+				}
+			}
+			for (final String id : remap) {
+				final Session s = sessionsByConnection.get(id);
+				if ((s != null) && !disconnect.containsKey(id) && !reconnect.contains(id)) {
+					submitTask("connection:" + s.getConnectionAlias(), () -> s.remap(filterByConnection(id)));
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "disconnect=" + disconnect.size() + " reconnect=" + reconnect.size() + " remap=" + remap.size();
+		}
 	}
 
 	private void setDirtyConfig(final boolean isDirty) {
-		isDirtyConfig = isDirty;
+		if (isDirty) {
+			configVersion.incrementAndGet();
+		} else {
+			savedVersion = configVersion.get();
+		}
 	}
 
 	public boolean isDirtyConfig() {
-		return isDirtyConfig;
+		return (configVersion.get() != savedVersion);
 	}
 
 	public void save() {
 		save(null);
 	}
 
-	public void save(final ActionListener l) {
-		submitTask("save", () -> {
-			if (isDirtyConfig()) {
-				try {
-					log.info("Saving configuration...");
-					synchronized (cfg) {
-						cfg.save(new ConfigData(identities, connections, forwards));
-					}
-					log.info("Configuration saved.");
-					setDirtyConfig(false);
-					if (l != null) {
-						l.actionPerformed(new ActionEvent(this, 1, "save", System.currentTimeMillis(), 0));
-					}
-				} catch (Exception e) {
-					log.error("Unable to save configuration: {}", String.valueOf(e));
+	/**
+	 * Save is delayed a bit: requests arriving meanwhile are coalesced in a single write
+	 * 
+	 * @param onSaved called (scheduler thread) after configuration is written, can be null
+	 */
+	public void save(final Runnable onSaved) {
+		synchronized (saveCallbacks) {
+			if (onSaved != null) {
+				saveCallbacks.add(onSaved);
+			}
+			if (savePending) {
+				return;
+			}
+			savePending = true;
+		}
+		submitTask("save", () -> save0(), DEFAULT_SAVE_DELAY_MILLIS);
+	}
+
+	private void save0() {
+		final List<Runnable> callbacks;
+		synchronized (saveCallbacks) {
+			savePending = false;
+			callbacks = new ArrayList<Runnable>(saveCallbacks);
+			saveCallbacks.clear();
+		}
+		// Changes made while writing keep config dirty
+		final long version = configVersion.get();
+		if (version != savedVersion) {
+			try {
+				log.info("Saving configuration...");
+				final long start = System.nanoTime();
+				synchronized (cfg) {
+					cfg.save(registry.toConfigData());
+					configModified = cfg.lastModified();
 				}
-			} else {
-				log.info("Configuration already saved.");
+				savedVersion = version;
+				log.info("Configuration saved: {}ms", (System.nanoTime() - start) / 1000000L);
+			} catch (Exception e) {
+				log.error("Unable to save configuration: {}", String.valueOf(e));
+				return;
 			}
-		});
+		} else {
+			log.info("Configuration already saved.");
+		}
+		for (final Runnable r : callbacks) {
+			r.run();
+		}
 	}
 
 	private static final String cleanString(final String input) {
@@ -1022,21 +3176,4 @@ public class SSHClient {
 			return false;
 		}
 	}
-
-	public static void main(String[] args) throws Throwable {
-		final Console con = System.console();
-		final SSHClient client = new SSHClient("/tmp/sshd");
-		client.init();
-		client.start();
-		if (con != null) {
-			System.out.println("Press any key to exit");
-			con.readLine();
-		} else {
-			System.out.println("Press CTRL+C to exit");
-			while (true) {
-				Thread.sleep(1000);
-			}
-		}
-		client.stop();
-	}
 }
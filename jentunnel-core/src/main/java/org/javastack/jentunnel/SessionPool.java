@@ -0,0 +1,307 @@
+package org.javastack.jentunnel;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.client.session.forward.PortForwardingTracker;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sessions of a pooled connection: each local or dynamic forward listens once on its port and accepted
+ * clients are relayed to a direct-tcpip channel of the session with less open channels (or less recent
+ * traffic), so channels are spread over several TCP streams and ciphers. Remote forwards are mapped by
+ * primary session only.
+ */
+class SessionPool {
+	private static final Logger log = LoggerFactory.getLogger(SessionPool.class);
+	private static final int BACKLOG = 50;
+	private static final long CLOSE_WAIT = 1000;
+	private static final long RATE_HALF_LIFE = Long.getLong("jentunnel.pool.halflife", 5000L);
+
+	private final String name;
+	private final Connection.PoolBalance balance;
+	private final List<Member> members = new CopyOnWriteArrayList<Member>();
+	private final List<Front> fronts = new CopyOnWriteArrayList<Front>();
+	private final AtomicInteger next = new AtomicInteger();
+	private boolean closed = false;
+
+	/**
+	 * @param name connection alias (logs and thread names)
+	 * @param balance choice of session for new channels
+	 * @param primary established session of connection
+	 */
+	SessionPool(final String name, final Connection.PoolBalance balance, final ClientSession primary) {
+		this.name = name;
+		this.balance = balance;
+		members.add(new Member(primary));
+	}
+
+	/**
+	 * @param f local or dynamic forward
+	 * @return true if channels of forward are spread over pool
+	 */
+	static boolean isPooled(final Forward f) {
+		return (f.getType() == Forward.Type.LOCAL) || (f.getType() == Forward.Type.DYNAMIC);
+	}
+
+	/**
+	 * Listen on a port of forward, channels are opened on sessions of pool
+	 *
+	 * @param f local or dynamic forward
+	 * @param index port of range
+	 * @param metrics counters of forward
+	 * @return tracker of listen port
+	 * @throws IOException if port can not be bound
+	 */
+	PortForwardingTracker track(final Forward f, final int index, final TrafficMetrics metrics)
+			throws IOException {
+		final Member primary = members.get(0);
+		final Front front = new Front(primary.session, f, index, metrics);
+		try {
+			for (final Member m : members) {
+				front.bind(m);
+			}
+			front.listen();
+			synchronized (this) {
+				if (closed) {
+					throw new IOException("Pool closed: " + name);
+				}
+				fronts.add(front);
+			}
+		} catch (IOException | RuntimeException e) {
+			front.close();
+			throw e;
+		}
+		return front;
+	}
+
+	/**
+	 * @param session extra session (authenticated), current forwards are mapped on it
+	 * @return false if pool is closed
+	 */
+	synchronized boolean addMember(final ClientSession session) {
+		if (closed) {
+			return false;
+		}
+		final Member m = new Member(session);
+		for (final Front front : fronts) {
+			front.bind(m);
+		}
+		members.add(m);
+		log.info("Pool session added {}: sessions={}", name, members.size());
+		return true;
+	}
+
+	/**
+	 * @param session closed extra session
+	 */
+	void removeMember(final ClientSession session) {
+		for (final Member m : members) {
+			if (m.session == session) {
+				members.remove(m);
+				log.info("Pool session removed {}: sessions={}", name, members.size());
+			}
+		}
+	}
+
+	/**
+	 * @return sessions of pool (primary first)
+	 */
+	List<ClientSession> getSessions() {
+		final List<ClientSession> list = new ArrayList<ClientSession>();
+		for (final Member m : members) {
+			list.add(m.session);
+		}
+		return list;
+	}
+
+	/**
+	 * Close listen ports and extra sessions (primary session is closed by its owner)
+	 */
+	void close() {
+		final List<Member> list;
+		synchronized (this) {
+			closed = true;
+			list = new ArrayList<Member>(members);
+			members.clear();
+		}
+		for (final Front front : fronts) {
+			SocketRelay.closeQuietly(front);
+		}
+		for (int i = 1; i < list.size(); i++) {
+			list.get(i).session.close(true);
+		}
+	}
+
+	private static final class Member {
+		final ClientSession session;
+		final AtomicInteger channels = new AtomicInteger();
+		// Relayed bytes decayed by RATE_HALF_LIFE: proportional to recent rate, idle channels weigh nothing
+		private double traffic = 0;
+		private long stamp = System.nanoTime();
+
+		Member(final ClientSession session) {
+			this.session = session;
+		}
+
+		synchronized void transferred(final int bytes) {
+			decay();
+			traffic += bytes;
+		}
+
+		private void decay() {
+			final long now = System.nanoTime();
+			traffic *= Math.pow(0.5, (now - stamp) / (RATE_HALF_LIFE * 1000000d));
+			stamp = now;
+		}
+
+		long load(final Connection.PoolBalance balance) {
+			if (balance == Connection.PoolBalance.BYTES) {
+				synchronized (this) {
+					decay();
+					return (long) traffic;
+				}
+			}
+			return channels.get();
+		}
+	}
+
+	/**
+	 * Listen port of a forward, each client is relayed to a channel of a session
+	 */
+	private final class Front extends PortForwardingTracker {
+		final Forward forward;
+		final int index;
+		final TrafficMetrics metrics;
+		private volatile ServerSocket server = null;
+		private volatile Thread acceptor = null;
+
+		Front(final ClientSession primary, final Forward forward, final int index, final TrafficMetrics metrics) {
+			super(primary, forward.getLocalSocketAddress(index), forward.getLocalSocketAddress(index));
+			this.forward = forward;
+			this.index = index;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Channels of forward on session are counted in forward metrics (by listen port)
+		 */
+		void bind(final Member m) {
+			if ((m.session instanceof MeteredClientSession) && (metrics != null)) {
+				((MeteredClientSession) m.session).bindForward(false, getLocalAddress(), metrics, null);
+			}
+		}
+
+		void listen() throws IOException {
+			final SshdSocketAddress addr = getLocalAddress();
+			final ServerSocket ss = new ServerSocket();
+			server = ss;
+			ss.setReuseAddress(true);
+			ss.bind(addr.toInetSocketAddress(), BACKLOG);
+			final Thread t = new Thread(() -> acceptLoop(ss));
+			t.setDaemon(true);
+			t.setName("pool-" + name + "-" + addr.getPort());
+			acceptor = t;
+			t.start();
+		}
+
+		private void acceptLoop(final ServerSocket ss) {
+			while (!ss.isClosed()) {
+				final Socket s;
+				try {
+					s = ss.accept();
+				} catch (IOException e) {
+					break;
+				}
+				relay(s);
+			}
+		}
+
+		private void relay(final Socket s) {
+			final Member m = choose();
+			if (m == null) {
+				log.warn("No pool session {}: {}", name, forward.alias);
+				SocketRelay.closeQuietly(s);
+				return;
+			}
+			m.channels.incrementAndGet();
+			// Dynamic: target from SOCKS request
+			final SshdSocketAddress target = ((forward.getType() == Forward.Type.DYNAMIC) ? null //
+					: forward.getRemoteSocketAddress(index));
+			new ChannelRelay(s, m.session, getLocalAddress(), target, new SocketRelay.Listener() {
+				@Override
+				public void transferred(final int bytes) {
+					m.transferred(bytes);
+				}
+
+				@Override
+				public void closed() {
+					m.channels.decrementAndGet();
+				}
+			}).start("pool-" + name + "-" + getLocalAddress().getPort());
+		}
+
+		/**
+		 * @return least loaded open session (round robin on ties)
+		 */
+		private Member choose() {
+			final List<Member> list = new ArrayList<Member>(members);
+			final int size = list.size();
+			final int start = ((size == 0) ? 0 : Math.floorMod(next.getAndIncrement(), size));
+			Member best = null;
+			long bestLoad = Long.MAX_VALUE;
+			for (int i = 0; i < size; i++) {
+				final Member m = list.get((start + i) % size);
+				if (!m.session.isOpen()) {
+					continue;
+				}
+				final long load = m.load(balance);
+				if (load < bestLoad) {
+					best = m;
+					bestLoad = load;
+				}
+			}
+			return best;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!open.getAndSet(false)) {
+				return;
+			}
+			fronts.remove(this);
+			final ServerSocket ss = server;
+			if (ss != null) {
+				SocketRelay.closeQuietly(ss);
+			}
+			// Listen socket blocked in accept is really closed (port free) when accept returns
+			final Thread t = acceptor;
+			if ((t != null) && (t != Thread.currentThread())) {
+				try {
+					t.join(CLOSE_WAIT);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (final Member m : members) {
+				if (m.session instanceof MeteredClientSession) {
+					((MeteredClientSession) m.session).unbindForward(false, getLocalAddress());
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[session=" + getClientSession() + ", forward=" + forward.alias
+					+ ", listen=" + getLocalAddress() + ", sessions=" + members.size() + "]";
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package org.javastack.jentunnel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.sshd.client.config.hosts.HostPatternsHolder;
+import org.apache.sshd.client.config.hosts.KnownHostEntry;
+import org.apache.sshd.client.keyverifier.KnownHostsServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One known_hosts verifier for all sessions: entries are parsed once, indexed by host name and
+ * reloaded only when a {@link WatchService} reports a change (stat per check as fallback). Accepting
+ * unknown keys is serialized per host, so concurrent connects to a new server ask and append once.
+ */
+class SharedKnownHostsVerifier extends KnownHostsServerKeyVerifier {
+	private static final Logger log = LoggerFactory.getLogger(SharedKnownHostsVerifier.class);
+
+	private final AtomicBoolean dirty = new AtomicBoolean(true);
+	private final ConcurrentHashMap<String, Object> acceptLocks = new ConcurrentHashMap<String, Object>();
+	private volatile HostIndex index = null;
+	private volatile List<HostEntryPair> loaded = Collections.emptyList();
+	private volatile WatchService watcher = null;
+
+	SharedKnownHostsVerifier(final ServerKeyVerifier delegate, final Path file) {
+		super(delegate, file);
+	}
+
+	/**
+	 * Start watching parent directory (lazy, idempotent)
+	 *
+	 * @return false if watch is not available (fallback to stat)
+	 */
+	synchronized boolean watch() {
+		if (watcher != null) {
+			return true;
+		}
+		final Path file = getPath().toAbsolutePath();
+		try {
+			final WatchService ws = FileSystems.getDefault().newWatchService();
+			file.getParent().register(ws, StandardWatchEventKinds.ENTRY_CREATE, //
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			final Thread t = new Thread(() -> watchLoop(ws, file.getFileName()));
+			t.setDaemon(true);
+			t.setName("known-hosts-watch");
+			t.start();
+			watcher = ws;
+			dirty.set(true);
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			log.warn("Unable to watch {}: {}", file, String.valueOf(e));
+			return false;
+		}
+	}
+
+	synchronized void close() {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				log.warn("Unable to close watch: {}", String.valueOf(e));
+			}
+			watcher = null;
+		}
+		dirty.set(true);
+	}
+
+	private void watchLoop(final WatchService ws, final Path name) {
+		try {
+			while (true) {
+				final WatchKey key = ws.take();
+				for (final WatchEvent<?> e : key.pollEvents()) {
+					if ((e.kind() == StandardWatchEventKinds.OVERFLOW) || name.equals(e.context())) {
+						log.info("Known hosts changed: {}", getPath());
+						dirty.set(true);
+					}
+				}
+				if (!key.reset()) {
+					dirty.set(true);
+					break;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed
+		}
+	}
+
+	@Override
+	public boolean checkReloadRequired() throws IOException {
+		if (!watch()) {
+			return super.checkReloadRequired();
+		}
+		return dirty.getAndSet(false);
+	}
+
+	@Override
+	public void resetReloadAttributes() {
+		// Called after appending a new key
+		super.resetReloadAttributes();
+		dirty.set(true);
+	}
+
+	@Override
+	protected List<HostEntryPair> reloadKnownHosts(final ClientSession session, final Path file)
+			throws IOException, GeneralSecurityException {
+		final long start = System.nanoTime();
+		final List<HostEntryPair> entries = super.reloadKnownHosts(session, file);
+		index = new HostIndex(entries);
+		loaded = entries;
+		log.info("Known hosts loaded: {} entries={} ({}ms)", file, entries.size(),
+				(System.nanoTime() - start) / 1000000L);
+		return entries;
+	}
+
+	@Override
+	protected List<HostEntryPair> findKnownHostEntries(final ClientSession session, final SocketAddress remoteAddress,
+			final Collection<HostEntryPair> entries) {
+		final HostIndex idx = index;
+		if ((idx == null) || (idx.entries != entries)) {
+			return super.findKnownHostEntries(session, remoteAddress, entries);
+		}
+		// Index only narrows candidates, matching rules are the original ones
+		return super.findKnownHostEntries(session, remoteAddress, //
+				idx.candidates(resolveHostNetworkIdentities(session, remoteAddress)));
+	}
+
+	@Override
+	protected boolean acceptUnknownHostKey(final ClientSession session, final SocketAddress remoteAddress,
+			final PublicKey serverKey) {
+		final String host = String.valueOf(SshdSocketAddress.toSshdSocketAddress(remoteAddress));
+		synchronized (acceptLocks.computeIfAbsent(host, k -> new Object())) {
+			try {
+				// Already accepted by a concurrent connection while waiting (dirty is kept for next verify)
+				if (dirty.get() || ((watcher == null) && super.checkReloadRequired())) {
+					loaded = reloadKnownHosts(session, getPath());
+				}
+				for (final HostEntryPair e : findKnownHostEntries(session, remoteAddress, loaded)) {
+					if (KeyUtils.compareKeys(e.getServerKey(), serverKey)) {
+						return true;
+					}
+				}
+			} catch (IOException | GeneralSecurityException e) {
+				log.warn("Unable to reload {}: {}", getPath(), String.valueOf(e));
+			}
+			return super.acceptUnknownHostKey(session, remoteAddress, serverKey);
+		}
+	}
+
+	/**
+	 * Entries by lower case host name (specific patterns), others (hashed, wildcards, negations) are
+	 * always candidates. File order is kept.
+	 */
+	private static class HostIndex {
+		final List<HostEntryPair> entries;
+		final Map<String, List<Integer>> byHost = new HashMap<String, List<Integer>>();
+		final List<Integer> others = new ArrayList<Integer>();
+
+		HostIndex(final List<HostEntryPair> entries) {
+			this.entries = entries;
+			for (int i = 0; i < entries.size(); i++) {
+				final List<String> hosts = specificHosts(entries.get(i).getHostEntry());
+				if (hosts == null) {
+					others.add(i);
+				} else {
+					for (final String h : hosts) {
+						byHost.computeIfAbsent(h, k -> new ArrayList<Integer>(1)).add(i);
+					}
+				}
+			}
+		}
+
+		List<HostEntryPair> candidates(final Collection<SshdSocketAddress> identities) {
+			final TreeSet<Integer> set = new TreeSet<Integer>(others);
+			for (final SshdSocketAddress id : identities) {
+				final List<Integer> l = byHost.get(id.getHostName().toLowerCase(Locale.ROOT));
+				if (l != null) {
+					set.addAll(l);
+				}
+			}
+			final List<HostEntryPair> list = new ArrayList<HostEntryPair>(set.size());
+			for (final Integer i : set) {
+				list.add(entries.get(i));
+			}
+			return list;
+		}
+
+		/**
+		 * @return host names or null if entry is not indexable
+		 */
+		private static List<String> specificHosts(final KnownHostEntry entry) {
+			final String line = entry.getConfigLine();
+			if ((entry.getHashedEntry() != null) || (line == null)) {
+				return null;
+			}
+			final String[] tokens = line.trim().split("\\s+");
+			final int pos = ((tokens[0].startsWith("@")) ? 1 : 0); // @cert-authority / @revoked
+			if (tokens.length <= pos) {
+				return null;
+			}
+			final List<String> hosts = new ArrayList<String>();
+			for (String h : tokens[pos].split(",")) {
+				if (h.startsWith("[") && (h.indexOf("]:") > 0)) {
+					h = h.substring(1, h.indexOf("]:"));
+				}
+				if (h.isEmpty() || (h.charAt(0) == '!') || !HostPatternsHolder.isSpecificHostPattern(h)) {
+					return null;
+				}
+				hosts.add(h.toLowerCase(Locale.ROOT));
+			}
+			return hosts;
+		}
+	}
+}
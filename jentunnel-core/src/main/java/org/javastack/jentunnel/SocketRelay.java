@@ -0,0 +1,122 @@
+package org.javastack.jentunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relay of an accepted client to a local port (one thread per direction, half-close on EOF), used to
+ * hand clients to ports mapped by SSH sessions
+ */
+class SocketRelay {
+	private static final Logger log = LoggerFactory.getLogger(SocketRelay.class);
+	private static final int RELAY_BUFFER = 16 * 1024;
+	private static final int RELAY_CONNECT_TIMEOUT = 5000;
+
+	private final Socket client;
+	private final InetSocketAddress target;
+	private final Listener listener;
+	private final AtomicInteger open = new AtomicInteger(2);
+	private final AtomicBoolean ended = new AtomicBoolean();
+
+	/**
+	 * @param client accepted socket
+	 * @param target port to relay to (wildcard address is replaced by loopback)
+	 * @param listener traffic and end of relay, can be null
+	 */
+	SocketRelay(final Socket client, final InetSocketAddress target, final Listener listener) {
+		this.client = client;
+		this.target = (((target.getAddress() == null) || target.getAddress().isAnyLocalAddress()) //
+				? new InetSocketAddress(InetAddress.getLoopbackAddress(), target.getPort()) //
+				: target);
+		this.listener = listener;
+	}
+
+	/**
+	 * Connect and relay in new threads
+	 *
+	 * @param name thread name
+	 */
+	void start(final String name) {
+		final Thread t = new Thread(() -> run());
+		t.setDaemon(true);
+		t.setName(name);
+		t.start();
+	}
+
+	private void run() {
+		final Socket peer = new Socket();
+		try {
+			peer.setTcpNoDelay(true);
+			peer.connect(target, RELAY_CONNECT_TIMEOUT);
+		} catch (IOException e) {
+			log.warn("Relay failed {}: {}", target, String.valueOf(e));
+			closeQuietly(peer);
+			closeQuietly(client);
+			if (listener != null) {
+				listener.closed();
+			}
+			return;
+		}
+		final Thread t = new Thread(() -> pump(peer, client));
+		t.setDaemon(true);
+		t.setName(Thread.currentThread().getName() + "-in");
+		t.start();
+		pump(client, peer);
+	}
+
+	/**
+	 * Copy until EOF and half-close, sockets are closed when both directions ended
+	 */
+	private void pump(final Socket from, final Socket to) {
+		final byte[] buf = new byte[RELAY_BUFFER];
+		try {
+			final InputStream in = from.getInputStream();
+			final OutputStream out = to.getOutputStream();
+			int len;
+			while ((len = in.read(buf)) >= 0) {
+				out.write(buf, 0, len);
+				if (listener != null) {
+					listener.transferred(len);
+				}
+			}
+			to.shutdownOutput();
+		} catch (IOException e) {
+			open.set(1);
+		}
+		if ((open.decrementAndGet() <= 0) && ended.compareAndSet(false, true)) {
+			closeQuietly(from);
+			closeQuietly(to);
+			if (listener != null) {
+				listener.closed();
+			}
+		}
+	}
+
+	static void closeQuietly(final AutoCloseable c) {
+		try {
+			c.close();
+		} catch (Exception ign) {
+		}
+	}
+
+	interface Listener {
+		/**
+		 * @param bytes relayed (any direction)
+		 */
+		void transferred(int bytes);
+
+		/**
+		 * Both sockets closed (called once)
+		 */
+		void closed();
+	}
+}
@@ -0,0 +1,128 @@
+package org.javastack.jentunnel;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free traffic counters (per connection or per forward). Data path only adds to counters, rates
+ * are computed by {@link #sample(long)} from a background task.
+ */
+public class TrafficMetrics {
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder channelsOpen = new LongAdder();
+	private final LongAdder channelsTotal = new LongAdder();
+	private final LongAdder channelsFailed = new LongAdder();
+	private final LongAdder openLatency = new LongAdder();
+	private volatile long openLatencyMax = 0;
+	private volatile long inRate = 0;
+	private volatile long outRate = 0;
+	// Sampler state
+	private long lastIn = 0;
+	private long lastOut = 0;
+	private long lastSample = 0;
+
+	void addIn(final long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	void addOut(final long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	long getChannelsOpen() {
+		return channelsOpen.sum();
+	}
+
+	void channelOpened(final long latencyMillis) {
+		channelsOpen.increment();
+		channelsTotal.increment();
+		openLatency.add(latencyMillis);
+		if (latencyMillis > openLatencyMax) {
+			openLatencyMax = latencyMillis; // Racy, good enough for a max
+		}
+	}
+
+	void channelFailed() {
+		channelsFailed.increment();
+	}
+
+	void channelClosed() {
+		channelsOpen.decrement();
+	}
+
+	/**
+	 * Update rates, called periodically from a single thread
+	 *
+	 * @param now current time in millis
+	 */
+	synchronized void sample(final long now) {
+		final long in = bytesIn.sum();
+		final long out = bytesOut.sum();
+		final long elapsed = now - lastSample;
+		if ((lastSample > 0) && (elapsed > 0)) {
+			inRate = ((in - lastIn) * 1000 / elapsed);
+			outRate = ((out - lastOut) * 1000 / elapsed);
+		}
+		lastIn = in;
+		lastOut = out;
+		lastSample = now;
+	}
+
+	public Snapshot snapshot(final String name) {
+		final long total = channelsTotal.sum();
+		return new Snapshot(name, bytesIn.sum(), bytesOut.sum(), inRate, outRate, //
+				channelsOpen.sum(), total, channelsFailed.sum(), //
+				((total > 0) ? (openLatency.sum() / total) : 0), openLatencyMax);
+	}
+
+	public static class Snapshot {
+		public final String name;
+		/**
+		 * Bytes received from server (channel data)
+		 */
+		public final long bytesIn;
+		/**
+		 * Bytes sent to server (channel data)
+		 */
+		public final long bytesOut;
+		/**
+		 * Bytes per second (last sample)
+		 */
+		public final long inRate;
+		public final long outRate;
+		public final long channelsOpen;
+		public final long channelsTotal;
+		public final long channelsFailed;
+		/**
+		 * Channel open latency in millis
+		 */
+		public final long openLatencyAvg;
+		public final long openLatencyMax;
+
+		Snapshot(final String name, final long bytesIn, final long bytesOut, final long inRate,
+				final long outRate, final long channelsOpen, final long channelsTotal,
+				final long channelsFailed, final long openLatencyAvg, final long openLatencyMax) {
+			this.name = name;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+			this.inRate = inRate;
+			this.outRate = outRate;
+			this.channelsOpen = channelsOpen;
+			this.channelsTotal = channelsTotal;
+			this.channelsFailed = channelsFailed;
+			this.openLatencyAvg = openLatencyAvg;
+			this.openLatencyMax = openLatencyMax;
+		}
+
+		@Override
+		public String toString() {
+			return name + " in=" + bytesIn + " out=" + bytesOut + " inRate=" + inRate + " outRate="
+					+ outRate + " channels=" + channelsOpen + "/" + channelsTotal + " failed="
+					+ channelsFailed + " latency=" + openLatencyAvg + "/" + openLatencyMax;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.javastack.jentunnel;
+
+/**
+ * Receive window of a channel sized to bandwidth-delay product: min RTT (keepalive replies) times inbound
+ * rate per open channel (window applies to each channel). Min RTT is the path delay, smoothed RTT would
+ * include queueing of bulk transfers and inflate the window. While channels are window-limited the rate
+ * follows window/RTT, so the window grows until the link (not the window) limits the rate; it never
+ * shrinks (idle link says nothing about capacity). Only channels opened afterwards get a new window.
+ */
+class WindowTuner {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long RTT_MIN_EXPIRY = 60 * NANOS_PER_SECOND; // Path may change
+	private static final int HEADROOM = 2;
+
+	private final long max;
+	private long window;
+	private long minRtt = -1;
+	private long minRttTime = 0;
+	private long lastBytes = -1;
+	private long lastTime = 0;
+
+	/**
+	 * @param initial window in bytes
+	 * @param max window in bytes
+	 */
+	WindowTuner(final long initial, final long max) {
+		this.window = Math.min(initial, max);
+		this.max = max;
+	}
+
+	/**
+	 * @param nanos round trip of a keepalive
+	 * @param now current time in nanos
+	 */
+	synchronized void addRtt(final long nanos, final long now) {
+		if ((minRtt < 0) || (nanos <= minRtt) || ((now - minRttTime) > RTT_MIN_EXPIRY)) {
+			minRtt = nanos;
+			minRttTime = now;
+		}
+	}
+
+	synchronized long getRttMillis() {
+		return ((minRtt < 0) ? -1 : (minRtt / 1000000L));
+	}
+
+	synchronized long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param bytesIn inbound channel bytes (cumulative)
+	 * @param channels open channels
+	 * @param now current time in nanos
+	 * @return new window or 0 if unchanged
+	 */
+	synchronized long update(final long bytesIn, final long channels, final long now) {
+		final long bytes = lastBytes;
+		final long elapsed = now - lastTime;
+		lastBytes = bytesIn;
+		lastTime = now;
+		if ((bytes < 0) || (elapsed <= 0) || (minRtt < 0)) {
+			return 0;
+		}
+		final double rate = (double) (bytesIn - bytes) * NANOS_PER_SECOND / elapsed / Math.max(1, channels);
+		final long bdp = (long) (rate * minRtt / NANOS_PER_SECOND);
+		// At most doubled per step, as receive buffer auto-tuning of TCP
+		final long wanted = Math.min(max, Math.min(window * 2, bdp * HEADROOM));
+		if (wanted <= window) {
+			return 0;
+		}
+		window = wanted;
+		return window;
+	}
+}
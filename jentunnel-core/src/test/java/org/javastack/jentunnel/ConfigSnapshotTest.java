@@ -0,0 +1,146 @@
+package org.javastack.jentunnel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Binary snapshot must load the same configuration as YAML: every field is set to a non-default value,
+ * a field missing in snapshot format reads back as default and breaks the comparison.
+ */
+public class ConfigSnapshotTest {
+	private File configDir;
+
+	@Before
+	public void setUp() throws Exception {
+		configDir = Files.createTempDirectory("jentunnel-test").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		final File[] files = configDir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		configDir.delete();
+	}
+
+	@Test
+	public void snapshotLoadsSameAsYAML() throws Exception {
+		final ConfigData data = newConfigData();
+		for (final Identity i : data.identities) {
+			assertNonDefault(i, new Identity());
+		}
+		for (final Connection c : data.connections) {
+			assertNonDefault(c, new Connection());
+		}
+		assertNonDefault(data.forwards.get(0), new Forward.Local());
+		assertNonDefault(data.forwards.get(1), new Forward.Remote());
+		assertNonDefault(data.forwards.get(2), new Forward.Dynamic());
+		assertNonDefault(data.forwards.get(3), new Forward.LocalRange());
+		assertNonDefault(data.forwards.get(4), new Forward.RemoteRange());
+		//
+		final ConfigUtils cu = new ConfigUtils(configDir.getAbsolutePath());
+		cu.save(data);
+		final ConfigData snapshot = ConfigSnapshot.read(findFile(".snapshot"), findFile(".yaml"));
+		assertNotNull("snapshot not loaded", snapshot);
+		final ConfigData yaml = cu.loadYAML();
+		assertSameFields("yaml", data, yaml);
+		assertSameFields("snapshot", yaml, snapshot);
+		assertSameFields("load", yaml, cu.load());
+	}
+
+	private static ConfigData newConfigData() {
+		final Identity identity = new Identity(null, "identity", "user", "secret", "id_test");
+		final Connection bastion = new Connection.Builder() //
+				.alias("bastion").address("192.0.2.1").port(2222).identity(identity.id) //
+				.autoStart(true).autoReconnect(true) //
+				.priority(5) //
+				.reconnectPolicies(Arrays.asList( //
+						new ReconnectPolicy(ReconnectPolicy.ErrorClass.UNREACHABLE, true, 1000, 2000), //
+						new ReconnectPolicy(ReconnectPolicy.ErrorClass.AUTH, false, 0, 0))) //
+				.heartbeatInterval(11000).heartbeatReplyWait(16000).heartbeatMaxMissed(4) //
+				.idleTimeout(60000).heartbeatAdaptive(true) //
+				.onDemand(true).onDemandIdle(120000) //
+				.jumpHost("jump") //
+				.poolSize(3).poolBalance(Connection.PoolBalance.BYTES) //
+				.windowSize(4194304).maxPacketSize(65536).windowAutoTune(true) //
+				.rekeyBytes(1073741824).rekeyTime(3600000) //
+				.cryptoProfile(Connection.CryptoProfile.LOW_CPU) //
+				.ciphers("aes128-ctr").macs("hmac-sha2-256").kexAlgorithms("curve25519-sha256") //
+				.build();
+		final List<String> connections = Collections.singletonList(bastion.id);
+		final List<Forward> forwards = Arrays.asList( //
+				new Forward.Local(null, "local", connections, "127.0.0.2", 8080, "web", 80), //
+				new Forward.Remote(null, "remote", connections, "127.0.0.3", 2525, "0.0.0.0", 25), //
+				new Forward.Dynamic(null, "dynamic", connections, "127.0.0.4", 1080), //
+				new Forward.LocalRange(null, "local-range", connections, "127.0.0.5", 9000, "db{i}", 5432, 4), //
+				new Forward.RemoteRange(null, "remote-range", connections, "127.0.0.6", 7000, "0.0.0.0", 17000, 3));
+		return new ConfigData(Collections.singletonList(identity), Collections.singletonList(bastion), forwards);
+	}
+
+	private File findFile(final String suffix) {
+		for (final File f : configDir.listFiles()) {
+			if (f.getName().endsWith(suffix)) {
+				return f;
+			}
+		}
+		throw new AssertionError("not found: " + suffix);
+	}
+
+	/**
+	 * Field by field (YAML dump is not comparable: anchors depend on shared instances)
+	 */
+	private static void assertSameFields(final String path, final Object expected, final Object actual)
+			throws Exception {
+		if ((expected == null) || (actual == null) || (expected instanceof String)
+				|| (expected instanceof Number) || (expected instanceof Boolean) || (expected instanceof Enum)) {
+			assertEquals(path, expected, actual);
+			return;
+		}
+		if (expected instanceof List) {
+			final List<?> e = (List<?>) expected;
+			final List<?> a = (List<?>) actual;
+			assertEquals(path + ".size", e.size(), a.size());
+			for (int i = 0; i < e.size(); i++) {
+				assertSameFields(path + "[" + i + "]", e.get(i), a.get(i));
+			}
+			return;
+		}
+		assertEquals(path + ".class", expected.getClass(), actual.getClass());
+		for (final Field f : expected.getClass().getFields()) {
+			if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers())) {
+				continue;
+			}
+			assertSameFields(path + "." + f.getName(), f.get(expected), f.get(actual));
+		}
+	}
+
+	/**
+	 * Public fields (saved ones) differ from those of default instance (as loaded from empty YAML)
+	 */
+	private static void assertNonDefault(final Object o, final Object defaults) throws Exception {
+		for (final Field f : o.getClass().getFields()) {
+			if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers())) {
+				continue;
+			}
+			assertFalse(o.getClass().getSimpleName() + "." + f.getName() + " has default value",
+					Objects.equals(f.get(o), f.get(defaults)));
+		}
+	}
+}
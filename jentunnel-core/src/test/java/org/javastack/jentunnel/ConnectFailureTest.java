@@ -0,0 +1,163 @@
+package org.javastack.jentunnel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Failed attempts closed by server or by host key verifier end with their own error class (not with
+ * session close), so retry policy applies: no retry for auth or host key errors, failure notified once.
+ */
+public class ConnectFailureTest {
+	private static final long WAIT = 15000;
+	/**
+	 * Longer than min sleep of retry policies
+	 */
+	private static final long RETRY_WAIT = 3000;
+
+	private SshServer sshd;
+	private File configDir;
+	private SSHClient client;
+	private final Counter counter = new Counter();
+
+	@Before
+	public void setUp() throws Exception {
+		sshd = SshServer.setUpDefaultServer();
+		sshd.setHost("127.0.0.1");
+		sshd.setPort(0);
+		sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider()); // In memory
+		sshd.setPasswordAuthenticator((username, password, session) -> {
+			if ("good".equals(password)) {
+				return true;
+			}
+			// Like sshd MaxAuthTries: session is closed while client handles auth failure
+			try {
+				session.disconnect(SshConstants.SSH2_DISCONNECT_NO_MORE_AUTH_METHODS_AVAILABLE, //
+						"Too many authentication failures");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return false;
+		});
+		sshd.start();
+		configDir = Files.createTempDirectory("jentunnel-test").toFile();
+		client = new SSHClient(configDir.getAbsolutePath());
+		client.addNotify(counter);
+		client.init();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try {
+			client.stop();
+			sshd.stop(true);
+		} finally {
+			final File[] files = configDir.listFiles();
+			if (files != null) {
+				for (final File f : files) {
+					f.delete();
+				}
+			}
+			configDir.delete();
+		}
+	}
+
+	@Test
+	public void authRejectedIsNotRetried() throws Exception {
+		final Connection c = connect("bad");
+		awaitFailure(c);
+		assertEquals(ReconnectPolicy.ErrorClass.AUTH, counter.session.getLastError());
+		Thread.sleep(RETRY_WAIT);
+		assertEquals("connecting", 1, counter.connecting.get());
+		assertEquals("fail", 1, counter.fail.get());
+		assertEquals(ConnectionStatus.DISCONNECTED, client.getStatus(c.id));
+	}
+
+	@Test
+	public void hostKeyRejectedIsNotRetried() throws Exception {
+		final AtomicInteger prompts = new AtomicInteger();
+		client.setKeyAcceptatorNew((clientSession, remoteAddress, serverKey) -> {
+			prompts.incrementAndGet();
+			return false;
+		});
+		final Connection c = connect("good");
+		awaitFailure(c);
+		assertEquals(ReconnectPolicy.ErrorClass.HOST_KEY, counter.session.getLastError());
+		Thread.sleep(RETRY_WAIT);
+		assertEquals("prompts", 1, prompts.get());
+		assertEquals("connecting", 1, counter.connecting.get());
+		assertEquals("fail", 1, counter.fail.get());
+	}
+
+	@Test
+	public void autoStartEndsOnFinalFailure() throws Exception {
+		final Identity identity = new Identity(null, "test", "test", "bad", "");
+		final Connection c = new Connection(null, "test", //
+				"127.0.0.1", sshd.getPort(), identity.id, true, true);
+		client.setIdentity(identity);
+		client.setConnection(c);
+		client.start();
+		awaitFailure(c);
+		final long end = System.currentTimeMillis() + WAIT;
+		while (client.getAutoStartMillis() < 0) {
+			assertTrue("Timeout: " + client.getStatus(c.id), System.currentTimeMillis() < end);
+			Thread.sleep(10);
+		}
+		assertEquals("failed", 1, client.getAutoStartFailed());
+	}
+
+	private Connection connect(final String password) {
+		final Identity identity = new Identity(null, "test", "test", password, "");
+		final Connection connection = new Connection(null, "test", //
+				"127.0.0.1", sshd.getPort(), identity.id, false, true);
+		client.setIdentity(identity);
+		client.setConnection(connection);
+		client.connect(connection.id);
+		return connection;
+	}
+
+	private void awaitFailure(final Connection c) throws InterruptedException {
+		final long end = System.currentTimeMillis() + WAIT;
+		while ((counter.fail.get() == 0) || (counter.session.getLastError() == null)) {
+			assertTrue("Timeout: " + client.getStatus(c.id), System.currentTimeMillis() < end);
+			Thread.sleep(10);
+		}
+	}
+
+	private static class Counter implements SSHClient.Notify {
+		final AtomicInteger connecting = new AtomicInteger();
+		final AtomicInteger fail = new AtomicInteger();
+		volatile SSHClient.Session session = null;
+
+		@Override
+		public void notifyConnecting(final SSHClient.Session session) {
+			this.session = session;
+			connecting.incrementAndGet();
+		}
+
+		@Override
+		public void notifyEstablished(final SSHClient.Session session) {
+		}
+
+		@Override
+		public void notifyFail(final SSHClient.Session session) {
+			fail.incrementAndGet();
+		}
+
+		@Override
+		public void notifyClosed(final SSHClient.Session session) {
+		}
+	}
+}
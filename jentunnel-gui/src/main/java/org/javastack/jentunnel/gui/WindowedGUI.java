@@ -22,9 +22,15 @@ import java.nio.file.FileSystems;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.BorderFactory;
@@ -70,6 +76,7 @@ import org.javastack.jentunnel.AliasID;
 import org.javastack.jentunnel.Connection;
 import org.javastack.jentunnel.ConnectionStatus;
 import org.javastack.jentunnel.Forward;
+import org.javastack.jentunnel.HandshakeTimings;
 import org.javastack.jentunnel.Identity;
 import org.javastack.jentunnel.SSHClient;
 import org.javastack.jentunnel.SSHClient.Session;
@@ -96,7 +103,8 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 	private JTabbedPane tabs = null;
 	private Tabs.Table selectedTable = null;
 	private Timer animationTimer = null;
-	private volatile boolean dirtyConnectionStatus = true;
+	private final Map<String, ConnectionStatus> pendingStatus = new ConcurrentHashMap<String, ConnectionStatus>();
+	private final AtomicBoolean pendingStatusFlush = new AtomicBoolean();
 
 	public WindowedGUI init() {
 		if (animationTimer == null) {
@@ -105,6 +113,8 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 				try {
 					if ((selectedTable != null) && selectedTable.animateIcons()) {
 						Resources.spinnerIcon.nextFrame();
+					} else {
+						animationTimer.stop();
 					}
 				} catch (Exception ex) {
 					log.error("Exception: {}", String.valueOf(ex), ex);
@@ -138,28 +148,43 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 	public void notifyConnecting(final Session session) {
 		log.info("Update state (connecting): {} >> {}", session.getConnectionAlias(),
 				client.getStatus(session.getConnectionID()));
-		dirtyConnectionStatus = true;
 	}
 
 	@Override
 	public void notifyEstablished(final Session session) {
 		log.info("Update state (established): {} >> {}", session.getConnectionAlias(),
 				client.getStatus(session.getConnectionID()));
-		dirtyConnectionStatus = true;
 	}
 
 	@Override
 	public void notifyFail(final Session session) {
 		log.warn("Update state (fail): {} >> {}", session.getConnectionAlias(),
 				client.getStatus(session.getConnectionID()));
-		dirtyConnectionStatus = true;
 	}
 
 	@Override
 	public void notifyClosed(final Session session) {
 		log.info("Update state (closed): {} >> {}", session.getConnectionAlias(),
 				client.getStatus(session.getConnectionID()));
-		dirtyConnectionStatus = true;
+	}
+
+	@Override
+	public void notifyStatus(final String connectionId, final ConnectionStatus status) {
+		// Coalesce bursts: last status by connection, one flush in EDT
+		pendingStatus.put(connectionId, status);
+		if (pendingStatusFlush.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this::flushStatus);
+		}
+	}
+
+	private void flushStatus() {
+		pendingStatusFlush.set(false);
+		for (final String id : pendingStatus.keySet()) {
+			final ConnectionStatus status = pendingStatus.remove(id);
+			if ((status != null) && (selectedTable != null)) {
+				selectedTable.updateStatus(id, status);
+			}
+		}
 	}
 
 	private void destroy() {
@@ -382,7 +407,7 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 			save.setIcon(Resources.saveIcon);
 			save.setMnemonic(KeyEvent.VK_S);
 			save.addActionListener(e -> {
-				client.save(ee -> saveButtons.setVisible(false));
+				client.save(() -> SwingUtilities.invokeLater(() -> saveButtons.setVisible(false)));
 				if (selectedTable != null) {
 					selectedTable.table.requestFocusInWindow();
 				}
@@ -545,6 +570,7 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 				setToolTipText(v.getLabel());
 				switch (v) {
 					case NOT_CONNECTED:
+					case STANDBY: // Tooltip tells apart (listening on-demand)
 						setIcon(Resources.noConnectedIcon);
 						break;
 					case CONNECTING:
@@ -561,6 +587,37 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 		}
 	}
 
+	static class HandshakeRenderer extends DefaultTableCellRenderer {
+		private static final long serialVersionUID = 42L;
+
+		public HandshakeRenderer() {
+			super();
+			setHorizontalAlignment(JLabel.RIGHT);
+		}
+
+		@Override
+		public void setValue(final Object value) {
+			if (!(value instanceof HandshakeTimings.Stats) || (((HandshakeTimings.Stats) value).samples == 0)) {
+				super.setValue("");
+				setToolTipText(null);
+				return;
+			}
+			final HandshakeTimings.Stats v = (HandshakeTimings.Stats) value;
+			super.setValue(v.last(HandshakeTimings.Phase.TOTAL) + " ms");
+			final StringBuilder sb = new StringBuilder("<html><table>");
+			sb.append("<tr><th></th><th>last</th><th>p50</th><th>p90</th><th>p99</th></tr>");
+			for (final HandshakeTimings.Phase p : HandshakeTimings.Phase.values()) {
+				sb.append("<tr><td>").append(p.name()).append("</td>");
+				sb.append("<td align=right>").append(v.last(p)).append("</td>");
+				sb.append("<td align=right>").append(v.percentile(p, 50)).append("</td>");
+				sb.append("<td align=right>").append(v.percentile(p, 90)).append("</td>");
+				sb.append("<td align=right>").append(v.percentile(p, 99)).append("</td></tr>");
+			}
+			sb.append("</table>").append(v.samples).append(" samples (ms)</html>");
+			setToolTipText(sb.toString());
+		}
+	}
+
 	static class TipStringRenderer extends DefaultTableCellRenderer {
 		private static final long serialVersionUID = 42L;
 
@@ -676,6 +733,10 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 			private static final long serialVersionUID = 42L;
 			protected final JTable table;
 			protected final DefaultTableModel tableModel;
+			// EDT only
+			private final Set<String> connecting = new HashSet<String>();
+			private final Map<String, Integer> rowById = new HashMap<String, Integer>();
+			private final boolean hasStatus;
 
 			Table() {
 				setLayout(new BorderLayout());
@@ -761,6 +822,7 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 				});
 				table.getSelectionModel().setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 				table.setModel(tableModel = initTableModel());
+				hasStatus = hasColumnClass(ConnectionStatus.class);
 				table.setAutoCreateRowSorter(false);
 				createAliasSorter(table);
 
@@ -772,6 +834,7 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 				table.setDefaultRenderer(String.class, new TipStringRenderer());
 				table.setDefaultRenderer(Integer.class, new TipIntegerRenderer());
 				table.setDefaultRenderer(Forward.Type.class, new ForwardTypeRenderer());
+				table.setDefaultRenderer(HandshakeTimings.Stats.class, new HandshakeRenderer());
 				// AutofitTableColumns.autoResizeTable(table, true, 30); // No funciona bien
 				// Hide Column ID
 				table.getColumnModel().getColumn(0).setMinWidth(0);
@@ -792,31 +855,98 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 				sorter.sort();
 			}
 
+			/**
+			 * Repaint only cells with animated icon (CONNECTING)
+			 * 
+			 * @return false if nothing to animate
+			 */
 			public boolean animateIcons() {
-				final int rows = tableModel.getRowCount();
-				final int cols = tableModel.getColumnCount();
-				boolean changed = false;
-				for (int i = 0; i < cols; i++) {
+				final Iterator<String> ite = connecting.iterator();
+				while (ite.hasNext()) {
+					final int row = findModelRow(ite.next());
+					if (row < 0) {
+						ite.remove();
+						continue;
+					}
+					final int viewRow = table.convertRowIndexToView(row);
+					for (int i = 0; i < tableModel.getColumnCount(); i++) {
+						if (tableModel.getColumnClass(i) == ConnectionStatus.class) {
+							table.repaint(table.getCellRect(viewRow, table.convertColumnIndexToView(i), false));
+						}
+					}
+				}
+				return !connecting.isEmpty();
+			}
+
+			/**
+			 * Update status (and handshake stats) of single row
+			 * 
+			 * @param id of connection
+			 * @param status new status
+			 */
+			public void updateStatus(final String id, final ConnectionStatus status) {
+				if (!hasStatus) {
+					return;
+				}
+				final int row = findModelRow(id);
+				if (row < 0) {
+					return;
+				}
+				for (int i = 0; i < tableModel.getColumnCount(); i++) {
 					if (tableModel.getColumnClass(i) == ConnectionStatus.class) {
-						for (int j = 0; j < rows; j++) {
-							if (dirtyConnectionStatus) {
-								final String id = (String) tableModel.getValueAt(j, 0);
-								if ((id == null) || id.isEmpty()) {
-									continue;
-								}
-								tableModel.setValueAt(client.getStatus(id), j, i);
-								changed = true;
-							} else {
-								if (ConnectionStatus.CONNECTING.equals(tableModel.getValueAt(j, i))) {
-									tableModel.setValueAt(ConnectionStatus.CONNECTING, j, i);
-									changed = true;
-								}
-							}
+						if (status != tableModel.getValueAt(row, i)) {
+							tableModel.setValueAt(status, row, i);
+						}
+					} else if (tableModel.getColumnClass(i) == HandshakeTimings.Stats.class) {
+						// Same instance until next handshake
+						final HandshakeTimings.Stats stats = client.getHandshakeStats(id);
+						if (stats != tableModel.getValueAt(row, i)) {
+							tableModel.setValueAt(stats, row, i);
 						}
 					}
 				}
-				dirtyConnectionStatus = false;
-				return changed;
+				setConnecting(id, status);
+			}
+
+			private void setConnecting(final String id, final ConnectionStatus status) {
+				if (status != ConnectionStatus.CONNECTING) {
+					connecting.remove(id);
+				} else if (connecting.add(id) && (animationTimer != null) && !animationTimer.isRunning()) {
+					animationTimer.start();
+				}
+			}
+
+			private boolean hasColumnClass(final Class<?> clazz) {
+				for (int i = 0; i < tableModel.getColumnCount(); i++) {
+					if (tableModel.getColumnClass(i) == clazz) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			/**
+			 * @param id of row (column 0)
+			 * @return model row or -1 if not found
+			 */
+			protected int findModelRow(final String id) {
+				final Integer cached = rowById.get(id);
+				if ((cached != null) && (cached < tableModel.getRowCount())
+						&& id.equals(tableModel.getValueAt(cached, 0))) {
+					return cached;
+				}
+				rowById.clear();
+				int found = -1;
+				for (int j = 0; j < tableModel.getRowCount(); j++) {
+					final Object rowId = tableModel.getValueAt(j, 0);
+					if (rowId instanceof String) {
+						rowById.put((String) rowId, j);
+						if (id.equals(rowId)) {
+							found = j;
+						}
+					}
+				}
+				return found;
 			}
 
 			public int selectedRow() {
@@ -839,6 +969,8 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 
 			protected void tableShown() {
 				selectedTable = this;
+				connecting.clear();
+				rowById.clear();
 				tableEditButtons.setVisible(false);
 				tableButtons.setVisible(true);
 			}
@@ -873,6 +1005,11 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 
 			public void addRow(final Object... row) {
 				tableModel.addRow(row);
+				for (final Object value : row) {
+					if (value instanceof ConnectionStatus) {
+						setConnecting(String.valueOf(row[0]), (ConnectionStatus) value);
+					}
+				}
 			}
 
 			public void removeRow(final int row) {
@@ -1154,6 +1291,7 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 			Connections table = new Connections();
 			table.getTable().getColumnModel().getColumn(3).setPreferredWidth(35);
 			table.getTable().getColumnModel().getColumn(6).setPreferredWidth(35);
+			table.getTable().getColumnModel().getColumn(7).setPreferredWidth(50);
 			parent.addTab("Connections", Resources.chainIcon, table, //
 					"Configure Connections (server, port, etc)");
 			parent.setMnemonicAt(1, KeyEvent.VK_C);
@@ -1188,12 +1326,12 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 				DefaultTableModel model = new DefaultTableModel(new String[] {
 						"ID", // Hidden
 						"Alias", "Hostname", "Port", //
-						"Auto connect", "Reconnect", "Status"
+						"Auto connect", "Reconnect", "Status", "Handshake"
 				}, 0) {
 					private static final long serialVersionUID = 42L;
 					Class<?>[] columnTypes = new Class<?>[] {
 							String.class, String.class, String.class, Integer.class, //
-							Boolean.class, Boolean.class, ConnectionStatus.class
+							Boolean.class, Boolean.class, ConnectionStatus.class, HandshakeTimings.Stats.class
 					};
 
 					@Override
@@ -1218,7 +1356,7 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 					addRow(item.id, //
 							item.alias, item.address, item.port, //
 							item.isAutoStart, item.isAutoReconnect, //
-							client.getStatus(item.id));
+							client.getStatus(item.id), client.getHandshakeStats(item.id));
 				}
 			}
 
@@ -1345,13 +1483,21 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 										? selectedTable.getSelectedPK() //
 										: null);
 								final AliasID identityRef = (AliasID) identity.getSelectedItem();
-								final Connection c = new Connection(id, //
-										alias.getText(), //
-										hostname.getText(), //
-										((Integer) port.getValue()).intValue(), //
-										identityRef.getID(), //
-										autoConnect.isSelected(), //
-										reconnect.isSelected());
+								// Keep advanced settings (only in YAML) on edit/copy
+								final Connection base = ((mode == EditMode.ADD) //
+										? null //
+										: client.getConnection(selectedTable.getSelectedPK()));
+								final Connection c = ((base == null) //
+										? new Connection.Builder() //
+										: base.toBuilder()) //
+										.id(id) //
+										.alias(alias.getText()) //
+										.address(hostname.getText()) //
+										.port(((Integer) port.getValue()).intValue()) //
+										.identity(identityRef.getID()) //
+										.autoStart(autoConnect.isSelected()) //
+										.autoReconnect(reconnect.isSelected()) //
+										.build();
 								client.setConnection(c);
 								needSave();
 								selectedTable.tableShown();
@@ -1635,12 +1781,25 @@ public class WindowedGUI extends JFrame implements SSHClient.Notify {
 								final String id = ((mode == EditMode.EDIT) //
 										? selectedTable.getSelectedPK() //
 										: null);
-								final Forward f = Forward.valueOf(t, //
-										id, //
-										alias.getText(), //
-										connectionTable.getSelectedID(), //
-										localAddr, localPort.intValue(), //
-										remAddr, remPort.intValue());
+								// Ranges are defined in config file, edit keeps port count
+								final int count = ((mode == EditMode.ADD) //
+										? 1 //
+										: client.getForward(selectedTable.getSelectedPK()).getPortCount());
+								final Forward f;
+								try {
+									f = Forward.valueOf(t, //
+											id, //
+											alias.getText(), //
+											connectionTable.getSelectedID(), //
+											localAddr, localPort.intValue(), //
+											remAddr, remPort.intValue(), //
+											count);
+								} catch (IllegalArgumentException ex) {
+									// Range does not fit in port numbers (listen port)
+									topPort.putClientProperty("JComponent.outline", "error");
+									topPort.requestFocusInWindow();
+									return;
+								}
 								client.setForward(f);
 								needSave();
 								selectedTable.tableShown();